@@ -0,0 +1,137 @@
+package com.mikiloz.tdgateway;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Parses the information of a device, and its {@code firstseen} date alone, both with
+ * {@link SensorDateParser} and with the {@link SimpleDateFormat} it replaced.
+ *
+ * <p>The information is parsed from the {@code org.json} tree, from the bytes of the response, and
+ * with the exception-driven parser the single-pass one replaced, kept here as a baseline. The
+ * sparse fixture, with missing fields and an unknown status, is typical of the children of a
+ * gateway.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeviceInformationBenchmark {
+
+    private static final String FIRST_SEEN = "Apr 5, 2017 3:27:26 PM";
+
+    @Param({"device-information.json", "device-information-sparse.json"})
+    public String fixture;
+
+    private byte[] data;
+    private String json;
+    private JSONObject object;
+    private SimpleDateFormat dateFormat;
+
+    @Setup
+    public void setUp() throws JSONException {
+        data = Fixtures.load(fixture);
+        json = new String(data, JsonTokenizer.UTF_8);
+        object = new JSONObject(json);
+        // One instance per thread, SimpleDateFormat can't be shared.
+        dateFormat = new SimpleDateFormat("MMM dd, yyyy KK:mm:ss aa z", Locale.US);
+    }
+
+    @Benchmark
+    public IotDevice parseIotDeviceInformation() {
+        IotDevice device = new IotDevice(null, null, null, null);
+        IotDevice.parseIotDeviceInformation(object, device);
+        return device;
+    }
+
+    @Benchmark
+    public IotDevice parseIotDeviceInformationFromString() throws JSONException {
+        IotDevice device = new IotDevice(null, null, null, null);
+        IotDevice.parseIotDeviceInformation(new JSONObject(json), device);
+        return device;
+    }
+
+    @Benchmark
+    public IotDevice parseIotDeviceInformationStreaming() throws JsonTokenizer.MalformedJsonException {
+        IotDevice device = new IotDevice(null, null, null, null);
+        IotDevice.parseIotDeviceInformation(new JsonTokenizer(data), device);
+        return device;
+    }
+
+    @Benchmark
+    public DeviceInformation exceptionDriven() {
+        DeviceInformation information = new DeviceInformation();
+        information.parse(object);
+        return information;
+    }
+
+    @Benchmark
+    public Date sensorDateParser() throws ParseException {
+        return SensorDateParser.DEFAULT.parse(FIRST_SEEN);
+    }
+
+    @Benchmark
+    public Date simpleDateFormat() throws ParseException {
+        return dateFormat.parse(FIRST_SEEN + " " + Util.gmtNumberToString(SensorApiManager.GMT_TIMEZONE));
+    }
+
+    /**
+     * The device information parser as it was before it became single-pass: every missing field
+     * and unknown status throws an exception.
+     */
+    public static class DeviceInformation {
+
+        String id, uid, sn, gateway, category, status;
+        int index, messageCount, lostCount;
+        Date firstSeen, lastSeen;
+        boolean active;
+        IotDevice.PowerStatus networkStatus, batteryStatus, tamperStatus;
+        IotDevice.TemperatureStatus temperatureStatus;
+        Date lastInformationRetrievalDate;
+
+        void parse(JSONObject jsonObject) {
+            try { id = jsonObject.getString("id"); } catch (JSONException ignored) {}
+            try { uid = jsonObject.getString("uid"); } catch (JSONException ignored) {}
+            try { sn = jsonObject.getString("serial"); } catch (JSONException ignored) {}
+            try { gateway = jsonObject.getString("gateway"); } catch (JSONException ignored) {}
+            try { category = jsonObject.getString("category"); } catch (JSONException ignored) {}
+            try { index = jsonObject.getInt("index"); } catch (JSONException ignored) {}
+            try { firstSeen = SensorDateParser.DEFAULT.parse(jsonObject.getString("firstseen")); }
+            catch (JSONException | ParseException ignored) {}
+            try { lastSeen = SensorDateParser.DEFAULT.parse(jsonObject.getString("lastseen")); }
+            catch (JSONException | ParseException ignored) {}
+            try { active = jsonObject.getBoolean("active"); } catch (JSONException ignored) {}
+            try { status = jsonObject.getString("status"); } catch (JSONException ignored) {}
+            try { messageCount = jsonObject.getInt("msgs"); } catch (JSONException ignored) {}
+            try { lostCount = jsonObject.getInt("losts"); } catch (JSONException ignored) {}
+            try {
+                networkStatus = IotDevice.PowerStatus.valueOf(jsonObject.getString("network"));
+            } catch (JSONException | IllegalArgumentException ignored) {}
+            try {
+                batteryStatus = IotDevice.PowerStatus.valueOf(jsonObject.getString("battery"));
+            } catch (JSONException | IllegalArgumentException ignored) {}
+            try {
+                tamperStatus = IotDevice.PowerStatus.valueOf(jsonObject.getString("tamper"));
+            } catch (JSONException | IllegalArgumentException ignored) {}
+            try {
+                temperatureStatus = IotDevice.TemperatureStatus.valueOf(jsonObject.getString("temp"));
+            } catch (JSONException | IllegalArgumentException ignored) {}
+            lastInformationRetrievalDate = new Date();
+        }
+    }
+
+}
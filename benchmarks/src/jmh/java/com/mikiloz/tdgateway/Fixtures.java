@@ -0,0 +1,43 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Loads the JSON responses under {@code fixtures/}, shaped after the Sensor API responses.
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    static byte[] load(String name) {
+        InputStream input = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (input == null) throw new IllegalArgumentException("No fixture named " + name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) != -1; ) output.write(buffer, 0, read);
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try { input.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Wraps a fixture into a response, as Volley hands it to a request.
+     */
+    static NetworkResponse response(byte[] data) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json;charset=UTF-8");
+        return new NetworkResponse(200, data, headers, false);
+    }
+
+}
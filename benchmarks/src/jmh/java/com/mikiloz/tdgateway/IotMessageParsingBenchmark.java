@@ -0,0 +1,72 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.NetworkResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decodes a page of the messages history, through the {@code org.json} tree and through the
+ * streaming tokenizer.
+ *
+ * <p>A Volley request can't be instantiated outside of Android, so the {@code org.json} path is
+ * measured through {@link SensorJsonRequest#parseJsonArray(NetworkResponse)}, which is what
+ * {@link SensorJsonRequest#parseNetworkResponse(NetworkResponse)} runs before caching.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IotMessageParsingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int pageSize;
+
+    private byte[] data;
+    private NetworkResponse response;
+
+    @Setup
+    public void setUp() {
+        data = Fixtures.load("messages-" + pageSize + ".json");
+        response = Fixtures.response(data);
+    }
+
+    @Benchmark
+    public JSONArray jsonArray() throws UnsupportedEncodingException, JSONException {
+        return SensorJsonRequest.parseJsonArray(response);
+    }
+
+    @Benchmark
+    public List<IotMessage> jsonArrayToMessages() throws UnsupportedEncodingException, JSONException {
+        JSONArray array = SensorJsonRequest.parseJsonArray(response);
+        List<IotMessage> messages = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            messages.add(IotDevice.parseIotMessage(array.getJSONObject(i), false));
+        }
+        return messages;
+    }
+
+    @Benchmark
+    public List<IotMessage> streamingToMessages() throws JsonTokenizer.MalformedJsonException {
+        return SensorStreamingRequest.parseItems(data, IotDevice.IOT_MESSAGE_PAGE_PARSER);
+    }
+
+    @Benchmark
+    public IotMessageBatch streamingToBatch() throws JsonTokenizer.MalformedJsonException {
+        return SensorStreamingRequest.parseItems(data, IotDevice.IOT_MESSAGE_BATCH_PARSER);
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.mikiloz.tdgateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decodes a message payload and builds a history endpoint, as done for every message and request.
+ * The endpoint is built with its {@link EndpointTemplate}, and with the string concatenation the
+ * template replaced, kept here as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UtilBenchmark {
+
+    private static final String PAYLOAD = "0a1b2c3d4e5f60718293a4b5";
+    private static final String[] PARAMS = {"amount", "until"};
+    private static final String[] VALUES = {"100", "1491398846000"};
+
+    private static final byte[] PAYLOAD_BYTES = PAYLOAD.getBytes(JsonTokenizer.UTF_8);
+    private final byte[] decoded = new byte[PAYLOAD.length() / 2];
+
+    @Benchmark
+    public byte[] decodeHex() {
+        return PayloadCodec.decodeHex(PAYLOAD);
+    }
+
+    @Benchmark
+    public byte[] decodeHexFromResponse() {
+        PayloadCodec.decodeHex(PAYLOAD_BYTES, 0, PAYLOAD_BYTES.length, decoded, 0);
+        return decoded;
+    }
+
+    @Benchmark
+    public String endpointTemplate() {
+        return SensorApiManager.DEVICE_MESSAGES_HISTORY_TEMPLATE.builder()
+                .param(100).param(1491398846000L).build();
+    }
+
+    @Benchmark
+    public String populateUrlWithParams() {
+        return populateUrlWithParams(SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT, PARAMS,
+                VALUES);
+    }
+
+    /**
+     * How request URLs were built before {@link EndpointTemplate}: the buffer is copied into a
+     * string for every parameter, and values aren't encoded.
+     */
+    private static String populateUrlWithParams(String url, String[] params, String[] values) {
+        StringBuilder sb = new StringBuilder(url);
+        for (int i = 0; i < params.length; i++) {
+            boolean firstParameter = sb.toString().equals(url);
+            if (values[i] != null)
+                sb.append(firstParameter ? "?" : "&").append(params[i]).append("=").append(values[i]);
+        }
+        return sb.toString();
+    }
+
+}
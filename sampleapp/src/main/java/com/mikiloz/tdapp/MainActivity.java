@@ -8,6 +8,7 @@ import android.widget.Toast;
 
 import com.mikiloz.tdgateway.IotDevice;
 import com.mikiloz.tdgateway.IotMessage;
+import com.mikiloz.tdgateway.SensorApiError;
 import com.mikiloz.tdgateway.SensorApiManager;
 
 import java.util.Arrays;
@@ -48,8 +49,8 @@ public class MainActivity extends AppCompatActivity {
                 },
                 new SensorApiManager.SensorApiErrorListener() {
                     @Override
-                    public void onError(String details) {
-                        System.out.println("Error");
+                    public void onError(SensorApiError error) {
+                        System.out.println("Error: " + error);
                     }
                 }
         );
@@ -79,8 +80,8 @@ public class MainActivity extends AppCompatActivity {
                 }
             }, new SensorApiManager.SensorApiErrorListener() {
                 @Override
-                public void onError(String details) {
-                    System.err.println("An error occurred: " + details);
+                public void onError(SensorApiError error) {
+                    System.err.println("An error occurred: " + error.getMessage());
                 }
             });
         } catch (SensorApiManager.CannotUseDeviceApiException e) {
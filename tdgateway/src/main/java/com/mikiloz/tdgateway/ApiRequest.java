@@ -0,0 +1,278 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A request to the Telecom Design Sensor API, independent of the HTTP client that sends it. An
+ * {@link HttpTransport} reads the request through the public getters, sends it and reports the
+ * outcome back through {@link #onResponse(int, Map, byte[])} or {@link #onFailure(Throwable)}.
+ *
+ * <p>The response is parsed on the thread that reports it, and the listeners are then called on
+ * the callback executor of the {@link SensorApiManager} that performed the request. Results and
+ * errors are reported with Volley's value types ({@link Response.Listener}, {@link VolleyError}),
+ * which don't need Android to run.</p>
+ * @param <T> The type of the parsed response.
+ */
+public abstract class ApiRequest<T> {
+
+    private static final String DEFAULT_BODY_CONTENT_TYPE =
+            "application/x-www-form-urlencoded; charset=UTF-8";
+
+    private final int method;
+    private final String url;
+    private final Response.Listener<T> listener;
+    private final Response.ErrorListener errorListener;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Executor delivery;
+    private volatile Runnable completionCallback;
+    private final List<OutcomeListener> outcomeListeners = new CopyOnWriteArrayList<>();
+    private volatile RetryHandler retryHandler;
+    private volatile int retryCount;
+    private SensorApiManager.Priority priority;
+
+    /**
+     * @param method One of the {@link Request.Method} constants.
+     */
+    ApiRequest(int method, String url, @Nullable Response.Listener<T> listener,
+               @Nullable Response.ErrorListener errorListener) {
+        this.method = method;
+        this.url = url;
+        this.listener = listener;
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Returns the HTTP method of this request.
+     * @return The method name, e.g. {@code "GET"}.
+     */
+    public String getMethod() {
+        switch (method) {
+            case Request.Method.POST: return "POST";
+            case Request.Method.PUT: return "PUT";
+            case Request.Method.DELETE: return "DELETE";
+            default: return "GET";
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Returns the body of this request.
+     * @return The body, or {@code null} if the request has none.
+     */
+    public @Nullable byte[] getBody() {
+        return null;
+    }
+
+    public String getBodyContentType() {
+        return DEFAULT_BODY_CONTENT_TYPE;
+    }
+
+    /**
+     * Reports the response to this request. Any status outside of the 2xx range is reported to the
+     * error listener, unless the request is sent again. Only the first outcome reported for an
+     * attempt counts, later ones are ignored.
+     * @param statusCode The HTTP status code.
+     * @param headers The response headers.
+     * @param body The response body, empty if there was none.
+     */
+    public final void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        if (!completed.compareAndSet(false, true)) return;
+        onCompleted();
+        if (retrying(statusCode, headers, null)) return;
+        for (OutcomeListener observer : outcomeListeners) observer.onResponse(statusCode, headers, body);
+        NetworkResponse response = new NetworkResponse(statusCode, body, headers, false);
+        if (statusCode < 200 || statusCode > 299) {
+            postError(statusCode == 401 || statusCode == 403
+                    ? new AuthFailureError(response) : new ServerError(response));
+            return;
+        }
+        final T result;
+        try {
+            result = parseResponse(response);
+        } catch (VolleyError error) {
+            postError(error);
+            return;
+        } catch (RuntimeException e) {
+            postError(new ParseError(e));
+            return;
+        }
+        delivery().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverResponse(result);
+            }
+        });
+    }
+
+    /**
+     * Reports that this request couldn't be completed, e.g. because of a connection error. Only
+     * the first outcome reported for an attempt counts, later ones are ignored.
+     * @param cause The reason of the failure.
+     */
+    public final void onFailure(Throwable cause) {
+        if (!completed.compareAndSet(false, true)) return;
+        onCompleted();
+        if (retrying(-1, Collections.<String, String>emptyMap(), cause)) return;
+        for (OutcomeListener observer : outcomeListeners) observer.onFailure(cause);
+        if (cause instanceof VolleyError) postError((VolleyError) cause);
+        else if (cause instanceof SocketTimeoutException) postError(new TimeoutError());
+        else postError(new NoConnectionError(cause));
+    }
+
+    /**
+     * Turns a successful response into the result of this request.
+     * @throws VolleyError Usually a {@link com.android.volley.ParseError}, when the response can't
+     * be parsed.
+     */
+    abstract T parseResponse(NetworkResponse response) throws VolleyError;
+
+    void deliverResponse(T response) {
+        if (listener != null) listener.onResponse(response);
+    }
+
+    void deliverError(VolleyError error) {
+        if (errorListener != null) errorListener.onErrorResponse(error);
+    }
+
+    /**
+     * Sets the executor the listeners are called on. Set by {@link SensorApiManager} before the
+     * request is handed to the transport.
+     */
+    void setDelivery(Executor delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * Returns the lane this request is queued in.
+     * @return The priority, or {@code null} to use the default priority of its endpoint.
+     */
+    @Nullable SensorApiManager.Priority getPriority() {
+        return priority;
+    }
+
+    void setPriority(@Nullable SensorApiManager.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Sets an action to run as soon as the transport reports the outcome, before the response is
+     * parsed.
+     */
+    void setCompletionCallback(Runnable completionCallback) {
+        this.completionCallback = completionCallback;
+    }
+
+    /**
+     * Adds a listener that receives the outcome as reported by the transport, before this request
+     * parses it.
+     */
+    void addOutcomeListener(OutcomeListener outcomeListener) {
+        outcomeListeners.add(outcomeListener);
+    }
+
+    /**
+     * Sets the handler that decides whether a failed attempt is sent again, before the outcome is
+     * reported to the listeners.
+     */
+    void setRetryHandler(RetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    /**
+     * Returns how many times this request has been sent again after a failed attempt.
+     */
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Gets this request ready to be sent again: the next outcome reported counts, and the
+     * completion callback of the last attempt is dropped.
+     */
+    void prepareRetry() {
+        retryCount++;
+        completionCallback = null;
+        completed.set(false);
+    }
+
+    private boolean retrying(int statusCode, Map<String, String> headers, @Nullable Throwable cause) {
+        RetryHandler handler = retryHandler;
+        return handler != null && handler.onAttemptCompleted(this, statusCode, headers, cause);
+    }
+
+    private void onCompleted() {
+        Runnable callback = completionCallback;
+        if (callback != null) callback.run();
+    }
+
+    private void postError(final VolleyError error) {
+        delivery().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverError(error);
+            }
+        });
+    }
+
+    private Executor delivery() {
+        Executor executor = delivery;
+        return executor != null ? executor : DIRECT;
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Receives the raw outcome of a request, see {@link #addOutcomeListener(OutcomeListener)}.
+     */
+    interface OutcomeListener {
+        void onResponse(int statusCode, Map<String, String> headers, byte[] body);
+        void onFailure(Throwable cause);
+    }
+
+    /**
+     * Decides whether an attempt is retried, see {@link #setRetryHandler(RetryHandler)}.
+     */
+    interface RetryHandler {
+        /**
+         * Called when the transport reports the outcome of an attempt. To retry it, the handler
+         * calls {@link #prepareRetry()} and sends the request again.
+         * @param statusCode The HTTP status code, or -1 if the attempt failed without a response.
+         * @param cause The reason of the failure, or {@code null} if there was a response.
+         * @return Whether the request is retried, in which case the outcome isn't reported.
+         */
+        boolean onAttemptCompleted(ApiRequest<?> request, int statusCode, Map<String, String> headers,
+                                   @Nullable Throwable cause);
+    }
+
+}
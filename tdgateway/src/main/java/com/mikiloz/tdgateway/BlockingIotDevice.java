@@ -0,0 +1,204 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A blocking view of an {@link IotDevice}, for straight-line code on a JVM backend:
+ * <pre>
+ * List&lt;IotMessage&gt; messages = new BlockingIotDevice(device).fetchLatest(100, after);
+ * </pre>
+ * Every call goes through the same requests, parsers, caches and limits as the asynchronous
+ * {@link IotDevice} calls, and blocks the calling thread until the response is parsed. Failures are
+ * thrown as {@link SensorApiError}s.
+ *
+ * <p>Waiting threads hold no network resource: the requests are still sent by the manager's
+ * {@link HttpTransport}, within its concurrency limit. Run every device loop on its own task of
+ * {@link #newPerTaskExecutor()}, which uses a virtual thread per task on Java 21 and later, so that
+ * tens of thousands of devices can be polled concurrently by a handful of carrier threads.</p>
+ *
+ * <p>Never call these methods on the callback executor of the {@link SensorApiManager}: the
+ * response would have to be delivered on the thread waiting for it. On Android, that means never on
+ * the main thread.</p>
+ */
+public class BlockingIotDevice {
+
+    private final IotDevice device;
+    private final long timeout;
+
+    public BlockingIotDevice(IotDevice device) {
+        this(device, 0);
+    }
+
+    /**
+     * @param timeout How long a call may block, in milliseconds, or 0 to wait as long as it takes.
+     *                A call that times out throws a {@link SensorApiError.Kind#TIMEOUT} error, but
+     *                its request may still complete in the background.
+     */
+    public BlockingIotDevice(IotDevice device, long timeout) {
+        if (timeout < 0) throw new IllegalArgumentException();
+        this.device = device;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread when the JVM supports them
+     * (Java 21 and later), or on a new daemon platform thread otherwise, e.g. on Android.
+     * @return The executor. Shut it down when done.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TDGateway-device-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public IotDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Obtains an authentication token from the Device API. See
+     * {@link IotDevice#obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @throws SensorApiError When the token couldn't be obtained, including with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the device serial number or device key
+     * are missing.
+     */
+    public void authenticate() throws SensorApiError, InterruptedException {
+        await(device.obtainAuthTokenAsync());
+    }
+
+    /**
+     * Obtains the information of the device from the Developer API. See
+     * {@link IotDevice#obtainIotDeviceInformation(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void fetchInformation() throws SensorApiError, InterruptedException {
+        await(device.obtainIotDeviceInformationAsync());
+    }
+
+    /**
+     * Fetches a certain amount of the oldest messages until a certain Date. See
+     * {@link IotDevice#getMessagesHistory(int, Date, IotDevice.IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public List<IotMessage> fetchHistory(int amount, @Nullable Date until)
+            throws SensorApiError, InterruptedException {
+        return await(device.getMessagesHistoryAsync(amount, until));
+    }
+
+    /**
+     * Fetches a certain amount of the latest messages after a certain Date. See
+     * {@link IotDevice#getLatestMessages(int, Date, IotDevice.IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public List<IotMessage> fetchLatest(int amount, @Nullable Date after)
+            throws SensorApiError, InterruptedException {
+        return await(device.getLatestMessagesAsync(amount, after));
+    }
+
+    /**
+     * Fetches a certain amount of the oldest RAW messages before a certain Date. See
+     * {@link IotDevice#getRawMessagesHistory(int, Date, IotDevice.RawMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public List<RawMessage> fetchRawHistory(int limit, @Nullable Date before)
+            throws SensorApiError, InterruptedException {
+        return await(device.getRawMessagesHistoryAsync(limit, before));
+    }
+
+    /**
+     * Fetches the oldest messages until a certain Date, as a columnar batch. See
+     * {@link IotDevice#getMessagesHistoryBatch(int, Date, IotDevice.IotMessageBatchReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public IotMessageBatch fetchHistoryBatch(int amount, @Nullable Date until)
+            throws SensorApiError, InterruptedException {
+        return await(device.getMessagesHistoryBatchAsync(amount, until));
+    }
+
+    /**
+     * Fetches the oldest RAW messages before a certain Date, as a columnar batch. See
+     * {@link IotDevice#getRawMessagesHistoryBatch(int, Date, IotDevice.RawMessageBatchReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public RawMessageBatch fetchRawHistoryBatch(int limit, @Nullable Date before)
+            throws SensorApiError, InterruptedException {
+        return await(device.getRawMessagesHistoryBatchAsync(limit, before));
+    }
+
+    /**
+     * Fetches the child devices of the device. See
+     * {@link IotDevice#getDevices(IotDevice.DevicesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public List<IotDevice> fetchDevices() throws SensorApiError, InterruptedException {
+        return await(device.getDevicesAsync());
+    }
+
+    /**
+     * Clears all messages within the device. See
+     * {@link IotDevice#clearMessages(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void clearMessages() throws SensorApiError, InterruptedException {
+        await(device.clearMessagesAsync());
+    }
+
+    /**
+     * Changes the functional status of the device. See
+     * {@link IotDevice#changeFunctionalStatus(String, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void changeFunctionalStatus(@Nullable String value) throws SensorApiError, InterruptedException {
+        await(device.changeFunctionalStatusAsync(value));
+    }
+
+    /**
+     * Sets the "active" flag of the device. See
+     * {@link IotDevice#setActiveFlag(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void setActiveFlag(boolean value) throws SensorApiError, InterruptedException {
+        await(device.setActiveFlagAsync(value));
+    }
+
+    /**
+     * Sets the "monitoring" flag of the device. See
+     * {@link IotDevice#setMonitoringFlag(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void setMonitoringFlag(boolean value) throws SensorApiError, InterruptedException {
+        await(device.setMonitoringFlagAsync(value));
+    }
+
+    /**
+     * Sets the "bidir" value of the device. See
+     * {@link IotDevice#setBidirValue(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     */
+    public void setBidirValue(boolean value) throws SensorApiError, InterruptedException {
+        await(device.setBidirValueAsync(value));
+    }
+
+    private <T> T await(SensorFuture<T> future) throws SensorApiError, InterruptedException {
+        try {
+            return timeout == 0 ? future.get() : future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (SensorApiError) e.getCause();
+        } catch (TimeoutException e) {
+            throw new SensorApiError(SensorApiError.Kind.TIMEOUT,
+                    "No response within " + timeout + " ms", -1, e);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Parses the children of a gateway, as returned by the Device API, into devices reconciled with the
+ * ones already known, so that refreshing the children of a large gateway costs only what changed.
+ *
+ * <p>A child whose JSON is byte for byte the same as in the previous response is taken from the
+ * {@link Cache} of the gateway without being parsed. Any other child is parsed once, into a detached
+ * device, and matched by the serial number, then the ID, it was parsed with, against the previous
+ * children of the gateway and the devices of the manager. Only children that match nothing become
+ * new devices.</p>
+ *
+ * <p>Parsing happens on the thread the response arrives on, while the devices already known may be
+ * in use on others: they are left untouched until the callback executor of the manager, where the
+ * new information is copied into them right before they are handed over. Children can be handed
+ * over in chunks as they are parsed, before the whole response has been. The children that didn't
+ * fill a chunk are left to the response listener, see {@link #complete(List)}.</p>
+ *
+ * <p>A parser is meant for a single request.</p>
+ */
+class ChildDeviceParser implements SensorStreamingRequest.PageParser<List<IotDevice>> {
+
+    /** The update of a child whose JSON didn't change: only its retrieval date is refreshed. */
+    private static final Object UNCHANGED = new Object();
+
+    private final SensorApiManager sensorApiManager;
+    private final Cache previous;
+    private final int chunkSize;
+    private final IotDevice.DevicesReceivedListener chunkListener;
+    // Kept when a malformed response falls back to org.json, so the children parsed so far are found.
+    private Cache next;
+    // What to apply to every child of the page on the callback executor: the detached device it was
+    // parsed into, UNCHANGED, or null for a new device.
+    private final List<Object> updates = new ArrayList<>();
+    private volatile int streamed;
+
+    /**
+     * @param previous The children of the gateway received last time.
+     * @param chunkSize How many children are handed over at once, or 0 to hand over none while
+     *                  parsing.
+     * @param chunkListener Receives the chunks, unless {@code chunkSize} is 0.
+     */
+    ChildDeviceParser(SensorApiManager sensorApiManager, Cache previous, int chunkSize,
+                      @Nullable IotDevice.DevicesReceivedListener chunkListener) {
+        if (chunkSize < 0 || (chunkSize > 0 && chunkListener == null))
+            throw new IllegalArgumentException();
+        this.sensorApiManager = sensorApiManager;
+        this.previous = previous;
+        this.chunkSize = chunkSize;
+        this.chunkListener = chunkListener;
+    }
+
+    @Override
+    public List<IotDevice> newPage(int sizeHint) {
+        if (next == null) next = new Cache(Collections.<IotDevice>emptyList());
+        updates.clear();
+        return new ArrayList<>(sizeHint > 0 ? sizeHint : Math.max(16, previous.devices.size()));
+    }
+
+    @Override
+    public void parse(JsonTokenizer tokenizer, List<IotDevice> page)
+            throws JsonTokenizer.MalformedJsonException {
+
+        if (tokenizer.peek() != JsonTokenizer.Token.BEGIN_OBJECT) {
+            tokenizer.skipValue();
+            return;
+        }
+        int start = tokenizer.position();
+        tokenizer.skipValue();
+        Content content = new Content(tokenizer.data(), start, tokenizer.position() - start);
+
+        IotDevice device = previous.byContent.get(content);
+        Object update = UNCHANGED;
+        if (device == null) {
+            content = content.copy();
+            IotDevice parsed = new IotDevice(null, null, null, sensorApiManager);
+            IotDevice.parseIotDeviceInformation(content.tokenizer(), parsed);
+            device = reconcile(parsed);
+            update = device == parsed ? null : parsed;
+        }
+        next.byContent.put(content, device);
+        add(device, update, page);
+    }
+
+    @Override
+    public void parse(JSONObject object, boolean retainJson, List<IotDevice> page) {
+        IotDevice parsed = new IotDevice(null, null, null, sensorApiManager);
+        IotDevice.parseIotDeviceInformation(object, parsed);
+        IotDevice device = reconcile(parsed);
+        add(device, device == parsed ? null : parsed, page);
+    }
+
+    /**
+     * Applies the new information of the children of a parsed response that weren't handed over in
+     * a chunk, and returns them. Must run on the callback executor.
+     */
+    List<IotDevice> complete(List<IotDevice> page) {
+        int from = Math.min(streamed, page.size());
+        List<IotDevice> rest = page.subList(from, page.size());
+        apply(rest, updates.subList(from, updates.size()));
+        return rest;
+    }
+
+    /**
+     * Returns the cache of the children of a completed response, to reconcile the next one with.
+     */
+    Cache toCache(List<IotDevice> page) {
+        Cache cache = new Cache(Collections.unmodifiableList(new ArrayList<>(page)));
+        // Only the content of the children still there is kept.
+        for (Map.Entry<Content, IotDevice> entry : next.byContent.entrySet()) {
+            if (cache.bySerial.get(entry.getValue().getSerial()) == entry.getValue()
+                    || cache.byId.get(entry.getValue().getId()) == entry.getValue())
+                cache.byContent.put(entry.getKey(), entry.getValue());
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the known device a detached one matches, or the detached one if it matches none.
+     */
+    private IotDevice reconcile(IotDevice parsed) {
+        String sn = parsed.getSerial(), id = parsed.getId();
+        IotDevice device = null;
+        if (sn != null) {
+            device = next.bySerial.get(sn);
+            if (device == null) device = previous.bySerial.get(sn);
+            if (device == null) device = sensorApiManager.findIotDeviceBySerial(sn);
+        }
+        if (device == null && id != null) {
+            device = next.byId.get(id);
+            if (device == null) device = previous.byId.get(id);
+            if (device == null) device = sensorApiManager.findIotDeviceById(id);
+        }
+        if (device == null) device = parsed;
+        // A known device still has its old identifiers until updated, the parsed ones are indexed.
+        next.index(sn, id, device);
+        return device;
+    }
+
+    private void add(IotDevice device, @Nullable Object update, List<IotDevice> page) {
+        page.add(device);
+        updates.add(update);
+        // A fallback parse goes over the children streamed by the failed one again.
+        if (chunkSize == 0 || page.size() - streamed < chunkSize) return;
+        final List<IotDevice> chunk =
+                Collections.unmodifiableList(new ArrayList<>(page.subList(streamed, page.size())));
+        final List<Object> chunkUpdates = new ArrayList<>(updates.subList(streamed, page.size()));
+        streamed = page.size();
+        sensorApiManager.deliver(new Runnable() {
+            @Override
+            public void run() {
+                apply(chunk, chunkUpdates);
+                chunkListener.onDevicesReceived(chunk);
+            }
+        });
+    }
+
+    private void apply(List<IotDevice> devices, List<Object> updates) {
+        for (int i = 0; i < devices.size(); i++) {
+            IotDevice device = devices.get(i);
+            Object update = updates.get(i);
+            if (update == UNCHANGED) {
+                device.markInformationRetrieved();
+            } else if (update != null) {
+                device.copyInformation((IotDevice) update);
+                sensorApiManager.onIotDeviceInformationChanged(device);
+            }
+        }
+    }
+
+    /**
+     * The children of a gateway received last time, indexed by serial number, ID and JSON content.
+     * Immutable once built.
+     */
+    static class Cache {
+
+        static final Cache EMPTY = new Cache(Collections.<IotDevice>emptyList());
+
+        final List<IotDevice> devices;
+        private final Map<String, IotDevice> bySerial = new HashMap<>();
+        private final Map<String, IotDevice> byId = new HashMap<>();
+        private final Map<Content, IotDevice> byContent = new HashMap<>();
+
+        private Cache(List<IotDevice> devices) {
+            this.devices = devices;
+            for (IotDevice device : devices) index(device.getSerial(), device.getId(), device);
+        }
+
+        private void index(@Nullable String sn, @Nullable String id, IotDevice device) {
+            if (sn != null) bySerial.put(sn, device);
+            if (id != null) byId.put(id, device);
+        }
+    }
+
+    /**
+     * The JSON of a child, compared byte for byte. Looked up as a slice of the response, and kept
+     * as a copy.
+     */
+    private static class Content {
+
+        private final byte[] data;
+        private final int offset, length, hash;
+
+        Content(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) hash = 31 * hash + data[i];
+            this.hash = hash;
+        }
+
+        Content copy() {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            return new Content(copy, 0, length);
+        }
+
+        JsonTokenizer tokenizer() {
+            return new JsonTokenizer(data, offset, length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Content)) return false;
+            Content other = (Content) o;
+            if (other.hash != hash || other.length != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (data[offset + i] != other.data[other.offset + i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
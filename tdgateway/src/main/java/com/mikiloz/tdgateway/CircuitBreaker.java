@@ -0,0 +1,66 @@
+package com.mikiloz.tdgateway;
+
+
+/**
+ * A circuit breaker: after a given amount of consecutive failures, requests are refused for a
+ * while instead of being sent to a server that is down. Once that time has passed, a single probe
+ * request is let through: its success closes the circuit again, its failure opens it for another
+ * while. Not thread-safe, callers synchronize.
+ */
+class CircuitBreaker {
+
+    private final int failureThreshold;
+    private int failures;
+    private boolean open, probing;
+    private long openUntil;
+
+    /**
+     * @param failureThreshold The amount of consecutive failures that opens the circuit, at least
+     *                         1.
+     */
+    CircuitBreaker(int failureThreshold) {
+        if (failureThreshold < 1) throw new IllegalArgumentException();
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Returns whether a request may be sent. Once the circuit is open, the first request asked
+     * for after the open period becomes the probe.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return Whether the request may be sent.
+     */
+    boolean allowRequest(long now) {
+        if (!open) return true;
+        if (probing || now - openUntil < 0) return false;
+        probing = true;
+        return true;
+    }
+
+    void onSuccess() {
+        failures = 0;
+        open = probing = false;
+    }
+
+    /**
+     * Records a failure.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @param openDuration How long the circuit stays open if this failure opens it, in nanoseconds.
+     * @return Whether the circuit was opened by this failure.
+     */
+    boolean onFailure(long now, long openDuration) {
+        failures++;
+        if (open ? !probing : failures < failureThreshold) return false;
+        open = true;
+        probing = false;
+        openUntil = now + openDuration;
+        return true;
+    }
+
+    /**
+     * Returns whether requests are being refused, i.e. the circuit is open and not probing.
+     */
+    boolean isOpen(long now) {
+        return open && (probing || now - openUntil < 0);
+    }
+
+}
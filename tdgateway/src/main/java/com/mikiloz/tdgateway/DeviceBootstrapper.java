@@ -0,0 +1,148 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+
+/**
+ * Authenticates and retrieves the information of a batch of devices, keeping a bounded amount of
+ * requests in flight. Every finished request immediately dispatches the next pending one, so the
+ * pipeline stays full without flooding the request queue.
+ */
+class DeviceBootstrapper {
+
+    private final SensorApiManager sensorApiManager;
+    private final List<IotDevice> devices;
+    private final int concurrency;
+    private final SensorApiManager.RegistrationListener registrationListener;
+
+    private final Queue<Step> pendingSteps = new ArrayDeque<>();
+    private final Map<IotDevice, Integer> remainingSteps = new HashMap<>();
+    private final Set<IotDevice> failed = new LinkedHashSet<>();
+    private int inFlight, completed;
+
+    DeviceBootstrapper(SensorApiManager sensorApiManager, List<IotDevice> devices, int concurrency,
+                       @Nullable SensorApiManager.RegistrationListener registrationListener) {
+        this.sensorApiManager = sensorApiManager;
+        this.devices = devices;
+        this.concurrency = concurrency;
+        this.registrationListener = registrationListener;
+    }
+
+    void start() {
+        boolean retrieveInformation = sensorApiManager.hasDeveloperAuthToken();
+        synchronized (this) {
+            for (IotDevice device : devices) {
+                int steps = 0;
+                // Authentication goes first, queries against the Device API depend on it.
+                if (device.getSerial() != null && device.getKey() != null) {
+                    pendingSteps.add(new Step(device, true));
+                    steps++;
+                }
+                if (retrieveInformation) {
+                    pendingSteps.add(new Step(device, false));
+                    steps++;
+                }
+                if (steps == 0) completed++;
+                else remainingSteps.put(device, steps);
+            }
+        }
+        if (pendingSteps.isEmpty()) {
+            if (registrationListener == null) return;
+            // Reported on the callback executor, like when there are steps to wait for.
+            final int completedNow = completed;
+            sensorApiManager.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    registrationListener.onProgress(completedNow, devices.size());
+                    registrationListener.onRegistrationComplete(devices, new ArrayList<>(failed));
+                }
+            });
+            return;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Step step;
+            synchronized (this) {
+                if (inFlight >= concurrency || pendingSteps.isEmpty()) return;
+                step = pendingSteps.poll();
+                inFlight++;
+            }
+            step.perform();
+        }
+    }
+
+    private void onStepFinished(IotDevice device, boolean success) {
+        boolean deviceDone, allDone;
+        int completedNow;
+        synchronized (this) {
+            inFlight--;
+            if (!success) failed.add(device);
+            int remaining = remainingSteps.get(device) - 1;
+            deviceDone = remaining == 0;
+            if (deviceDone) {
+                remainingSteps.remove(device);
+                completed++;
+            } else {
+                remainingSteps.put(device, remaining);
+            }
+            completedNow = completed;
+            allDone = remainingSteps.isEmpty();
+        }
+        if (registrationListener != null) {
+            if (deviceDone) registrationListener.onProgress(completedNow, devices.size());
+            if (allDone) registrationListener.onRegistrationComplete(devices, new ArrayList<>(failed));
+        }
+        if (!allDone) dispatch();
+    }
+
+    private class Step implements Runnable, SensorApiManager.SensorApiErrorListener {
+
+        private final IotDevice device;
+        private final boolean authentication;
+
+        Step(IotDevice device, boolean authentication) {
+            this.device = device;
+            this.authentication = authentication;
+        }
+
+        void perform() {
+            try {
+                if (authentication) device.obtainAuthToken(this, this);
+                else device.obtainIotDeviceInformation(this, this);
+            } catch (SensorApiManager.CannotUseDeveloperApiException
+                    | IotDevice.MissingInformationException e) {
+                // Not reported on the calling thread, which may be the one start() was called on.
+                sensorApiManager.deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStepFinished(device, false);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void run() {
+            onStepFinished(device, true);
+        }
+
+        @Override
+        public void onError(SensorApiError error) {
+            onStepFinished(device, false);
+        }
+
+    }
+
+}
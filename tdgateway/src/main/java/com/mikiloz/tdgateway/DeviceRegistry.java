@@ -0,0 +1,179 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * The devices of a {@link SensorApiManager}, indexed by ID, serial number, UID and gateway.
+ *
+ * <p>Lookups never lock and take constant time, whatever the size of the fleet, so that incoming
+ * data can be routed to its device right away. Devices are added, removed and re-indexed under a
+ * lock, since that happens far less often. A device is indexed by the identifiers it has when added,
+ * and re-indexed when its information is retrieved from the Developer API, which may fill in or
+ * change them.</p>
+ */
+class DeviceRegistry {
+
+    private final ConcurrentMap<IotDevice, Keys> devices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IotDevice> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IotDevice> bySerial = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IotDevice> byUid = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<IotDevice>> byGateway = new ConcurrentHashMap<>();
+    // The devices that lost an index entry to another device with the same identifier, to point
+    // the entry back at once it is freed.
+    private final Set<IotDevice> shadowed = new HashSet<>();
+
+    /**
+     * Adds a device. A device already registered under one of its identifiers is replaced in that
+     * index, but stays registered, and takes the place back once the added device is removed or
+     * re-indexed under other identifiers.
+     * @return Whether the device wasn't registered yet.
+     */
+    synchronized boolean add(IotDevice device) {
+        if (devices.containsKey(device)) return false;
+        Keys keys = new Keys(device);
+        devices.put(device, keys);
+        index(device, keys);
+        return true;
+    }
+
+    /**
+     * Removes a device.
+     * @return Whether the device was registered.
+     */
+    synchronized boolean remove(IotDevice device) {
+        Keys keys = devices.remove(device);
+        if (keys == null) return false;
+        shadowed.remove(device);
+        unindex(device, keys);
+        return true;
+    }
+
+    /**
+     * Indexes a device again by its current identifiers. Does nothing if it isn't registered.
+     */
+    synchronized void reindex(IotDevice device) {
+        Keys previous = devices.get(device);
+        if (previous == null) return;
+        Keys keys = new Keys(device);
+        if (keys.equals(previous)) return;
+        devices.put(device, keys);
+        unindex(device, previous);
+        index(device, keys);
+    }
+
+    boolean contains(IotDevice device) {
+        return devices.containsKey(device);
+    }
+
+    int size() {
+        return devices.size();
+    }
+
+    /**
+     * Returns a read-only live view of every registered device, in no particular order.
+     */
+    Collection<IotDevice> all() {
+        return Collections.unmodifiableSet(devices.keySet());
+    }
+
+    @Nullable IotDevice getById(String id) {
+        return byId.get(id);
+    }
+
+    @Nullable IotDevice getBySerial(String sn) {
+        return bySerial.get(sn);
+    }
+
+    @Nullable IotDevice getByUid(String uid) {
+        return byUid.get(uid);
+    }
+
+    /**
+     * Returns a read-only view of the registered devices behind a gateway. The view is live once
+     * a device of that gateway has been registered.
+     */
+    Collection<IotDevice> getChildren(String gateway) {
+        Set<IotDevice> children = byGateway.get(gateway);
+        return children == null
+                ? Collections.<IotDevice>emptySet() : Collections.unmodifiableSet(children);
+    }
+
+    private void index(IotDevice device, Keys keys) {
+        if (keys.id != null) shadow(byId.put(keys.id, device), device);
+        if (keys.sn != null) shadow(bySerial.put(keys.sn, device), device);
+        if (keys.uid != null) shadow(byUid.put(keys.uid, device), device);
+        if (keys.gateway != null) {
+            Set<IotDevice> children = byGateway.get(keys.gateway);
+            if (children == null) {
+                children = Collections.newSetFromMap(new ConcurrentHashMap<IotDevice, Boolean>());
+                byGateway.put(keys.gateway, children);
+            }
+            children.add(device);
+        }
+    }
+
+    private void unindex(IotDevice device, Keys keys) {
+        boolean id = keys.id != null && byId.remove(keys.id, device);
+        boolean sn = keys.sn != null && bySerial.remove(keys.sn, device);
+        boolean uid = keys.uid != null && byUid.remove(keys.uid, device);
+        if (keys.gateway != null) {
+            Set<IotDevice> children = byGateway.get(keys.gateway);
+            // The emptied set is kept, so that views of it stay live.
+            if (children != null) children.remove(device);
+        }
+        if (!id && !sn && !uid) return;
+        // Another registered device with one of the freed identifiers takes its place.
+        for (IotDevice other : shadowed) {
+            Keys otherKeys = devices.get(other);
+            if (id && keys.id.equals(otherKeys.id)) byId.putIfAbsent(keys.id, other);
+            if (sn && keys.sn.equals(otherKeys.sn)) bySerial.putIfAbsent(keys.sn, other);
+            if (uid && keys.uid.equals(otherKeys.uid)) byUid.putIfAbsent(keys.uid, other);
+        }
+    }
+
+    private void shadow(@Nullable IotDevice previous, IotDevice device) {
+        if (previous != null && previous != device) shadowed.add(previous);
+    }
+
+    /**
+     * The identifiers a device is indexed by, kept to unindex it after they change.
+     */
+    private static class Keys {
+
+        final String id, sn, uid, gateway;
+
+        Keys(IotDevice device) {
+            id = device.getId();
+            sn = device.getSerial();
+            uid = device.getUid();
+            gateway = device.getGateway();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Keys)) return false;
+            Keys other = (Keys) o;
+            return equal(id, other.id) && equal(sn, other.sn) && equal(uid, other.uid)
+                    && equal(gateway, other.gateway);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { id, sn, uid, gateway });
+        }
+
+        private static boolean equal(@Nullable String a, @Nullable String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * The identification of a device to be registered in bulk through
+ * {@link SensorApiManager#registerDevices}. Either the key (for the Device API) or the ID (for the
+ * Developer API) may be missing, as with the single device constructors of the manager.
+ */
+public class DeviceSpec {
+
+    private final String id, sn, key;
+
+    public DeviceSpec(@Nullable String id, String sn, @Nullable String key) {
+        this.id = id;
+        this.sn = sn;
+        this.key = key;
+    }
+
+    public static DeviceSpec forDeviceApi(String sn, String key) {
+        return new DeviceSpec(null, sn, key);
+    }
+
+    public static DeviceSpec forDeveloperApi(String id, String sn) {
+        return new DeviceSpec(id, sn, null);
+    }
+
+    public @Nullable String getId() {
+        return id;
+    }
+
+    public String getSerial() {
+        return sn;
+    }
+
+    public @Nullable String getKey() {
+        return key;
+    }
+
+}
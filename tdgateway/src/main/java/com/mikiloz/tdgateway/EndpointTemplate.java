@@ -0,0 +1,168 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * An endpoint of the Sensor API along with the query parameters it takes, compiled once so that
+ * building a request URL only appends to a reused buffer:
+ * <pre>
+ * String url = DEVICE_MESSAGES_HISTORY_TEMPLATE.builder().param(amount).skip().build();
+ * </pre>
+ * Parameters are given in the order they were declared in, each one either with a value or
+ * skipped, and only the final URL is allocated. Numbers are appended as is, text is
+ * percent-encoded as UTF-8, leaving only the unreserved characters of RFC 3986 untouched.
+ */
+final class EndpointTemplate {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final ThreadLocal<Builder> BUILDERS = new ThreadLocal<Builder>() {
+        @Override
+        protected Builder initialValue() {
+            return new Builder();
+        }
+    };
+
+    private final String url;
+    // The text in front of every parameter, whether it comes first or not, e.g. "?sn=" or "&sn=".
+    private final String[] firstPrefixes, nextPrefixes;
+
+    EndpointTemplate(String url, String... params) {
+        this.url = url;
+        firstPrefixes = new String[params.length];
+        nextPrefixes = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            firstPrefixes[i] = "?" + params[i] + "=";
+            nextPrefixes[i] = "&" + params[i] + "=";
+        }
+    }
+
+    /**
+     * Returns the URL of the endpoint, without any parameter.
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * Starts building a URL of this endpoint. The builder is the one of the calling thread, reused
+     * from URL to URL: it must be built before building another one.
+     */
+    Builder builder() {
+        return BUILDERS.get().reset(this);
+    }
+
+    /**
+     * Appends text percent-encoded as UTF-8.
+     */
+    static void appendEncoded(CharSequence text, StringBuilder sb) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append(c);
+            } else if (c < 0x80) {
+                appendEncodedByte(c, sb);
+            } else if (c < 0x800) {
+                appendEncodedByte(0xc0 | (c >> 6), sb);
+                appendEncodedByte(0x80 | (c & 0x3f), sb);
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                appendEncodedByte(0xf0 | (codePoint >> 18), sb);
+                appendEncodedByte(0x80 | ((codePoint >> 12) & 0x3f), sb);
+                appendEncodedByte(0x80 | ((codePoint >> 6) & 0x3f), sb);
+                appendEncodedByte(0x80 | (codePoint & 0x3f), sb);
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // An unpaired surrogate, encoded as '?' like String.getBytes() does.
+                appendEncodedByte('?', sb);
+            } else {
+                appendEncodedByte(0xe0 | (c >> 12), sb);
+                appendEncodedByte(0x80 | ((c >> 6) & 0x3f), sb);
+                appendEncodedByte(0x80 | (c & 0x3f), sb);
+            }
+        }
+    }
+
+    private static void appendEncodedByte(int b, StringBuilder sb) {
+        sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+
+    /**
+     * Appends the parameters of a URL, one after another, to a buffer reused by every URL built on
+     * the same thread.
+     */
+    static final class Builder {
+
+        private final StringBuilder sb = new StringBuilder(128);
+        private EndpointTemplate template;
+        private int index;
+        private boolean hasQuery;
+
+        private Builder() {}
+
+        private Builder reset(EndpointTemplate template) {
+            this.template = template;
+            sb.setLength(0);
+            sb.append(template.url);
+            index = 0;
+            hasQuery = false;
+            return this;
+        }
+
+        /**
+         * Sets the next parameter, percent-encoding it.
+         * @param value The value, or {@code null} to leave the parameter out.
+         */
+        Builder param(@Nullable CharSequence value) {
+            if (value == null) return skip();
+            appendEncoded(value, nextParam());
+            return this;
+        }
+
+        Builder param(long value) {
+            nextParam().append(value);
+            return this;
+        }
+
+        Builder param(boolean value) {
+            nextParam().append(value);
+            return this;
+        }
+
+        /**
+         * Leaves the next parameter out.
+         */
+        Builder skip() {
+            checkIndex();
+            index++;
+            return this;
+        }
+
+        /**
+         * Returns the URL.
+         * @throws IllegalStateException When some parameters were neither set nor skipped.
+         */
+        String build() {
+            if (index != template.firstPrefixes.length)
+                throw new IllegalStateException("Expected " + template.firstPrefixes.length
+                        + " parameters, got " + index);
+            return sb.toString();
+        }
+
+        private StringBuilder nextParam() {
+            checkIndex();
+            sb.append(hasQuery ? template.nextPrefixes[index] : template.firstPrefixes[index]);
+            hasQuery = true;
+            index++;
+            return sb;
+        }
+
+        private void checkIndex() {
+            if (index == template.firstPrefixes.length)
+                throw new IllegalStateException("Too many parameters for " + template.url);
+        }
+    }
+
+}
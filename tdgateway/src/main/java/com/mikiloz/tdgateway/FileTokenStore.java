@@ -0,0 +1,95 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A {@link TokenStore} that keeps one small file per device serial number inside a directory, with
+ * an in-memory copy in front of it so that lookups don't touch the disk more than once.
+ */
+public class FileTokenStore implements TokenStore {
+
+    private static final String FILE_SUFFIX = ".token";
+    private static final String CHARSET = "UTF-8";
+
+    private final File directory;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public FileTokenStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public @Nullable Entry get(String sn) {
+        Entry entry = entries.get(sn);
+        if (entry != null) return entry;
+        entry = read(fileFor(sn));
+        if (entry != null) entries.putIfAbsent(sn, entry);
+        return entry;
+    }
+
+    @Override
+    public void put(String sn, Entry entry) {
+        entries.put(sn, entry);
+        if (!directory.isDirectory() && !directory.mkdirs()) return;
+        File file = fileFor(sn);
+        File temporary = new File(directory, file.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporary), CHARSET);
+            writer.write(entry.getExpirationTime() + "\n" + entry.getToken());
+            writer.close();
+            writer = null;
+            if (!temporary.renameTo(file)) temporary.delete();
+        } catch (IOException e) {
+            temporary.delete();
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    @Override
+    public void remove(String sn) {
+        entries.remove(sn);
+        fileFor(sn).delete();
+    }
+
+    private File fileFor(String sn) {
+        return new File(directory, Util.toFileName(sn) + FILE_SUFFIX);
+    }
+
+    private static @Nullable Entry read(File file) {
+        if (!file.isFile()) return null;
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), CHARSET);
+            StringBuilder contents = new StringBuilder();
+            char[] buffer = new char[256];
+            for (int read; (read = reader.read(buffer)) != -1; ) contents.append(buffer, 0, read);
+            int separator = contents.indexOf("\n");
+            if (separator < 0) return null;
+            return new Entry(contents.substring(separator + 1),
+                    Long.parseLong(contents.substring(0, separator)));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(@Nullable java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try { closeable.close(); } catch (IOException ignored) {}
+    }
+
+}
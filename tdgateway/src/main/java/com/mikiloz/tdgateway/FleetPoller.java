@@ -0,0 +1,250 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Polls every device of a {@link SensorApiManager} for new messages through a
+ * {@link MessageSyncEngine}, whose subscribers receive them. Devices added to the manager while
+ * polling are picked up right away, and devices removed with
+ * {@link SensorApiManager#removeIotDevice(IotDevice)} stop being polled.
+ *
+ * <p>The first poll of every device happens at a random time within the base interval, and every
+ * following one is jittered, so that a fleet registered at once doesn't hit the API at once. The
+ * interval adapts to each device: it is halved, down to the minimum interval, after a poll that
+ * brought new messages, and it grows by half, up to the maximum interval, after a poll that brought
+ * none. A failed poll doubles it. Devices that can't use the Device API yet, e.g. still
+ * authenticating, are retried at their current interval.</p>
+ *
+ * <p>Polls are scheduled on the background thread of the manager, and their outcome is delivered
+ * on the callback executor of the manager.</p>
+ */
+public class FleetPoller {
+
+    private static final long DEFAULT_BASE_INTERVAL = 60 * 1000L;
+    private static final long DEFAULT_MIN_INTERVAL = 10 * 1000L;
+    private static final long DEFAULT_MAX_INTERVAL = 15 * 60 * 1000L;
+    private static final double DEFAULT_JITTER = 0.2;
+
+    private final SensorApiManager sensorApiManager;
+    private final MessageSyncEngine syncEngine;
+    private final ConcurrentMap<IotDevice, Poll> polls = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private long baseInterval = DEFAULT_BASE_INTERVAL;
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+    private double jitter = DEFAULT_JITTER;
+    private boolean running;
+    private MessageSyncEngine.SyncListener syncListener;
+
+    private final SensorApiManager.FleetListener fleetListener = new SensorApiManager.FleetListener() {
+        @Override
+        public void onIotDevicesAdded(Collection<IotDevice> devices) {
+            for (IotDevice device : devices) startPolling(device);
+        }
+
+        @Override
+        public void onIotDeviceRemoved(IotDevice device) {
+            Poll poll = polls.remove(device);
+            if (poll != null) poll.cancel();
+        }
+    };
+
+    /**
+     * Creates a fleet poller.
+     * @param sensorApiManager The API manager whose devices are polled.
+     * @param syncEngine The sync engine the devices are polled through.
+     */
+    public FleetPoller(SensorApiManager sensorApiManager, MessageSyncEngine syncEngine) {
+        this.sensorApiManager = sensorApiManager;
+        this.syncEngine = syncEngine;
+    }
+
+    /**
+     * Sets how often devices are polled. Devices already being polled move to the new bounds at
+     * their next poll.
+     * @param baseInterval The interval of a device that was never polled, in milliseconds, 1 minute
+     *                     by default.
+     * @param minInterval The interval of the chattiest devices, in milliseconds, 10 seconds by
+     *                    default. At least 1.
+     * @param maxInterval The interval of idle devices, in milliseconds, 15 minutes by default.
+     */
+    public synchronized void setPollInterval(long baseInterval, long minInterval, long maxInterval) {
+        if (minInterval < 1 || baseInterval < minInterval || maxInterval < baseInterval)
+            throw new IllegalArgumentException();
+        this.baseInterval = baseInterval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Sets how much the interval between two polls of a device is randomly spread.
+     * @param jitter The spread, as a fraction of the interval: 0.2, the default, polls between 80%
+     *               and 120% of the interval. Between 0 and 1.
+     */
+    public synchronized void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) throw new IllegalArgumentException();
+        this.jitter = jitter;
+    }
+
+    /**
+     * Starts polling every device of the manager. Does nothing if already started.
+     * @param syncListener Notified of the outcome of every poll. Use {@code null} to rely on the
+     *                     subscribers of the sync engine only.
+     */
+    public void start(@Nullable MessageSyncEngine.SyncListener syncListener) {
+        synchronized (this) {
+            if (running) return;
+            running = true;
+            this.syncListener = syncListener;
+        }
+        sensorApiManager.addFleetListener(fleetListener);
+        for (IotDevice device : sensorApiManager.getIotDevices()) startPolling(device);
+    }
+
+    /**
+     * Stops polling. Polls in progress still complete, but no new one is started.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+        }
+        sensorApiManager.removeFleetListener(fleetListener);
+        for (Poll poll : polls.values()) poll.cancel();
+        polls.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the current interval between two polls of a device, before jitter.
+     * @return The interval, in milliseconds, or -1 if the device isn't being polled.
+     */
+    public long getPollInterval(IotDevice device) {
+        Poll poll = polls.get(device);
+        return poll == null ? -1 : poll.getInterval();
+    }
+
+    private void startPolling(IotDevice device) {
+        long delay;
+        Poll poll;
+        synchronized (this) {
+            if (!running) return;
+            delay = (long) (baseInterval * random.nextDouble());
+            poll = new Poll(device, baseInterval);
+        }
+        // A device can be seen twice when it is added while the poller starts.
+        if (polls.putIfAbsent(device, poll) != null) return;
+        // A device removed while the poller starts may be gone before its poll was registered, out
+        // of reach of the fleet listener. Once registered, a later removal cancels it.
+        if (!sensorApiManager.getIotDevices().contains(device)) {
+            polls.remove(device, poll);
+            return;
+        }
+        poll.schedule(delay);
+    }
+
+    /**
+     * Returns an interval clamped to the current bounds and spread by the jitter.
+     */
+    private synchronized long jittered(long interval) {
+        return (long) (clamp(interval) * (1 - jitter + 2 * jitter * random.nextDouble()));
+    }
+
+    private synchronized long clamp(long interval) {
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    private synchronized @Nullable MessageSyncEngine.SyncListener syncListener() {
+        return syncListener;
+    }
+
+    /**
+     * The polling of a device. The next poll is scheduled as soon as one starts, so that a sync
+     * that never reports back, e.g. because another one of the same device was in progress, can't
+     * stop the polling. When the sync completes, the next poll is moved according to the new
+     * interval.
+     */
+    private class Poll implements Runnable, MessageSyncEngine.SyncListener {
+
+        private final IotDevice device;
+        private long interval;
+        private long startedAt;
+        private ScheduledFuture<?> next;
+        private boolean cancelled;
+
+        Poll(IotDevice device, long interval) {
+            this.device = device;
+            this.interval = interval;
+        }
+
+        synchronized long getInterval() {
+            return interval;
+        }
+
+        synchronized void schedule(long delay) {
+            if (cancelled) return;
+            if (next != null) next.cancel(false);
+            next = sensorApiManager.scheduler().schedule(this, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (next != null) next.cancel(false);
+            next = null;
+        }
+
+        @Override
+        public void run() {
+            long delay;
+            synchronized (this) {
+                if (cancelled) return;
+                startedAt = System.currentTimeMillis();
+                interval = clamp(interval);
+                delay = jittered(interval);
+            }
+            schedule(delay);
+            try {
+                syncEngine.sync(device, this);
+            } catch (SensorApiManager.CannotUseDeviceApiException e) {
+                // Not authenticated yet, the next poll tries again.
+            }
+        }
+
+        @Override
+        public void onSyncComplete(IotDevice device, List<IotMessage> newMessages) {
+            adapt(newMessages.isEmpty() ? 1.5 : 0.5);
+            MessageSyncEngine.SyncListener listener = syncListener();
+            if (listener != null) listener.onSyncComplete(device, newMessages);
+        }
+
+        @Override
+        public void onSyncError(IotDevice device, SensorApiError error) {
+            adapt(2);
+            MessageSyncEngine.SyncListener listener = syncListener();
+            if (listener != null) listener.onSyncError(device, error);
+        }
+
+        private void adapt(double factor) {
+            long delay;
+            synchronized (this) {
+                if (cancelled) return;
+                interval = clamp((long) (interval * factor));
+                delay = startedAt + jittered(interval) - System.currentTimeMillis();
+            }
+            schedule(delay);
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+
+
+/**
+ * Walks the whole message history of a device backwards in time, page by page. Every page ends
+ * where the previous one left off, so callers don't have to chain the history calls themselves.
+ *
+ * <p>While the caller consumes a page, the cursor keeps fetching the following ones in the
+ * background, up to a configurable prefetch depth. Every page request needs the oldest timestamp of
+ * the page before it, so pages are still requested one after another, but the network round trips
+ * overlap with the processing of the pages already received. The walk stops at the first empty
+ * page.</p>
+ *
+ * <p>Every page is requested up to the oldest timestamp of the page before it, inclusive, and the
+ * messages of that millisecond the previous page already held are dropped, so messages sharing a
+ * timestamp aren't lost at a page boundary. A page made only of messages of a single millisecond
+ * can't be walked past that way, though: the walk then skips the rest of that millisecond.</p>
+ *
+ * <p>Obtain instances through {@link IotDevice#getMessagesHistoryCursor(int, Date, int)} and
+ * {@link IotDevice#getRawMessagesHistoryCursor(int, Date, int)}.</p>
+ * @param <T> The type of the messages.
+ */
+public abstract class HistoryCursor<T> {
+
+    private final int prefetchDepth;
+    private final Queue<List<T>> pages = new ArrayDeque<>();
+    private final Queue<PageListener<T>> waiting = new ArrayDeque<>();
+    private Date position;
+    // How many messages at the position the last page held, to drop from the next one.
+    private int positionCount;
+    private boolean fetching, exhausted, closed;
+    private SensorApiError error;
+
+    HistoryCursor(@Nullable Date until, int prefetchDepth) {
+        if (prefetchDepth < 1) throw new IllegalArgumentException();
+        this.position = until;
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Requests the next, older, page of messages. If it was already prefetched, it is delivered
+     * right away. Once the cursor is closed, the listener is told that the history ended.
+     * @param pageListener Receives the page, the end of the history, or an error.
+     */
+    public void next(PageListener<T> pageListener) {
+        List<T> page;
+        boolean ended;
+        SensorApiError failure;
+        synchronized (this) {
+            page = pages.poll();
+            ended = page == null && (exhausted || closed);
+            failure = page == null && !ended ? error : null;
+            if (page == null && !ended && failure == null) waiting.add(pageListener);
+        }
+        if (page != null) pageListener.onPage(page);
+        else if (ended) pageListener.onEnd();
+        else if (failure != null) pageListener.onError(failure);
+        fill();
+    }
+
+    /**
+     * Returns whether the end of the history was reached and every page has been consumed.
+     * @return Whether there are no pages left.
+     */
+    public synchronized boolean isExhausted() {
+        return exhausted && pages.isEmpty();
+    }
+
+    /**
+     * Returns the amount of pages already fetched and waiting to be consumed.
+     * @return The amount of buffered pages.
+     */
+    public synchronized int getBufferedPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Stops prefetching and drops the buffered pages. Callers waiting for a page are told that the
+     * history ended.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pages.clear();
+        }
+        endWaiting();
+    }
+
+    private void fill() {
+        Date until;
+        synchronized (this) {
+            if (fetching || exhausted || closed || error != null) return;
+            if (pages.size() >= prefetchDepth && waiting.isEmpty()) return;
+            fetching = true;
+            until = position;
+        }
+        try {
+            fetchPage(until, new PageCallback());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            onPageFailed(new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                    "Device has no authentication token."));
+        }
+    }
+
+    private void onPageReceived(List<T> page) {
+        PageListener<T> pageListener;
+        boolean ended;
+        synchronized (this) {
+            fetching = false;
+            if (closed) return;
+            if (page.isEmpty()) {
+                exhausted = true;
+            } else {
+                // Newest first: the messages of the position the last page held come first.
+                int duplicates = 0;
+                long bound = position == null ? Long.MAX_VALUE : position.getTime();
+                while (duplicates < positionCount && duplicates < page.size()
+                        && timeOf(page.get(duplicates)) == bound) duplicates++;
+                if (duplicates == page.size()) {
+                    // Nothing but that millisecond again: move past it.
+                    position = new Date(bound - 1);
+                    positionCount = 0;
+                } else {
+                    long oldest = Long.MAX_VALUE;
+                    int oldestCount = 0;
+                    for (T message : page) {
+                        long time = timeOf(message);
+                        if (time < oldest) {
+                            oldest = time;
+                            oldestCount = 1;
+                        } else if (time == oldest) {
+                            oldestCount++;
+                        }
+                    }
+                    position = new Date(oldest);
+                    positionCount = oldestCount;
+                    pages.add(duplicates == 0 ? page
+                            : new ArrayList<>(page.subList(duplicates, page.size())));
+                }
+            }
+            // A page of duplicates only leaves the listeners waiting for the next one.
+            pageListener = exhausted || !pages.isEmpty() ? waiting.poll() : null;
+            ended = pageListener != null && pages.isEmpty();
+            page = pageListener != null && !ended ? pages.poll() : null;
+        }
+        if (page != null) pageListener.onPage(page);
+        else if (ended) {
+            pageListener.onEnd();
+            endWaiting();
+        }
+        fill();
+    }
+
+    private void onPageFailed(SensorApiError failure) {
+        Queue<PageListener<T>> failed;
+        synchronized (this) {
+            fetching = false;
+            error = failure;
+            failed = new ArrayDeque<>(waiting);
+            waiting.clear();
+        }
+        for (PageListener<T> pageListener : failed) pageListener.onError(failure);
+    }
+
+    private void endWaiting() {
+        Queue<PageListener<T>> ended;
+        synchronized (this) {
+            ended = new ArrayDeque<>(waiting);
+            waiting.clear();
+        }
+        for (PageListener<T> pageListener : ended) pageListener.onEnd();
+    }
+
+    abstract void fetchPage(@Nullable Date until, PageCallback callback)
+            throws SensorApiManager.CannotUseDeviceApiException;
+
+    abstract long timeOf(T message);
+
+    class PageCallback implements SensorApiManager.SensorApiErrorListener {
+
+        void onPage(List<T> page) {
+            onPageReceived(page);
+        }
+
+        @Override
+        public void onError(SensorApiError error) {
+            onPageFailed(error);
+        }
+    }
+
+    public interface PageListener<T> {
+        /**
+         * Called with the next page of messages, in descending order (from newest to oldest).
+         * @param page The messages of the page, never empty.
+         */
+        void onPage(List<T> page);
+
+        /**
+         * Called when there are no older messages left.
+         */
+        void onEnd();
+
+        void onError(SensorApiError error);
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.mikiloz.tdgateway;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+
+
+/**
+ * Publishes the message history of a device as a Reactive Streams {@link Publisher} of pages, for
+ * use with any Reactive Streams library (RxJava 2, Reactor, ...). Every subscriber walks the
+ * history on its own {@link HistoryCursor}, from newest to oldest, and the stream completes at the
+ * end of the history.
+ *
+ * <p>Pages are only requested from the API when the subscriber asks for them: a subscriber that
+ * requests one page at a time never has more than the cursor's prefetch depth of pages buffered
+ * for it. Signals are delivered on the callback executor of the {@link SensorApiManager}, or on
+ * the thread calling {@link Subscription#request(long)} for pages that were already prefetched.</p>
+ *
+ * <p>Obtain instances through {@link IotDevice#getMessagesHistoryPublisher(int, java.util.Date, int)}
+ * and {@link IotDevice#getRawMessagesHistoryPublisher(int, java.util.Date, int)}.</p>
+ * @param <T> The type of the messages.
+ */
+abstract class HistoryPublisher<T> implements Publisher<List<T>> {
+
+    /**
+     * The subscription of a subscriber that is signalled an error right away.
+     */
+    private static final Subscription EMPTY_SUBSCRIPTION = new Subscription() {
+        @Override
+        public void request(long n) {}
+
+        @Override
+        public void cancel() {}
+    };
+
+    @Override
+    public void subscribe(Subscriber<? super List<T>> subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        HistoryCursor<T> cursor;
+        try {
+            cursor = openCursor();
+        } catch (RuntimeException e) {
+            subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+            subscriber.onError(e);
+            return;
+        }
+        subscriber.onSubscribe(new PageSubscription(subscriber, cursor));
+    }
+
+    /**
+     * Opens a new cursor over the history, for a new subscriber.
+     */
+    abstract HistoryCursor<T> openCursor();
+
+    /**
+     * The pages requested by a subscriber, fetched one after another from its cursor.
+     */
+    private class PageSubscription implements Subscription, HistoryCursor.PageListener<T> {
+
+        private final Subscriber<? super List<T>> subscriber;
+        private final HistoryCursor<T> cursor;
+        private long demand;
+        private boolean pending, done, draining, missed;
+
+        PageSubscription(Subscriber<? super List<T>> subscriber, HistoryCursor<T> cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (finish()) {
+                    cursor.close();
+                    subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                }
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (done) return;
+                done = true;
+            }
+            cursor.close();
+        }
+
+        /**
+         * Asks the cursor for the next page while there's demand. A prefetched page is delivered
+         * synchronously by the cursor, so the loop takes over instead of recursing.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    missed = true;
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                synchronized (this) {
+                    boolean fetch = !pending && !done && demand > 0;
+                    if (!fetch && !missed) {
+                        draining = false;
+                        return;
+                    }
+                    missed = false;
+                    if (!fetch) continue;
+                    pending = true;
+                }
+                cursor.next(this);
+            }
+        }
+
+        @Override
+        public void onPage(List<T> page) {
+            synchronized (this) {
+                pending = false;
+                if (done) return;
+                if (demand != Long.MAX_VALUE) demand--;
+            }
+            subscriber.onNext(page);
+            drain();
+        }
+
+        @Override
+        public void onEnd() {
+            if (finish()) subscriber.onComplete();
+        }
+
+        @Override
+        public void onError(SensorApiError error) {
+            if (finish()) subscriber.onError(error);
+        }
+
+        private boolean finish() {
+            synchronized (this) {
+                pending = false;
+                if (done) return false;
+                done = true;
+                return true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.mikiloz.tdgateway;
+
+
+/**
+ * Sends the HTTP requests of a {@link SensorApiManager}. Two implementations are provided:
+ * {@link VolleyTransport}, used by default on Android, and {@link UrlConnectionTransport}, which
+ * only needs a plain JVM. Other HTTP clients can be plugged in by implementing this interface.
+ */
+public interface HttpTransport {
+
+    /**
+     * Sends a request asynchronously. The transport must eventually report its outcome exactly
+     * once, through {@link ApiRequest#onResponse(int, java.util.Map, byte[])} or
+     * {@link ApiRequest#onFailure(Throwable)}, from any thread but the one listeners are called on:
+     * the response is parsed on the reporting thread.
+     * @param request The request to send.
+     */
+    void send(ApiRequest<?> request);
+
+    /**
+     * Stops the transport. Requests sent afterwards may never complete.
+     */
+    void shutdown();
+
+}
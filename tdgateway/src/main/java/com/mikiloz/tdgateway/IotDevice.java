@@ -3,41 +3,33 @@ package com.mikiloz.tdgateway;
 
 import android.support.annotation.Nullable;
 
-import com.android.volley.AuthFailureError;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.StringRequest;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.reactivestreams.Publisher;
 
-import java.text.ParseException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_AUTHENTICATION_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_CHANGE_STATUS_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_CHANGE_STATUS_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_ACTIVE_FLAG_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_ACTIVE_FLAG_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_BIDIR_VALUE_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_BIDIR_VALUE_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_MONITORING_FLAG_ENDPOINT;
-import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_MONITORING_FLAG_ENDPOINT_PARAMS;
-import static com.mikiloz.tdgateway.SensorApiManager.GMT_TIMEZONE;
-import static com.mikiloz.tdgateway.SensorApiManager.dateFormat;
-import static com.mikiloz.tdgateway.Util.gmtNumberToString;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_AUTHENTICATION_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_CHANGE_STATUS_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_RAW_MESSAGES_HISTORY_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_ACTIVE_FLAG_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_BIDIR_VALUE_TEMPLATE;
+import static com.mikiloz.tdgateway.SensorApiManager.DEVICE_SET_MONITORING_FLAG_TEMPLATE;
 
 /**
  * This class represents a Telecom Design Sensor API IoT device.
@@ -57,26 +49,41 @@ public class IotDevice {
     private PowerStatus networkStatus, batteryStatus, tamperStatus;
     private TemperatureStatus temperatureStatus;
 
+    private static final int PARSED_INDEX = 1, PARSED_ACTIVE = 2, PARSED_MESSAGE_COUNT = 4,
+            PARSED_LOST_COUNT = 8;
+
+    private static final Map<String, PowerStatus> POWER_STATUSES = lookupMap(PowerStatus.values());
+    private static final Map<String, TemperatureStatus> TEMPERATURE_STATUSES =
+            lookupMap(TemperatureStatus.values());
+
     private Date lastInformationRetrievalDate;
+    // Which of the primitive information fields were parsed, see copyInformation(IotDevice).
+    private int parsedPrimitives;
+    private volatile ChildDeviceParser.Cache childDevices = ChildDeviceParser.Cache.EMPTY;
 
     private SensorApiManager sensorApiManager;
     private static final String AUTH_HEADER = "X-Snsr-Device-Key";
     private String authToken;
+    private ScheduledFuture<?> authTokenRefresh;
 
     private IotDevice() {}
 
+    /**
+     * Creates a device without contacting the API. Used by bulk registration, which paces the
+     * bootstrap requests itself.
+     */
     IotDevice(@Nullable String id, String sn, @Nullable String key, SensorApiManager sensorApiManager) {
-        this(id, sn, key, sensorApiManager, null, null, null);
+        this.id = id;
+        this.sn = sn;
+        this.key = key;
+        this.sensorApiManager = sensorApiManager;
     }
 
     IotDevice(@Nullable String id, String sn, @Nullable String key, SensorApiManager sensorApiManager,
               @Nullable Runnable onDeviceApiAuthenticated,
               @Nullable Runnable onDeviceInformationAcquired,
               @Nullable SensorApiManager.SensorApiErrorListener errorListener) {
-        this.id = id;
-        this.sn = sn;
-        this.key = key;
-        this.sensorApiManager = sensorApiManager;
+        this(id, sn, key, sensorApiManager);
         try { obtainIotDeviceInformation(onDeviceInformationAcquired); }
         catch (SensorApiManager.CannotUseDeveloperApiException e) { }
         obtainAuthToken(onDeviceApiAuthenticated, errorListener);
@@ -89,21 +96,39 @@ public class IotDevice {
      * the Developer authentication token. Use {@link SensorApiManager#setDeveloperAuthToken(String)} on
      * your API manager to set a valid developer token.
      */
-    public void obtainIotDeviceInformation(final Runnable onDeviceInformationAcquired)
+    public void obtainIotDeviceInformation(@Nullable final Runnable onDeviceInformationAcquired)
+            throws SensorApiManager.CannotUseDeveloperApiException {
+        obtainIotDeviceInformation(onDeviceInformationAcquired, null);
+    }
+
+    /**
+     * Obtain this device's information from the Developer API.
+     * @param onDeviceInformationAcquired Called when the retrieval process was successful.
+     * @param errorListener An error listener. Use {@code null} if you want to ignore the error.
+     * @throws SensorApiManager.CannotUseDeveloperApiException When the {@link SensorApiManager} is missing
+     * the Developer authentication token. Use {@link SensorApiManager#setDeveloperAuthToken(String)} on
+     * your API manager to set a valid developer token.
+     */
+    public void obtainIotDeviceInformation(@Nullable final Runnable onDeviceInformationAcquired,
+                                           @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
             throws SensorApiManager.CannotUseDeveloperApiException {
 
         sensorApiManager.requestIotDeviceInformation(id, sn, new IotInformationResponseReceivedListener() {
             @Override
             public void onIotInformationResponseReceived(JSONObject response) {
                 parseIotDeviceInformation(response, IotDevice.this);
-                onDeviceInformationAcquired.run();
+                sensorApiManager.onIotDeviceInformationChanged(IotDevice.this);
+                if (onDeviceInformationAcquired != null)
+                    onDeviceInformationAcquired.run();
             }
-        });
+        }, errorListener);
     }
 
     /**
      * Obtain an authentication token from the Device API, so that this device can perform queries
-     * to it.
+     * to it. A token persisted by the {@link SensorApiManager}'s {@link TokenStore} is reused if
+     * it hasn't expired yet. Either way, the token is refreshed in the background before it
+     * expires.
      * @param onDeviceApiAuthenticated Called when the authentication process was successful.
      * @param errorListener An error listener. Use {@code null} if you want to ignore the error.
      * @throws MissingInformationException When the device serial number or device key are missing.
@@ -114,12 +139,28 @@ public class IotDevice {
 
         if (sn == null || key == null) throw new MissingInformationException();
 
-        String endpoint = String.format(DEVICE_AUTHENTICATION_ENDPOINT, sn, key);
-        StringRequest deviceTokenRequest = new StringRequest(Request.Method.GET, endpoint,
+        TokenStore.Entry storedToken = sensorApiManager.getStoredAuthToken(sn);
+        if (storedToken != null) {
+            authToken = storedToken.getToken();
+            scheduleAuthTokenRefresh(storedToken.getExpirationTime());
+            if (onDeviceApiAuthenticated != null)
+                sensorApiManager.deliver(onDeviceApiAuthenticated);
+            return;
+        }
+        requestAuthToken(onDeviceApiAuthenticated, errorListener);
+    }
+
+    private void requestAuthToken(@Nullable final Runnable onDeviceApiAuthenticated,
+                                  @Nullable final SensorApiManager.SensorApiErrorListener errorListener) {
+
+        String endpoint = DEVICE_AUTHENTICATION_TEMPLATE.builder().param(sn).param(key).build();
+        SensorStringRequest deviceTokenRequest = new SensorStringRequest(Request.Method.GET, endpoint,
                 new Response.Listener<String>() {
                     @Override
                     public void onResponse(String response) {
                         authToken = response;
+                        TokenStore.Entry entry = sensorApiManager.storeAuthToken(sn, response);
+                        scheduleAuthTokenRefresh(entry.getExpirationTime());
                         if (onDeviceApiAuthenticated != null)
                             onDeviceApiAuthenticated.run();
                     }
@@ -127,50 +168,220 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null)
-                    errorListener.onError("Couldn't authenticate device " + sn + ".");
+                    errorListener.onError(SensorApiError.fromVolleyError(
+                            "Couldn't authenticate device " + sn + ".", error));
             }
         });
         sensorApiManager.performRequest(deviceTokenRequest);
     }
 
-    private static void parseIotDeviceInformation(JSONObject jsonObject, IotDevice device) {
-
-        try { device.id = jsonObject.getString("id"); } catch (JSONException ignored) {}
-        try { device.uid = jsonObject.getString("uid"); } catch (JSONException ignored) {}
-        try { device.sn = jsonObject.getString("serial"); } catch (JSONException ignored) {}
-        try { device.gateway = jsonObject.getString("gateway"); } catch (JSONException ignored) {}
-        try { device.category = jsonObject.getString("category"); } catch (JSONException ignored) {}
-        try { device.index = jsonObject.getInt("index"); } catch (JSONException ignored) {}
-        try { device.firstSeen = dateFormat.parse(jsonObject.getString("firstseen")
-                + " " + Util.gmtNumberToString(GMT_TIMEZONE)); }
-        catch (JSONException | ParseException ignored) {}
-        try { device.lastSeen = dateFormat.parse(jsonObject.getString("lastseen")
-                + " " + Util.gmtNumberToString(GMT_TIMEZONE)); }
-        catch (JSONException | ParseException ignored) {}
-        try { device.active = jsonObject.getBoolean("active"); } catch (JSONException ignored) {}
-        try { device.status = jsonObject.getString("status"); } catch (JSONException ignored) {}
-        try { device.messageCount = jsonObject.getInt("msgs"); } catch (JSONException ignored) {}
-        try { device.lostCount = jsonObject.getInt("losts"); } catch (JSONException ignored) {}
-        try {
-            String value = jsonObject.getString("network");
-            device.networkStatus = PowerStatus.valueOf(value);
-        } catch (JSONException | IllegalArgumentException ignored) {}
-        try {
-            String value = jsonObject.getString("battery");
-            device.batteryStatus = PowerStatus.valueOf(value);
-        } catch (JSONException | IllegalArgumentException ignored) {}
-        try {
-            String value = jsonObject.getString("tamper");
-            device.tamperStatus = PowerStatus.valueOf(value);
-        } catch (JSONException | IllegalArgumentException ignored) {}
-        try {
-            String value = jsonObject.getString("temp");
-            device.temperatureStatus = TemperatureStatus.valueOf(value);
-        } catch (JSONException | IllegalArgumentException ignored) {}
+    private synchronized void scheduleAuthTokenRefresh(long expirationTime) {
+        if (authTokenRefresh != null) authTokenRefresh.cancel(false);
+        authTokenRefresh = sensorApiManager.scheduleTokenRefresh(new Runnable() {
+            @Override
+            public void run() {
+                requestAuthToken(null, null);
+            }
+        }, expirationTime);
+    }
 
+    /**
+     * Stops refreshing the authentication token, e.g. when the device is removed from its manager.
+     */
+    synchronized void cancelAuthTokenRefresh() {
+        if (authTokenRefresh != null) authTokenRefresh.cancel(false);
+        authTokenRefresh = null;
+    }
+
+    /**
+     * Called when the Device API rejects a token. The token is evicted from the store and, unless
+     * it was already replaced, a new one is requested in the background.
+     */
+    private synchronized void onAuthTokenRejected(String rejectedToken) {
+        if (rejectedToken == null || !rejectedToken.equals(authToken)) return;
+        authToken = null;
+        if (authTokenRefresh != null) authTokenRefresh.cancel(false);
+        authTokenRefresh = null;
+        sensorApiManager.evictAuthToken(sn);
+        requestAuthToken(null, null);
+    }
+
+    private static boolean isAuthenticationFailure(VolleyError error) {
+        return error.networkResponse != null
+                && (error.networkResponse.statusCode == 401 || error.networkResponse.statusCode == 403);
+    }
+
+    /**
+     * Fills a device with its information, as returned by the Developer API, in a single pass over
+     * the object. Numbers, booleans and strings are coerced into one another like
+     * {@link JSONObject#getInt(String)} and its siblings would; missing fields, fields that can't be
+     * coerced and unknown statuses are skipped, keeping their previous value, without any exception
+     * being thrown.
+     */
+    static void parseIotDeviceInformation(JSONObject jsonObject, IotDevice device) {
+        Iterator<String> names = jsonObject.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            Object value = jsonObject.opt(name);
+            if (value instanceof String) device.setInformation(name, (String) value);
+            else if (value instanceof Number) device.setInformation(name, ((Number) value).longValue());
+            else if (value instanceof Boolean) device.setInformation(name, (boolean) (Boolean) value);
+        }
         device.lastInformationRetrievalDate = new Date();
     }
 
+    /**
+     * Fills a device with its information, read straight from a response. Behaves like
+     * {@link #parseIotDeviceInformation(JSONObject, IotDevice)}.
+     */
+    static void parseIotDeviceInformation(JsonTokenizer tokenizer, IotDevice device)
+            throws JsonTokenizer.MalformedJsonException {
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            switch (tokenizer.peek()) {
+                case STRING:
+                    device.setInformation(name, tokenizer.nextString());
+                    break;
+                case NUMBER:
+                    device.setInformation(name, tokenizer.nextLong());
+                    break;
+                case BOOLEAN:
+                    device.setInformation(name, tokenizer.nextBoolean());
+                    break;
+                default:
+                    tokenizer.skipValue();
+            }
+        }
+        tokenizer.endObject();
+        device.lastInformationRetrievalDate = new Date();
+    }
+
+    private void setInformation(String name, String value) {
+        switch (name) {
+            case "id": id = value; break;
+            case "uid": uid = value; break;
+            case "serial": sn = value; break;
+            case "gateway": gateway = value; break;
+            case "category": category = value; break;
+            case "status": status = value; break;
+            case "firstseen":
+                firstSeen = orElse(SensorDateParser.DEFAULT.parseOrNull(value), firstSeen);
+                break;
+            case "lastseen":
+                lastSeen = orElse(SensorDateParser.DEFAULT.parseOrNull(value), lastSeen);
+                break;
+            case "network":
+                networkStatus = orElse(POWER_STATUSES.get(value), networkStatus);
+                break;
+            case "battery":
+                batteryStatus = orElse(POWER_STATUSES.get(value), batteryStatus);
+                break;
+            case "tamper":
+                tamperStatus = orElse(POWER_STATUSES.get(value), tamperStatus);
+                break;
+            case "temp":
+                temperatureStatus = orElse(TEMPERATURE_STATUSES.get(value), temperatureStatus);
+                break;
+            case "index": case "msgs": case "losts":
+                Long number = parseNumber(value);
+                if (number != null) setInformation(name, (long) number);
+                break;
+            case "active":
+                if (value.equalsIgnoreCase("true")) setInformation(name, true);
+                else if (value.equalsIgnoreCase("false")) setInformation(name, false);
+                break;
+        }
+    }
+
+    private void setInformation(String name, long value) {
+        switch (name) {
+            case "index":
+                index = (int) value;
+                parsedPrimitives |= PARSED_INDEX;
+                break;
+            case "msgs":
+                messageCount = (int) value;
+                parsedPrimitives |= PARSED_MESSAGE_COUNT;
+                break;
+            case "losts":
+                lostCount = (int) value;
+                parsedPrimitives |= PARSED_LOST_COUNT;
+                break;
+            default:
+                setInformation(name, Long.toString(value));
+        }
+    }
+
+    private void setInformation(String name, boolean value) {
+        if (name.equals("active")) {
+            active = value;
+            parsedPrimitives |= PARSED_ACTIVE;
+        } else {
+            setInformation(name, Boolean.toString(value));
+        }
+    }
+
+    /**
+     * Parses a quoted number, truncating its fraction, without throwing when it isn't one.
+     * @return The number, or null if the value isn't a plain decimal number.
+     */
+    private static @Nullable Long parseNumber(String value) {
+        value = value.trim();
+        int length = value.length();
+        int i = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        int start = i;
+        long number = 0;
+        while (i < length && i - start < 18 && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+            number = number * 10 + (value.charAt(i++) - '0');
+        }
+        if (i == start) return null;
+        if (i < length && value.charAt(i) == '.') {
+            do i++; while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9');
+        }
+        if (i < length) return null;
+        return start == 1 ? -number : number;
+    }
+
+    /**
+     * Copies the information parsed into a detached device, e.g. off the callback thread, leaving
+     * the fields it lacks untouched, as parsing into this device would have.
+     */
+    void copyInformation(IotDevice parsed) {
+        id = orElse(parsed.id, id);
+        uid = orElse(parsed.uid, uid);
+        sn = orElse(parsed.sn, sn);
+        gateway = orElse(parsed.gateway, gateway);
+        category = orElse(parsed.category, category);
+        status = orElse(parsed.status, status);
+        firstSeen = orElse(parsed.firstSeen, firstSeen);
+        lastSeen = orElse(parsed.lastSeen, lastSeen);
+        networkStatus = orElse(parsed.networkStatus, networkStatus);
+        batteryStatus = orElse(parsed.batteryStatus, batteryStatus);
+        tamperStatus = orElse(parsed.tamperStatus, tamperStatus);
+        temperatureStatus = orElse(parsed.temperatureStatus, temperatureStatus);
+        if ((parsed.parsedPrimitives & PARSED_INDEX) != 0) index = parsed.index;
+        if ((parsed.parsedPrimitives & PARSED_ACTIVE) != 0) active = parsed.active;
+        if ((parsed.parsedPrimitives & PARSED_MESSAGE_COUNT) != 0) messageCount = parsed.messageCount;
+        if ((parsed.parsedPrimitives & PARSED_LOST_COUNT) != 0) lostCount = parsed.lostCount;
+        parsedPrimitives |= parsed.parsedPrimitives;
+        lastInformationRetrievalDate = parsed.lastInformationRetrievalDate;
+    }
+
+    private static <T> T orElse(@Nullable T value, T previous) {
+        return value != null ? value : previous;
+    }
+
+    /**
+     * Maps the constants of an enum by name, to look statuses up without
+     * {@link Enum#valueOf(Class, String)} throwing on unknown values.
+     */
+    private static <E extends Enum<E>> Map<String, E> lookupMap(E[] constants) {
+        Map<String, E> map = new HashMap<>();
+        for (E constant : constants) map.put(constant.name(), constant);
+        return map;
+    }
+
     /**
      * Returns the last {@link Date} when this device's information was acquired, or {@code null}
      * if it was never obtained.
@@ -181,6 +392,13 @@ public class IotDevice {
         return lastInformationRetrievalDate;
     }
 
+    /**
+     * Records that this device's information was just acquired, and found unchanged.
+     */
+    void markInformationRetrieved() {
+        lastInformationRetrievalDate = new Date();
+    }
+
     /**
      * Returns whether this device is ready or not to perform queries to the TD API.
      * @return Whether this device has connected and obtained and authentication token from the TD
@@ -207,53 +425,81 @@ public class IotDevice {
      * this device. Call {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} to
      * get a valid authentication token.
      */
-    public void getMessagesHistory(int amount, @Nullable Date until,
+    public void getMessagesHistory(final int amount, @Nullable Date until,
                                    final IotMessagesReceivedListener iotMessagesReceivedListener,
                                    @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
             throws SensorApiManager.CannotUseDeviceApiException {
 
         if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
 
-        String[] params = new String[2];
-        params[0] = amount == 0 ? null : String.valueOf(amount);
-        params[1] = until == null ? null : String.valueOf(until.getTime());
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_MESSAGES_HISTORY_ENDPOINT,
-                    DEVICE_MESSAGES_HISTORY_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
-
-        AuthenticatedJsonArrayRequest request = new AuthenticatedJsonArrayRequest(Request.Method.GET,
-                endpoint, new Response.Listener<JSONArray>() {
+        final MessageStore messageStore = sensorApiManager.getMessageStore();
+        final long untilTime = until == null ? System.currentTimeMillis() : until.getTime();
+        EndpointTemplate.Builder url = DEVICE_MESSAGES_HISTORY_TEMPLATE.builder();
+        if (amount == 0) url.skip();
+        else url.param(amount);
+        if (until == null) url.skip();
+        else url.param(until.getTime());
+        String endpoint = url.build();
+
+        final AuthenticatedStreamingRequest<List<IotMessage>> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, IOT_MESSAGE_PAGE_PARSER,
+                new Response.Listener<List<IotMessage>>() {
             @Override
-            public void onResponse(JSONArray response) {
-                List<IotMessage> messages = new ArrayList<>();
-                try {
-                    for (int i = 0; i < response.length(); i++) {
-                        IotMessage message = parseIotMessage(response.getJSONObject(i));
-                        messages.add(message);
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    if (errorListener != null)
-                        errorListener.onError("Error parsing JSON array response");
+            public void onResponse(final List<IotMessage> messages) {
+                if (messageStore != null) {
+                    long oldest = untilTime;
+                    for (IotMessage message : messages) oldest = Math.min(oldest, message.when);
+                    // A short page may only mean the API caps the amount: only an empty one proves
+                    // there is nothing older, as for a HistoryCursor.
+                    final long from = messages.isEmpty() ? Long.MIN_VALUE : oldest;
+                    sensorApiManager.runInBackground(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                messageStore.storeMessages(sn, messages, from, untilTime);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
                 }
                 iotMessagesReceivedListener.onMessagesReceived(messages);
             }
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-                if (errorListener != null)
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                if (errorListener != null) {
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+                }
+            }
+        });
+        if (messageStore == null || amount == 0) {
+            sensorApiManager.performRequest(request);
+            return;
+        }
+        // The store may have to be opened and read from disk first: the request is only sent from
+        // the background, if the messages aren't there.
+        sensorApiManager.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final List<IotMessage> storedMessages =
+                            messageStore.getMessagesHistory(sn, amount, untilTime);
+                    if (storedMessages != null) {
+                        sensorApiManager.deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                iotMessagesReceivedListener.onMessagesReceived(storedMessages);
+                            }
+                        });
+                        return;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                sensorApiManager.performRequest(request);
             }
         });
-        sensorApiManager.performRequest(request);
 
     }
 
@@ -278,43 +524,26 @@ public class IotDevice {
 
         if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
 
-        String[] params = new String[2];
-        params[0] = amount == 0 ? null : String.valueOf(amount);
-        params[1] = after == null ? null : String.valueOf(after.getTime());
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT,
-                    DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
+        EndpointTemplate.Builder url = DEVICE_MESSAGES_HISTORY_LATEST_TEMPLATE.builder();
+        if (amount == 0) url.skip();
+        else url.param(amount);
+        if (after == null) url.skip();
+        else url.param(after.getTime());
+        String endpoint = url.build();
 
-        AuthenticatedJsonArrayRequest request = new AuthenticatedJsonArrayRequest(Request.Method.GET,
-                endpoint, new Response.Listener<JSONArray>() {
+        AuthenticatedStreamingRequest<List<IotMessage>> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, IOT_MESSAGE_PAGE_PARSER,
+                new Response.Listener<List<IotMessage>>() {
             @Override
-            public void onResponse(JSONArray response) {
-                List<IotMessage> messages = new ArrayList<>();
-                try {
-                    for (int i = 0; i < response.length(); i++) {
-                        IotMessage message = parseIotMessage(response.getJSONObject(i));
-                        messages.add(message);
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    if (errorListener != null)
-                        errorListener.onError("Error parsing JSON array response");
-                }
+            public void onResponse(List<IotMessage> messages) {
                 iotMessagesReceivedListener.onMessagesReceived(messages);
             }
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-                if (errorListener != null)
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                if (errorListener != null) {
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+                }
             }
         });
         sensorApiManager.performRequest(request);
@@ -332,54 +561,237 @@ public class IotDevice {
      * this device. Call {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} to
      * get a valid authentication token.
      */
-    public void getRawMessagesHistory(int limit, Date before,
+    public void getRawMessagesHistory(final int limit, Date before,
                                       final RawMessagesReceivedListener rawMessagesReceivedListener,
                                       @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
             throws SensorApiManager.CannotUseDeviceApiException {
 
         if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
 
-        String[] params = new String[2];
-        params[0] = limit == 0 ? null : String.valueOf(limit);
-        params[1] = before == null ? null : String.valueOf(before.getTime());
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT,
-                    DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
+        final MessageStore messageStore = sensorApiManager.getMessageStore();
+        final long beforeTime = before == null ? System.currentTimeMillis() : before.getTime();
+        EndpointTemplate.Builder url = DEVICE_RAW_MESSAGES_HISTORY_TEMPLATE.builder();
+        if (limit == 0) url.skip();
+        else url.param(limit);
+        if (before == null) url.skip();
+        else url.param(before.getTime());
+        String endpoint = url.build();
+
+        final AuthenticatedStreamingRequest<List<RawMessage>> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, RAW_MESSAGE_PAGE_PARSER,
+                new Response.Listener<List<RawMessage>>() {
+            @Override
+            public void onResponse(final List<RawMessage> messages) {
+                if (messageStore != null) {
+                    long oldest = beforeTime;
+                    for (RawMessage message : messages) oldest = Math.min(oldest, message.time);
+                    // A short page may only mean the API caps the amount: only an empty one proves
+                    // there is nothing older, as for a HistoryCursor.
+                    final long from = messages.isEmpty() ? Long.MIN_VALUE : oldest;
+                    sensorApiManager.runInBackground(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                messageStore.storeRawMessages(sn, messages, from, beforeTime);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                }
+                if (rawMessagesReceivedListener != null)
+                    rawMessagesReceivedListener.onMessagesReceived(messages);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                error.printStackTrace();
+                if (errorListener != null) {
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+                }
+            }
+        });
+        if (messageStore == null || limit == 0) {
+            sensorApiManager.performRequest(request);
             return;
         }
-
-        AuthenticatedJsonArrayRequest request = new AuthenticatedJsonArrayRequest(Request.Method.GET,
-                endpoint, new Response.Listener<JSONArray>() {
+        // The store may have to be opened and read from disk first: the request is only sent from
+        // the background, if the messages aren't there.
+        sensorApiManager.runInBackground(new Runnable() {
             @Override
-            public void onResponse(JSONArray response) {
-                List<RawMessage> messages = new ArrayList<>();
+            public void run() {
                 try {
-                    System.out.println("received response: " + response);
-                    for (int i = 0; i < response.length(); i++) {
-                        RawMessage message = parseRawMessage(response.getJSONObject(i));
-                        messages.add(message);
-                        System.out.println(response.getJSONObject(i));
+                    final List<RawMessage> storedMessages =
+                            messageStore.getRawMessagesHistory(sn, limit, beforeTime);
+                    if (storedMessages != null) {
+                        sensorApiManager.deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (rawMessagesReceivedListener != null)
+                                    rawMessagesReceivedListener.onMessagesReceived(storedMessages);
+                            }
+                        });
+                        return;
                     }
-                } catch (JSONException e) {
+                } catch (IOException e) {
                     e.printStackTrace();
-                    if (errorListener != null)
-                        errorListener.onError("Error parsing JSON array response");
                 }
-                if (rawMessagesReceivedListener != null)
-                    rawMessagesReceivedListener.onMessagesReceived(messages);
+                sensorApiManager.performRequest(request);
+            }
+        });
+
+    }
+
+    /**
+     * Get a {@link HistoryCursor} that walks back the whole message history of this device, page by
+     * page, starting at a certain Date. See
+     * {@link #getMessagesHistory(int, Date, IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param amount The amount of messages per page, use 0 to use the default API value.
+     * @param until Start walking back from this {@link Date}. Use {@code null} for the current
+     *              instant.
+     * @param prefetchDepth The maximum amount of pages fetched ahead of the caller.
+     * @return A cursor over the message history.
+     */
+    public HistoryCursor<IotMessage> getMessagesHistoryCursor(final int amount, @Nullable Date until,
+                                                              int prefetchDepth) {
+        return new HistoryCursor<IotMessage>(until, prefetchDepth) {
+            @Override
+            void fetchPage(@Nullable Date until, final PageCallback callback)
+                    throws SensorApiManager.CannotUseDeviceApiException {
+                getMessagesHistory(amount, until, new IotMessagesReceivedListener() {
+                    @Override
+                    public void onMessagesReceived(List<IotMessage> messages) {
+                        callback.onPage(messages);
+                    }
+                }, callback);
+            }
+
+            @Override
+            long timeOf(IotMessage message) {
+                return message.when;
+            }
+        };
+    }
+
+    /**
+     * Get a {@link HistoryCursor} that walks back the whole RAW message history of this device,
+     * page by page, starting at a certain Date. See
+     * {@link #getRawMessagesHistory(int, Date, RawMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param limit The amount of raw messages per page, use 0 to use the default API value.
+     * @param before Start walking back from this {@link Date}. Use {@code null} for the current
+     *               instant.
+     * @param prefetchDepth The maximum amount of pages fetched ahead of the caller.
+     * @return A cursor over the RAW message history.
+     */
+    public HistoryCursor<RawMessage> getRawMessagesHistoryCursor(final int limit, @Nullable Date before,
+                                                                 int prefetchDepth) {
+        return new HistoryCursor<RawMessage>(before, prefetchDepth) {
+            @Override
+            void fetchPage(@Nullable Date before, final PageCallback callback)
+                    throws SensorApiManager.CannotUseDeviceApiException {
+                getRawMessagesHistory(limit, before, new RawMessagesReceivedListener() {
+                    @Override
+                    public void onMessagesReceived(List<RawMessage> messages) {
+                        callback.onPage(messages);
+                    }
+                }, callback);
+            }
+
+            @Override
+            long timeOf(RawMessage message) {
+                return message.time;
+            }
+        };
+    }
+
+    /**
+     * Get a certain amount of the oldest messages until a certain Date, like
+     * {@link #getMessagesHistory(int, Date, IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)},
+     * but decoded straight into a columnar {@link IotMessageBatch}. Batches always come from the
+     * network, the {@link MessageStore} isn't consulted.
+     * @param amount The amount of messages to retrieve, use 0 to use the default API value.
+     * @param until Until this {@link Date}. Use {@code null} for the current instant.
+     * @param batchReceivedListener A functional interface to execute whenever the messages have
+     *                              been received.
+     * @param errorListener An error listener. Use {@code null} if you want to ignore the error.
+     * @throws SensorApiManager.CannotUseDeviceApiException When there is no authentication token for
+     * this device. Call {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} to
+     * get a valid authentication token.
+     */
+    public void getMessagesHistoryBatch(int amount, @Nullable Date until,
+                                        final IotMessageBatchReceivedListener batchReceivedListener,
+                                        @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
+            throws SensorApiManager.CannotUseDeviceApiException {
+
+        if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
+
+        EndpointTemplate.Builder url = DEVICE_MESSAGES_HISTORY_TEMPLATE.builder();
+        if (amount == 0) url.skip();
+        else url.param(amount);
+        if (until == null) url.skip();
+        else url.param(until.getTime());
+        String endpoint = url.build();
+
+        AuthenticatedStreamingRequest<IotMessageBatch> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, IOT_MESSAGE_BATCH_PARSER,
+                new Response.Listener<IotMessageBatch>() {
+            @Override
+            public void onResponse(IotMessageBatch batch) {
+                batchReceivedListener.onBatchReceived(batch);
             }
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-                error.printStackTrace();
-                if (errorListener != null)
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                if (errorListener != null) {
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+                }
+            }
+        });
+        sensorApiManager.performRequest(request);
+
+    }
+
+    /**
+     * Get the RAW messages received from this device, like
+     * {@link #getRawMessagesHistory(int, Date, RawMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)},
+     * but decoded straight into a columnar {@link RawMessageBatch}. Batches always come from the
+     * network, the {@link MessageStore} isn't consulted.
+     * @param limit The limit of raw messages to be retrieved, use 0 to use the default API value.
+     * @param before The date as end date, Use {@code null} for the current instant.
+     * @param batchReceivedListener A functional interface to execute whenever the messages have
+     *                              been received.
+     * @param errorListener An error listener. Use {@code null} if you want to ignore the error.
+     * @throws SensorApiManager.CannotUseDeviceApiException When there is no authentication token for
+     * this device. Call {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} to
+     * get a valid authentication token.
+     */
+    public void getRawMessagesHistoryBatch(int limit, @Nullable Date before,
+                                           final RawMessageBatchReceivedListener batchReceivedListener,
+                                           @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
+            throws SensorApiManager.CannotUseDeviceApiException {
+
+        if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
+
+        EndpointTemplate.Builder url = DEVICE_RAW_MESSAGES_HISTORY_TEMPLATE.builder();
+        if (limit == 0) url.skip();
+        else url.param(limit);
+        if (before == null) url.skip();
+        else url.param(before.getTime());
+        String endpoint = url.build();
+
+        AuthenticatedStreamingRequest<RawMessageBatch> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, RAW_MESSAGE_BATCH_PARSER,
+                new Response.Listener<RawMessageBatch>() {
+            @Override
+            public void onResponse(RawMessageBatch batch) {
+                batchReceivedListener.onBatchReceived(batch);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                if (errorListener != null) {
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+                }
             }
         });
         sensorApiManager.performRequest(request);
@@ -391,6 +803,10 @@ public class IotDevice {
      * devices are populated with data, but haven't got a valid authentication token. Call
      * {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} if you want to
      * perform queries to the Device API using these {@link IotDevice} instances.
+     *
+     * <p>Children already known, be it from a previous call or because they are registered on the
+     * {@link SensorApiManager}, are returned as the same instances, updated with their new
+     * information.</p>
      * @param devicesReceivedListener A functional interface to execute whenever the list of devices
      *                                has been received.
      * @param errorListener An error listener. Use {@code null} if you want to ignore the error.
@@ -402,38 +818,83 @@ public class IotDevice {
                            @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
             throws SensorApiManager.CannotUseDeviceApiException {
 
+        final ChildDeviceParser parser =
+                new ChildDeviceParser(sensorApiManager, childDevices, 0, null);
+        requestChildDevices(parser, new Response.Listener<List<IotDevice>>() {
+            @Override
+            public void onResponse(List<IotDevice> devices) {
+                parser.complete(devices);
+                childDevices = parser.toCache(devices);
+                devicesReceivedListener.onDevicesReceived(devices);
+            }
+        }, errorListener);
+    }
+
+    /**
+     * Get all the associated children devices behind this device, if it's a GW module, in chunks
+     * handed over as the response is parsed. Meant for gateways with thousands of children. See
+     * {@link #getDevices(DevicesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param chunkSize The amount of devices in every chunk but the last one, which may hold
+     *                  fewer.
+     * @param chunkListener Called with every chunk of devices, in order.
+     * @param completionListener Called after the last chunk. Use {@code null} if you don't need
+     *                           to know.
+     * @param errorListener An error listener. Use {@code null} if you want to ignore the error. If
+     *                      the response turns out to be invalid, some chunks may have been handed
+     *                      over already.
+     * @throws SensorApiManager.CannotUseDeviceApiException When there is no authentication token for
+     * this device. Call {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)} to
+     * get a valid authentication token.
+     */
+    public void getDevices(int chunkSize, final DevicesReceivedListener chunkListener,
+                           @Nullable final Runnable completionListener,
+                           @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
+            throws SensorApiManager.CannotUseDeviceApiException {
+
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+        final ChildDeviceParser parser =
+                new ChildDeviceParser(sensorApiManager, childDevices, chunkSize, chunkListener);
+        requestChildDevices(parser, new Response.Listener<List<IotDevice>>() {
+            @Override
+            public void onResponse(List<IotDevice> devices) {
+                List<IotDevice> rest = parser.complete(devices);
+                childDevices = parser.toCache(devices);
+                if (!rest.isEmpty()) chunkListener.onDevicesReceived(rest);
+                if (completionListener != null) completionListener.run();
+            }
+        }, errorListener);
+    }
+
+    private void requestChildDevices(ChildDeviceParser parser,
+                                     Response.Listener<List<IotDevice>> listener,
+                                     @Nullable final SensorApiManager.SensorApiErrorListener errorListener)
+            throws SensorApiManager.CannotUseDeviceApiException {
+
         if (sn == null || key == null || authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
 
         String endpoint = SensorApiManager.DEVICE_CHILD_DEVICES_ENDPOINT;
-        AuthenticatedJsonArrayRequest request =
-                new AuthenticatedJsonArrayRequest(Request.Method.GET, endpoint,
-                        new Response.Listener<JSONArray>() {
-                            @Override
-                            public void onResponse(JSONArray response) {
-                                List<IotDevice> devices = new ArrayList<>();
-                                try {
-                                    for (int i = 0; i < response.length(); i++) {
-                                        JSONObject deviceObject = response.getJSONObject(i);
-                                        IotDevice device = new IotDevice();
-                                        device.sensorApiManager = sensorApiManager;
-                                        parseIotDeviceInformation(deviceObject, device);
-                                        devices.add(device);
-                                    }
-                                } catch (JSONException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }, new Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        if (errorListener != null)
-                            errorListener.onError("Error performing the query: " + error.getMessage());
-                    }
-                });
+        AuthenticatedStreamingRequest<List<IotDevice>> request = new AuthenticatedStreamingRequest<>(
+                Request.Method.GET, endpoint, parser, false, listener, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                if (errorListener != null)
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
+            }
+        });
         sensorApiManager.performRequest(request);
 
     }
 
+    /**
+     * Returns the children of this device received by the last call to
+     * {@link #getDevices(DevicesReceivedListener, SensorApiManager.SensorApiErrorListener)}, without
+     * contacting the API.
+     * @return A read-only list of the children, empty if they were never received.
+     */
+    public List<IotDevice> getCachedDevices() {
+        return childDevices.devices;
+    }
+
     /**
      * Clears all messages within this device.
      * @param successListener A functional interface to execute if the request was successful.
@@ -459,7 +920,7 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null)
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
             }
         });
         sensorApiManager.performRequest(request);
@@ -483,20 +944,8 @@ public class IotDevice {
         if (authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
         if (sn == null || id == null) throw new MissingInformationException();
 
-        String[] params = new String[2];
-        params[0] = String.valueOf(id);
-        params[1] = value == null ? "UNKNOWN" : value;
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_CHANGE_STATUS_ENDPOINT,
-                    DEVICE_CHANGE_STATUS_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
+        String endpoint = DEVICE_CHANGE_STATUS_TEMPLATE.builder()
+                .param(id).param(value == null ? "UNKNOWN" : value).build();
 
         AuthenticatedStringRequest request = new AuthenticatedStringRequest(Request.Method.POST,
                 endpoint, new Response.Listener<String>() {
@@ -508,7 +957,7 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null) {
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
                 }
             }
         });
@@ -533,21 +982,8 @@ public class IotDevice {
         if (authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
         if (sn == null || key == null || id == null) throw new MissingInformationException();
 
-        String[] params = new String[2];
-        params[0] = String.valueOf(id);
-        params[1] = String.valueOf(sn);
-        params[2] = value ? "true" : "false";
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_SET_ACTIVE_FLAG_ENDPOINT,
-                    DEVICE_SET_ACTIVE_FLAG_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
+        String endpoint = DEVICE_SET_ACTIVE_FLAG_TEMPLATE.builder()
+                .param(id).param(sn).param(value).build();
 
         AuthenticatedStringRequest request = new AuthenticatedStringRequest(Request.Method.POST,
                 endpoint, new Response.Listener<String>() {
@@ -559,7 +995,7 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null) {
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
                 }
             }
         });
@@ -584,21 +1020,8 @@ public class IotDevice {
         if (authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
         if (sn == null || key == null || id == null) throw new MissingInformationException();
 
-        String[] params = new String[2];
-        params[0] = String.valueOf(id);
-        params[1] = String.valueOf(sn);
-        params[2] = value ? "true" : "false";
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_SET_MONITORING_FLAG_ENDPOINT,
-                    DEVICE_SET_MONITORING_FLAG_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
+        String endpoint = DEVICE_SET_MONITORING_FLAG_TEMPLATE.builder()
+                .param(id).param(sn).param(value).build();
 
         AuthenticatedStringRequest request = new AuthenticatedStringRequest(Request.Method.POST,
                 endpoint, new Response.Listener<String>() {
@@ -610,7 +1033,7 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null) {
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
                 }
             }
         });
@@ -635,21 +1058,8 @@ public class IotDevice {
         if (authToken == null) throw new SensorApiManager.CannotUseDeviceApiException();
         if (sn == null || key == null || id == null) throw new MissingInformationException();
 
-        String[] params = new String[2];
-        params[0] = String.valueOf(id);
-        params[1] = String.valueOf(sn);
-        params[2] = value ? "true" : "false";
-
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVICE_SET_BIDIR_VALUE_ENDPOINT,
-                    DEVICE_SET_BIDIR_VALUE_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            e.printStackTrace();
-            if (errorListener != null)
-                errorListener.onError("TDGateway error, invalid parameters size.");
-            return;
-        }
+        String endpoint = DEVICE_SET_BIDIR_VALUE_TEMPLATE.builder()
+                .param(id).param(sn).param(value).build();
 
         AuthenticatedStringRequest request = new AuthenticatedStringRequest(Request.Method.POST,
                 endpoint, new Response.Listener<String>() {
@@ -661,7 +1071,7 @@ public class IotDevice {
             @Override
             public void onErrorResponse(VolleyError error) {
                 if (errorListener != null) {
-                    errorListener.onError("Error performing the query: " + error.getMessage());
+                    errorListener.onError(SensorApiError.fromVolleyError(error));
                 }
             }
         });
@@ -670,54 +1080,715 @@ public class IotDevice {
 
     //endregion
 
+    //region Async API calls
+
+    /*
+     * Future and publisher variants of the API calls above. They never throw when the device or
+     * the manager isn't ready: the returned future fails instead, with an AUTHENTICATION error.
+     */
+
+    /**
+     * Obtain this device's information from the Developer API. See
+     * {@link #obtainIotDeviceInformation(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @return A future of this device, completed once its information has been acquired.
+     */
+    public SensorFuture<IotDevice> obtainIotDeviceInformationAsync() {
+        SensorFuture<IotDevice> future = new SensorFuture<>();
+        try {
+            obtainIotDeviceInformation(future.setter(this), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeveloperApiException e) {
+            future.setError(new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                    "The developer authentication token isn't set."));
+        }
+        return future;
+    }
+
+    /**
+     * Obtain an authentication token from the Device API. See
+     * {@link #obtainAuthToken(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @return A future of this device, completed once it can use the Device API. It fails with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the device serial number or device key
+     * are missing.
+     */
+    public SensorFuture<IotDevice> obtainAuthTokenAsync() {
+        SensorFuture<IotDevice> future = new SensorFuture<>();
+        try {
+            obtainAuthToken(future.setter(this), future.errorListener());
+        } catch (MissingInformationException e) {
+            future.setError(new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                    "The device serial number or device key is missing."));
+        }
+        return future;
+    }
+
+    /**
+     * Get a certain amount of the oldest messages until a certain Date. See
+     * {@link #getMessagesHistory(int, Date, IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param amount The amount of messages to retrieve, use 0 to use the default API value.
+     * @param until Until this {@link Date}. Use {@code null} for the current instant.
+     * @return A future of the messages.
+     */
+    public SensorFuture<List<IotMessage>> getMessagesHistoryAsync(int amount, @Nullable Date until) {
+        final SensorFuture<List<IotMessage>> future = new SensorFuture<>();
+        try {
+            getMessagesHistory(amount, until, new IotMessagesReceivedListener() {
+                @Override
+                public void onMessagesReceived(List<IotMessage> messages) {
+                    future.set(messages);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Get a certain amount of the latest messages after a certain Date. See
+     * {@link #getLatestMessages(int, Date, IotMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param amount The amount of messages to retrieve, use 0 to use the default API value.
+     * @param after After this {@link Date}. Use {@code null} for no lower bound.
+     * @return A future of the messages.
+     */
+    public SensorFuture<List<IotMessage>> getLatestMessagesAsync(int amount, @Nullable Date after) {
+        final SensorFuture<List<IotMessage>> future = new SensorFuture<>();
+        try {
+            getLatestMessages(amount, after, new IotMessagesReceivedListener() {
+                @Override
+                public void onMessagesReceived(List<IotMessage> messages) {
+                    future.set(messages);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Get a certain amount of the oldest RAW messages before a certain Date. See
+     * {@link #getRawMessagesHistory(int, Date, RawMessagesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param limit The amount of raw messages to retrieve, use 0 to use the default API value.
+     * @param before Before this {@link Date}. Use {@code null} for the current instant.
+     * @return A future of the RAW messages.
+     */
+    public SensorFuture<List<RawMessage>> getRawMessagesHistoryAsync(int limit, @Nullable Date before) {
+        final SensorFuture<List<RawMessage>> future = new SensorFuture<>();
+        try {
+            getRawMessagesHistory(limit, before, new RawMessagesReceivedListener() {
+                @Override
+                public void onMessagesReceived(List<RawMessage> messages) {
+                    future.set(messages);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Get a columnar batch of the oldest messages until a certain Date. See
+     * {@link #getMessagesHistoryBatch(int, Date, IotMessageBatchReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param amount The amount of messages to retrieve, use 0 to use the default API value.
+     * @param until Until this {@link Date}. Use {@code null} for the current instant.
+     * @return A future of the batch.
+     */
+    public SensorFuture<IotMessageBatch> getMessagesHistoryBatchAsync(int amount, @Nullable Date until) {
+        final SensorFuture<IotMessageBatch> future = new SensorFuture<>();
+        try {
+            getMessagesHistoryBatch(amount, until, new IotMessageBatchReceivedListener() {
+                @Override
+                public void onBatchReceived(IotMessageBatch batch) {
+                    future.set(batch);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Get a columnar batch of the oldest RAW messages before a certain Date. See
+     * {@link #getRawMessagesHistoryBatch(int, Date, RawMessageBatchReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @param limit The amount of raw messages to retrieve, use 0 to use the default API value.
+     * @param before Before this {@link Date}. Use {@code null} for the current instant.
+     * @return A future of the batch.
+     */
+    public SensorFuture<RawMessageBatch> getRawMessagesHistoryBatchAsync(int limit, @Nullable Date before) {
+        final SensorFuture<RawMessageBatch> future = new SensorFuture<>();
+        try {
+            getRawMessagesHistoryBatch(limit, before, new RawMessageBatchReceivedListener() {
+                @Override
+                public void onBatchReceived(RawMessageBatch batch) {
+                    future.set(batch);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Publish the whole message history of this device, page by page, from newest to oldest. Pages
+     * are only fetched as the subscriber requests them. See
+     * {@link #getMessagesHistoryCursor(int, Date, int)}.
+     * @param amount The amount of messages per page, use 0 to use the default API value.
+     * @param until Start walking back from this {@link Date}. Use {@code null} for the current
+     *              instant.
+     * @param prefetchDepth The maximum amount of pages fetched ahead of the subscriber.
+     * @return A publisher of the pages. Every subscriber walks the history on its own.
+     */
+    public Publisher<List<IotMessage>> getMessagesHistoryPublisher(final int amount,
+                                                                   @Nullable final Date until,
+                                                                   final int prefetchDepth) {
+        return new HistoryPublisher<IotMessage>() {
+            @Override
+            HistoryCursor<IotMessage> openCursor() {
+                return getMessagesHistoryCursor(amount, until, prefetchDepth);
+            }
+        };
+    }
+
+    /**
+     * Publish the whole RAW message history of this device, page by page, from newest to oldest.
+     * Pages are only fetched as the subscriber requests them. See
+     * {@link #getRawMessagesHistoryCursor(int, Date, int)}.
+     * @param limit The amount of raw messages per page, use 0 to use the default API value.
+     * @param before Start walking back from this {@link Date}. Use {@code null} for the current
+     *               instant.
+     * @param prefetchDepth The maximum amount of pages fetched ahead of the subscriber.
+     * @return A publisher of the pages. Every subscriber walks the history on its own.
+     */
+    public Publisher<List<RawMessage>> getRawMessagesHistoryPublisher(final int limit,
+                                                                      @Nullable final Date before,
+                                                                      final int prefetchDepth) {
+        return new HistoryPublisher<RawMessage>() {
+            @Override
+            HistoryCursor<RawMessage> openCursor() {
+                return getRawMessagesHistoryCursor(limit, before, prefetchDepth);
+            }
+        };
+    }
+
+    /**
+     * Get the child devices of this device. See
+     * {@link #getDevices(DevicesReceivedListener, SensorApiManager.SensorApiErrorListener)}.
+     * @return A future of the child devices.
+     */
+    public SensorFuture<List<IotDevice>> getDevicesAsync() {
+        final SensorFuture<List<IotDevice>> future = new SensorFuture<>();
+        try {
+            getDevices(new DevicesReceivedListener() {
+                @Override
+                public void onDevicesReceived(List<IotDevice> devices) {
+                    future.set(devices);
+                }
+            }, future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Clears all messages within this device. See
+     * {@link #clearMessages(Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @return A future completed once the messages have been cleared.
+     */
+    public SensorFuture<Void> clearMessagesAsync() {
+        SensorFuture<Void> future = new SensorFuture<>();
+        try {
+            clearMessages(future.setter(null), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        }
+        return future;
+    }
+
+    /**
+     * Change the functional status of this device. See
+     * {@link #changeFunctionalStatus(String, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @param value The functional status. This is a user-designed tag.
+     * @return A future completed once the status has been changed. It fails with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the {@code id} of this device is unknown.
+     */
+    public SensorFuture<Void> changeFunctionalStatusAsync(@Nullable String value) {
+        SensorFuture<Void> future = new SensorFuture<>();
+        try {
+            changeFunctionalStatus(value, future.setter(null), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        } catch (MissingInformationException e) {
+            future.setError(missingIdError());
+        }
+        return future;
+    }
+
+    /**
+     * Set the "active" flag of this device. See
+     * {@link #setActiveFlag(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @param value The value to set the "active" flag to.
+     * @return A future completed once the flag has been set. It fails with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the {@code id} of this device is unknown.
+     */
+    public SensorFuture<Void> setActiveFlagAsync(boolean value) {
+        SensorFuture<Void> future = new SensorFuture<>();
+        try {
+            setActiveFlag(value, future.setter(null), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        } catch (MissingInformationException e) {
+            future.setError(missingIdError());
+        }
+        return future;
+    }
+
+    /**
+     * Set the "monitoring" flag of this device. See
+     * {@link #setMonitoringFlag(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @param value The value to set the "monitoring" flag to.
+     * @return A future completed once the flag has been set. It fails with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the {@code id} of this device is unknown.
+     */
+    public SensorFuture<Void> setMonitoringFlagAsync(boolean value) {
+        SensorFuture<Void> future = new SensorFuture<>();
+        try {
+            setMonitoringFlag(value, future.setter(null), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        } catch (MissingInformationException e) {
+            future.setError(missingIdError());
+        }
+        return future;
+    }
+
+    /**
+     * Set the "bidir" value of this device. See
+     * {@link #setBidirValue(boolean, Runnable, SensorApiManager.SensorApiErrorListener)}.
+     * @param value The value to set the "bidir" value to.
+     * @return A future completed once the value has been set. It fails with an
+     * {@link SensorApiError.Kind#AUTHENTICATION} error when the {@code id} of this device is unknown.
+     */
+    public SensorFuture<Void> setBidirValueAsync(boolean value) {
+        SensorFuture<Void> future = new SensorFuture<>();
+        try {
+            setBidirValue(value, future.setter(null), future.errorListener());
+        } catch (SensorApiManager.CannotUseDeviceApiException e) {
+            future.setError(notAuthenticatedError());
+        } catch (MissingInformationException e) {
+            future.setError(missingIdError());
+        }
+        return future;
+    }
+
+    private SensorApiError notAuthenticatedError() {
+        return new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                "Device " + sn + " has no authentication token.");
+    }
+
+    private SensorApiError missingIdError() {
+        return new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                "The device id, serial number or device key is missing.");
+    }
+
+    //endregion
+
     //region Helpers
 
-    private IotMessage parseIotMessage(JSONObject object) throws JSONException {
+    static final SensorStreamingRequest.ItemParser<IotMessage> IOT_MESSAGE_PARSER =
+            new SensorStreamingRequest.ItemParser<IotMessage>() {
+        @Override
+        public IotMessage parse(JsonTokenizer tokenizer) throws JsonTokenizer.MalformedJsonException {
+            return parseIotMessage(tokenizer);
+        }
+
+        @Override
+        public IotMessage parse(JSONObject object, boolean retainJson) throws JSONException {
+            return parseIotMessage(object, retainJson);
+        }
+    };
+
+    static final SensorStreamingRequest.ItemParser<RawMessage> RAW_MESSAGE_PARSER =
+            new SensorStreamingRequest.ItemParser<RawMessage>() {
+        @Override
+        public RawMessage parse(JsonTokenizer tokenizer) throws JsonTokenizer.MalformedJsonException {
+            return parseRawMessage(tokenizer);
+        }
+
+        @Override
+        public RawMessage parse(JSONObject object, boolean retainJson) throws JSONException {
+            return parseRawMessage(object, retainJson);
+        }
+    };
+
+    static final SensorStreamingRequest.PageParser<List<IotMessage>> IOT_MESSAGE_PAGE_PARSER =
+            SensorStreamingRequest.listOf(IOT_MESSAGE_PARSER);
+
+    static final SensorStreamingRequest.PageParser<List<RawMessage>> RAW_MESSAGE_PAGE_PARSER =
+            SensorStreamingRequest.listOf(RAW_MESSAGE_PARSER);
+
+    static final SensorStreamingRequest.PageParser<IotMessageBatch> IOT_MESSAGE_BATCH_PARSER =
+            new SensorStreamingRequest.PageParser<IotMessageBatch>() {
+        @Override
+        public IotMessageBatch newPage(int sizeHint) {
+            return new IotMessageBatch(sizeHint > 0 ? sizeHint : 64);
+        }
+
+        @Override
+        public void parse(JsonTokenizer tokenizer, IotMessageBatch batch)
+                throws JsonTokenizer.MalformedJsonException {
+            parseIotMessage(tokenizer, batch);
+        }
+
+        @Override
+        public void parse(JSONObject object, boolean retainJson, IotMessageBatch batch)
+                throws JSONException {
+            IotMessage message = parseIotMessage(object, false);
+            batch.add(message.when, message.received);
+            if (message.payload != null)
+                batch.setPayload(message.payload, message.payloadOffset, message.payloadLength);
+        }
+    };
+
+    static final SensorStreamingRequest.PageParser<RawMessageBatch> RAW_MESSAGE_BATCH_PARSER =
+            new SensorStreamingRequest.PageParser<RawMessageBatch>() {
+        @Override
+        public RawMessageBatch newPage(int sizeHint) {
+            return new RawMessageBatch(sizeHint > 0 ? sizeHint : 64);
+        }
+
+        @Override
+        public void parse(JsonTokenizer tokenizer, RawMessageBatch batch)
+                throws JsonTokenizer.MalformedJsonException {
+            parseRawMessage(tokenizer, batch);
+        }
+
+        @Override
+        public void parse(JSONObject object, boolean retainJson, RawMessageBatch batch)
+                throws JSONException {
+            RawMessage message = parseRawMessage(object, false);
+            batch.add();
+            batch.setDevice(message.device);
+            batch.setTime(message.time);
+            batch.setSnr(message.snr);
+            if (message.payload != null)
+                batch.setPayload(message.payload, message.payloadOffset, message.payloadLength);
+            for (int i = 0; i < message.getReceptionCount(); i++) {
+                batch.addReception(message.taps[i], message.signals[2 * i],
+                        message.signals[2 * i + 1]);
+            }
+        }
+    };
+
+    static IotMessage parseIotMessage(JSONObject object, boolean retainJson) throws JSONException {
 
         IotMessage iotMessage = new IotMessage();
-        iotMessage.received = new Date(object.getLong("received") /*- GMT_TIMEZONE*3600*/);
-        iotMessage.when = new Date(object.getLong("when") /*- GMT_TIMEZONE*3600*/);
+        iotMessage.received = object.getLong("received") /*- GMT_TIMEZONE*3600*/;
+        iotMessage.when = object.getLong("when") /*- GMT_TIMEZONE*3600*/;
         //message.payload = object.has("payload") ? object.getString("payload").getBytes() : null;
-        iotMessage.payload = null;
         if (object.has("extra")) {
             JSONObject extra = object.getJSONObject("extra");
             String message = extra.has("message") ? extra.getString("message") : null;
-            if (message != null && message.length() != 0 && message.length() % 2 == 0) {
-                iotMessage.payload = hexStringToByteArray(message);
+            if (message != null && PayloadCodec.isHexPayload(message.length())) {
+                iotMessage.setPayload(PayloadCodec.decodeHex(message));
+            }
+        }
+        if (retainJson) iotMessage.jsonObject = object;
+        return iotMessage;
+    }
+
+    static IotMessage parseIotMessage(JsonTokenizer tokenizer)
+            throws JsonTokenizer.MalformedJsonException {
+
+        IotMessage iotMessage = new IotMessage();
+        boolean hasReceived = false, hasWhen = false;
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            if (name.equals("received")) {
+                iotMessage.received = tokenizer.nextLong();
+                hasReceived = true;
+            } else if (name.equals("when")) {
+                iotMessage.when = tokenizer.nextLong();
+                hasWhen = true;
+            } else if (name.equals("extra") && tokenizer.peek() == JsonTokenizer.Token.BEGIN_OBJECT) {
+                tokenizer.beginObject();
+                while (tokenizer.hasNext()) {
+                    if (tokenizer.nextName().equals("message")
+                            && tokenizer.peek() == JsonTokenizer.Token.STRING) {
+                        readHexPayload(tokenizer, iotMessage);
+                    } else {
+                        tokenizer.skipValue();
+                    }
+                }
+                tokenizer.endObject();
+            } else {
+                tokenizer.skipValue();
             }
         }
-        iotMessage.jsonObject = object;
+        tokenizer.endObject();
+        if (!hasReceived || !hasWhen)
+            throw new JsonTokenizer.MalformedJsonException("Message without timestamps");
         return iotMessage;
     }
 
-    private static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
+    private static void parseIotMessage(JsonTokenizer tokenizer, IotMessageBatch batch)
+            throws JsonTokenizer.MalformedJsonException {
+
+        long received = 0, when = 0;
+        boolean hasReceived = false, hasWhen = false;
+        String payload = null;
+        int payloadLength = -1;
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            if (name.equals("received")) {
+                received = tokenizer.nextLong();
+                hasReceived = true;
+            } else if (name.equals("when")) {
+                when = tokenizer.nextLong();
+                hasWhen = true;
+            } else if (name.equals("extra") && tokenizer.peek() == JsonTokenizer.Token.BEGIN_OBJECT) {
+                tokenizer.beginObject();
+                while (tokenizer.hasNext()) {
+                    if (tokenizer.nextName().equals("message")
+                            && tokenizer.peek() == JsonTokenizer.Token.STRING) {
+                        int digits = tokenizer.peekPlainStringLength();
+                        if (digits < 0) payload = tokenizer.nextString();
+                        else if (PayloadCodec.isHexPayload(digits))
+                            payloadLength = batch.stageHexPayload(tokenizer, digits);
+                        else tokenizer.skipValue();
+                    } else {
+                        tokenizer.skipValue();
+                    }
+                }
+                tokenizer.endObject();
+            } else {
+                tokenizer.skipValue();
+            }
+        }
+        tokenizer.endObject();
+        if (!hasReceived || !hasWhen)
+            throw new JsonTokenizer.MalformedJsonException("Message without timestamps");
+        batch.add(when, received);
+        if (payloadLength >= 0) batch.commitPayload(payloadLength);
+        else if (payload != null && PayloadCodec.isHexPayload(payload.length()))
+            batch.setHexPayload(payload);
+    }
+
+    /**
+     * Decodes the hexadecimal payload of a message straight from the response, into the slab of
+     * the response.
+     */
+    private static void readHexPayload(JsonTokenizer tokenizer, IotMessage message)
+            throws JsonTokenizer.MalformedJsonException {
+        int digits = tokenizer.peekPlainStringLength();
+        if (digits < 0) {
+            String hex = tokenizer.nextString();
+            if (PayloadCodec.isHexPayload(hex.length()))
+                message.setPayload(PayloadCodec.decodeHex(hex));
+        } else if (PayloadCodec.isHexPayload(digits)) {
+            PayloadCodec.Slab slab = tokenizer.slab();
+            byte[] array = slab.reserve(digits / 2);
+            tokenizer.nextHexString(digits, array, slab.offset());
+            message.setPayload(array, slab.offset(), digits / 2);
+        } else {
+            tokenizer.skipValue();
         }
-        return data;
     }
 
-    private RawMessage parseRawMessage(JSONObject object) throws JSONException {
+    /**
+     * Copies the payload of a raw message straight from the response, into the slab of the
+     * response.
+     */
+    private static void readRawPayload(JsonTokenizer tokenizer, RawMessage message)
+            throws JsonTokenizer.MalformedJsonException {
+        int length = tokenizer.peekPlainStringLength();
+        if (length < 0) {
+            message.setPayload(tokenizer.nextString().getBytes(JsonTokenizer.UTF_8));
+        } else {
+            PayloadCodec.Slab slab = tokenizer.slab();
+            byte[] array = slab.reserve(length);
+            tokenizer.nextStringBytes(length, array, slab.offset());
+            message.setPayload(array, slab.offset(), length);
+        }
+    }
+
+    static RawMessage parseRawMessage(JSONObject object, boolean retainJson) throws JSONException {
         RawMessage message = new RawMessage();
-        message.device = object.getString("device");
-        message.time = new Date(object.getLong("time"));
-        message.payload = object.has("payload") ? object.getString("payload").getBytes() : null;
+        message.device = RawMessage.intern(object.getString("device"));
+        message.time = object.getLong("time");
+        if (object.has("payload")) {
+            message.setPayload(object.getString("payload").getBytes(JsonTokenizer.UTF_8));
+        }
         message.snr = object.getDouble("snr");
         JSONArray rinfos = object.getJSONArray("rinfos");
+        String[] taps = new String[rinfos.length()];
+        double[] signals = new double[2 * rinfos.length()];
         for (int i = 0; i < rinfos.length(); i++) {
             JSONObject rinfo = rinfos.getJSONObject(i);
-            String tap = rinfo.getString("tap");
-            double snr = rinfo.getDouble("snr");
-            double rssi = rinfo.getDouble("rssi");
-            message.rinfos.add(new RawMessage.ReceptionInfo(tap, snr, rssi));
+            taps[i] = RawMessage.intern(rinfo.getString("tap"));
+            signals[2 * i] = rinfo.getDouble("snr");
+            signals[2 * i + 1] = rinfo.getDouble("rssi");
+        }
+        message.setReceptions(taps, signals);
+        if (retainJson) message.jsonObject = object;
+        return message;
+    }
+
+    static RawMessage parseRawMessage(JsonTokenizer tokenizer)
+            throws JsonTokenizer.MalformedJsonException {
+
+        RawMessage message = new RawMessage();
+        boolean hasTime = false, hasSnr = false, hasRinfos = false;
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            switch (name) {
+                case "device":
+                    message.device = RawMessage.intern(tokenizer.nextString());
+                    break;
+                case "time":
+                    message.time = tokenizer.nextLong();
+                    hasTime = true;
+                    break;
+                case "payload":
+                    if (tokenizer.peek() == JsonTokenizer.Token.STRING)
+                        readRawPayload(tokenizer, message);
+                    else tokenizer.skipValue();
+                    break;
+                case "snr":
+                    message.snr = tokenizer.nextDouble();
+                    hasSnr = true;
+                    break;
+                case "rinfos":
+                    parseReceptions(tokenizer, message);
+                    hasRinfos = true;
+                    break;
+                default:
+                    tokenizer.skipValue();
+            }
         }
-        message.jsonObject = object;
+        tokenizer.endObject();
+        if (message.device == null || !hasTime || !hasSnr || !hasRinfos)
+            throw new JsonTokenizer.MalformedJsonException("Incomplete raw message");
         return message;
     }
 
+    private static void parseRawMessage(JsonTokenizer tokenizer, RawMessageBatch batch)
+            throws JsonTokenizer.MalformedJsonException {
+
+        boolean hasDevice = false, hasTime = false, hasSnr = false, hasRinfos = false;
+        batch.add();
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            switch (name) {
+                case "device":
+                    batch.setDevice(RawMessage.intern(tokenizer.nextString()));
+                    hasDevice = true;
+                    break;
+                case "time":
+                    batch.setTime(tokenizer.nextLong());
+                    hasTime = true;
+                    break;
+                case "payload":
+                    if (tokenizer.peek() == JsonTokenizer.Token.STRING) batch.readPayload(tokenizer);
+                    else tokenizer.skipValue();
+                    break;
+                case "snr":
+                    batch.setSnr(tokenizer.nextDouble());
+                    hasSnr = true;
+                    break;
+                case "rinfos":
+                    tokenizer.beginArray();
+                    while (tokenizer.hasNext()) parseReception(tokenizer, batch);
+                    tokenizer.endArray();
+                    hasRinfos = true;
+                    break;
+                default:
+                    tokenizer.skipValue();
+            }
+        }
+        tokenizer.endObject();
+        if (!hasDevice || !hasTime || !hasSnr || !hasRinfos)
+            throw new JsonTokenizer.MalformedJsonException("Incomplete raw message");
+    }
+
+    private static void parseReception(JsonTokenizer tokenizer, RawMessageBatch batch)
+            throws JsonTokenizer.MalformedJsonException {
+        String tap = null;
+        double snr = 0, rssi = 0;
+        boolean hasSnr = false, hasRssi = false;
+        tokenizer.beginObject();
+        while (tokenizer.hasNext()) {
+            String name = tokenizer.nextName();
+            switch (name) {
+                case "tap":
+                    tap = RawMessage.intern(tokenizer.nextString());
+                    break;
+                case "snr":
+                    snr = tokenizer.nextDouble();
+                    hasSnr = true;
+                    break;
+                case "rssi":
+                    rssi = tokenizer.nextDouble();
+                    hasRssi = true;
+                    break;
+                default:
+                    tokenizer.skipValue();
+            }
+        }
+        tokenizer.endObject();
+        if (tap == null || !hasSnr || !hasRssi)
+            throw new JsonTokenizer.MalformedJsonException("Incomplete reception info");
+        batch.addReception(tap, snr, rssi);
+    }
+
+    private static void parseReceptions(JsonTokenizer tokenizer, RawMessage message)
+            throws JsonTokenizer.MalformedJsonException {
+        String[] taps = new String[4];
+        double[] signals = new double[8];
+        int count = 0;
+        tokenizer.beginArray();
+        while (tokenizer.hasNext()) {
+            if (count == taps.length) {
+                taps = Arrays.copyOf(taps, 2 * count);
+                signals = Arrays.copyOf(signals, 4 * count);
+            }
+            String tap = null;
+            boolean hasSnr = false, hasRssi = false;
+            tokenizer.beginObject();
+            while (tokenizer.hasNext()) {
+                String name = tokenizer.nextName();
+                switch (name) {
+                    case "tap":
+                        tap = RawMessage.intern(tokenizer.nextString());
+                        break;
+                    case "snr":
+                        signals[2 * count] = tokenizer.nextDouble();
+                        hasSnr = true;
+                        break;
+                    case "rssi":
+                        signals[2 * count + 1] = tokenizer.nextDouble();
+                        hasRssi = true;
+                        break;
+                    default:
+                        tokenizer.skipValue();
+                }
+            }
+            tokenizer.endObject();
+            if (tap == null || !hasSnr || !hasRssi)
+                throw new JsonTokenizer.MalformedJsonException("Incomplete reception info");
+            taps[count++] = tap;
+        }
+        tokenizer.endArray();
+        message.setReceptions(Arrays.copyOf(taps, count), Arrays.copyOf(signals, 2 * count));
+    }
+
     //endregion
 
     //region Field getters
@@ -746,6 +1817,15 @@ public class IotDevice {
         return category;
     }
 
+    /**
+     * Returns the decoder of this device's payloads, registered for its category with
+     * {@link SensorApiManager#registerPayloadDecoder(String, PayloadDecoder)}.
+     * @return The decoder, or {@code null} if the category is unknown or has no decoder.
+     */
+    public @Nullable PayloadDecoder getPayloadDecoder() {
+        return sensorApiManager.getPayloadDecoder(category);
+    }
+
     public int getIndex() {
         return index;
     }
@@ -792,24 +1872,38 @@ public class IotDevice {
 
     //endregion
 
-    private class AuthenticatedJsonArrayRequest extends SensorJsonRequest {
+    private class AuthenticatedStreamingRequest<P> extends SensorStreamingRequest<P> {
 
         private final Map<String, String> headers = new HashMap<>();
 
-        AuthenticatedJsonArrayRequest(int method, String url,
-                                      Response.Listener<JSONArray> listener,
+        AuthenticatedStreamingRequest(int method, String url,
+                                      SensorStreamingRequest.PageParser<P> pageParser,
+                                      Response.Listener<P> listener,
                                       Response.ErrorListener errorListener) {
-            super(method, url, listener, errorListener);
+            this(method, url, pageParser, sensorApiManager.isRetainingJson(), listener, errorListener);
+        }
+
+        AuthenticatedStreamingRequest(int method, String url,
+                                      SensorStreamingRequest.PageParser<P> pageParser,
+                                      boolean retainJson, Response.Listener<P> listener,
+                                      Response.ErrorListener errorListener) {
+            super(method, url, pageParser, retainJson, listener, errorListener);
             headers.put(AUTH_HEADER, authToken);
         }
 
         @Override
-        public Map<String, String> getHeaders() throws AuthFailureError {
+        void deliverError(VolleyError error) {
+            if (isAuthenticationFailure(error)) onAuthTokenRejected(headers.get(AUTH_HEADER));
+            super.deliverError(error);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
             return headers;
         }
 
     }
-    private class AuthenticatedStringRequest extends StringRequest {
+    private class AuthenticatedStringRequest extends SensorStringRequest {
 
         private final Map<String, String> headers = new HashMap<>();
 
@@ -821,7 +1915,13 @@ public class IotDevice {
         }
 
         @Override
-        public Map<String, String> getHeaders() throws AuthFailureError {
+        void deliverError(VolleyError error) {
+            if (isAuthenticationFailure(error)) onAuthTokenRejected(headers.get(AUTH_HEADER));
+            super.deliverError(error);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
             return headers;
         }
     }
@@ -835,6 +1935,12 @@ public class IotDevice {
     public interface RawMessagesReceivedListener {
         void onMessagesReceived(List<RawMessage> messages);
     }
+    public interface IotMessageBatchReceivedListener {
+        void onBatchReceived(IotMessageBatch batch);
+    }
+    public interface RawMessageBatchReceivedListener {
+        void onBatchReceived(RawMessageBatch batch);
+    }
     public interface DevicesReceivedListener {
         void onDevicesReceived(List<IotDevice> devices);
     }
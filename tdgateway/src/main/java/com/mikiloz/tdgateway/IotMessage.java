@@ -4,32 +4,99 @@ import android.support.annotation.Nullable;
 
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 
 
 public class IotMessage {
 
-    Date when, received;
+    long when, received;
+    /** The array the payload is stored in, from {@link #payloadOffset}, possibly shared. */
     byte[] payload;
+    int payloadOffset, payloadLength;
     JSONObject jsonObject;
 
     public Date getReceptionDate() {
-        return when;
+        return new Date(when);
     }
     public Date getEmissionDate() {
+        return new Date(received);
+    }
+
+    /**
+     * Get the reception timestamp, without allocating a {@link Date}.
+     * @return The reception timestamp, in milliseconds since the epoch.
+     */
+    public long getReceptionTime() {
+        return when;
+    }
+
+    /**
+     * Get the emission timestamp, without allocating a {@link Date}.
+     * @return The emission timestamp, in milliseconds since the epoch.
+     */
+    public long getEmissionTime() {
         return received;
     }
 
     /**
-     * Returns the message's payload.
+     * Returns the message's payload. Payloads are stored in arrays shared by many messages, so this
+     * returns a copy; prefer {@link #getPayloadBuffer()} on hot paths.
      * @return The message's payload, will be null if it has no payload.
      */
     public @Nullable byte[] getPayload() {
-        return payload;
+        if (payload == null) return null;
+        if (payloadOffset == 0 && payloadLength == payload.length) return payload.clone();
+        return Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /**
+     * Returns a read-only view of the message's payload, without copying it.
+     * @return The payload, from position 0 to its length, will be null if it has no payload.
+     */
+    public @Nullable ByteBuffer getPayloadBuffer() {
+        if (payload == null) return null;
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
     }
 
+    /**
+     * Returns the length of the message's payload, without copying it.
+     * @return The length, in bytes, or -1 if it has no payload.
+     */
+    public int getPayloadLength() {
+        return payload == null ? -1 : payloadLength;
+    }
+
+    /**
+     * Returns the JSON object this message was parsed from.
+     * @return The JSON object this message was parsed from, will be {@code null} unless
+     * {@link SensorApiManager#setRetainJson(boolean)} was enabled when the message was received.
+     */
     public @Nullable JSONObject getJsonInformation() {
         return jsonObject;
     }
 
+    void setPayload(@Nullable byte[] payload) {
+        setPayload(payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    void setPayload(@Nullable byte[] payload, int offset, int length) {
+        this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+    }
+
+    /**
+     * Returns the hash code of the payload, the same as {@link Arrays#hashCode(byte[])} of
+     * {@link #getPayload()}.
+     */
+    int payloadHashCode() {
+        if (payload == null) return 0;
+        int hash = 1;
+        for (int i = payloadOffset; i < payloadOffset + payloadLength; i++)
+            hash = 31 * hash + payload[i];
+        return hash;
+    }
+
 }
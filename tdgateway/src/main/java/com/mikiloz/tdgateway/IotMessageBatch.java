@@ -0,0 +1,183 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * A page of {@link IotMessage}s stored column by column in primitive arrays. The payloads of every
+ * message share a single byte array, each message referencing its slice through an offset and a
+ * length. Aggregating over a batch touches a few contiguous arrays instead of one object per
+ * message.
+ *
+ * <p>The column getters return the backing arrays, which may be longer than the batch: only the
+ * first {@link #size()} entries are valid. They must not be modified.</p>
+ */
+public class IotMessageBatch {
+
+    private int size;
+    private long[] receptionTimes, emissionTimes;
+    private int[] payloadOffsets, payloadLengths;
+    private byte[] payloadData;
+    private int payloadSize;
+
+    IotMessageBatch(int capacity) {
+        capacity = Math.max(capacity, 4);
+        receptionTimes = new long[capacity];
+        emissionTimes = new long[capacity];
+        payloadOffsets = new int[capacity];
+        payloadLengths = new int[capacity];
+        payloadData = new byte[capacity * 12];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the reception timestamps, in milliseconds since the epoch.
+     * @return The reception timestamp column.
+     */
+    public long[] getReceptionTimes() {
+        return receptionTimes;
+    }
+
+    /**
+     * Get the emission timestamps, in milliseconds since the epoch.
+     * @return The emission timestamp column.
+     */
+    public long[] getEmissionTimes() {
+        return emissionTimes;
+    }
+
+    /**
+     * Get the offset of every message's payload within {@link #getPayloadData()}.
+     * @return The payload offset column.
+     */
+    public int[] getPayloadOffsets() {
+        return payloadOffsets;
+    }
+
+    /**
+     * Get the length of every message's payload, -1 for messages without a payload.
+     * @return The payload length column.
+     */
+    public int[] getPayloadLengths() {
+        return payloadLengths;
+    }
+
+    /**
+     * Get the shared array the payloads are stored in.
+     * @return The payload bytes of every message, one after another.
+     */
+    public byte[] getPayloadData() {
+        return payloadData;
+    }
+
+    /**
+     * Returns a copy of the payload of a message.
+     * @param index The message index, less than {@link #size()}.
+     * @return The payload, or {@code null} if the message has no payload.
+     */
+    public @Nullable byte[] getPayload(int index) {
+        if (payloadLengths[index] < 0) return null;
+        return Arrays.copyOfRange(payloadData, payloadOffsets[index],
+                payloadOffsets[index] + payloadLengths[index]);
+    }
+
+    /**
+     * Returns a read-only view of the payload of a message, without copying it.
+     * @param index The message index, less than {@link #size()}.
+     * @return The payload, from position 0 to its length, or {@code null} if the message has no
+     * payload.
+     */
+    public @Nullable ByteBuffer getPayloadBuffer(int index) {
+        if (payloadLengths[index] < 0) return null;
+        return ByteBuffer.wrap(payloadData, payloadOffsets[index], payloadLengths[index]).slice()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds an {@link IotMessage} out of a row of this batch. Its payload isn't copied, the
+     * message shares the payload array of the batch.
+     * @param index The message index, less than {@link #size()}.
+     * @return The message.
+     */
+    public IotMessage getMessage(int index) {
+        IotMessage message = new IotMessage();
+        message.when = receptionTimes[index];
+        message.received = emissionTimes[index];
+        if (payloadLengths[index] >= 0)
+            message.setPayload(payloadData, payloadOffsets[index], payloadLengths[index]);
+        return message;
+    }
+
+    /**
+     * Starts a new row. Its payload, if any, is appended next.
+     */
+    void add(long receptionTime, long emissionTime) {
+        if (size == receptionTimes.length) {
+            int capacity = size * 2;
+            receptionTimes = Arrays.copyOf(receptionTimes, capacity);
+            emissionTimes = Arrays.copyOf(emissionTimes, capacity);
+            payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+            payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+        }
+        receptionTimes[size] = receptionTime;
+        emissionTimes[size] = emissionTime;
+        payloadOffsets[size] = payloadSize;
+        payloadLengths[size] = -1;
+        size++;
+    }
+
+    /**
+     * Sets the payload of the last row from its hexadecimal representation.
+     */
+    void setHexPayload(String hex) {
+        int length = hex.length() / 2;
+        ensurePayloadCapacity(length);
+        PayloadCodec.decodeHex(hex, payloadData, payloadSize);
+        commitPayload(length);
+    }
+
+    /**
+     * Sets the payload of the last row.
+     */
+    void setPayload(byte[] payload, int offset, int length) {
+        ensurePayloadCapacity(length);
+        System.arraycopy(payload, offset, payloadData, payloadSize, length);
+        commitPayload(length);
+    }
+
+    /**
+     * Decodes a hexadecimal payload straight from the response, ahead of the row it belongs to,
+     * which may only be added once the whole message is parsed. The payload is then set with
+     * {@link #commitPayload(int)}, right after adding the row.
+     * @param digits The length of the next string of the tokenizer, even.
+     * @return The length of the payload.
+     */
+    int stageHexPayload(JsonTokenizer tokenizer, int digits) {
+        int length = digits / 2;
+        ensurePayloadCapacity(length);
+        tokenizer.nextHexString(digits, payloadData, payloadSize);
+        return length;
+    }
+
+    /**
+     * Sets the payload of the last row to the bytes written after the previous payload.
+     */
+    void commitPayload(int length) {
+        payloadOffsets[size - 1] = payloadSize;
+        payloadLengths[size - 1] = length;
+        payloadSize += length;
+    }
+
+    private void ensurePayloadCapacity(int additional) {
+        if (payloadSize + additional > payloadData.length)
+            payloadData = Arrays.copyOf(payloadData,
+                    Math.max(payloadData.length * 2, payloadSize + additional));
+    }
+
+}
@@ -0,0 +1,382 @@
+package com.mikiloz.tdgateway;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * A minimal pull tokenizer that reads JSON straight from a UTF-8 encoded byte buffer, so that a
+ * response can be turned into message objects without first decoding it into a {@link String} and
+ * building an {@code org.json} tree out of it. Separators ({@code ,} and {@code :}) are consumed
+ * implicitly, which makes the tokenizer slightly more lenient than the JSON grammar.
+ */
+final class JsonTokenizer {
+
+    enum Token { BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT }
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final int limit;
+    private int pos;
+    private PayloadCodec.Slab slab;
+
+    JsonTokenizer(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    JsonTokenizer(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     */
+    Token peek() throws MalformedJsonException {
+        skipSeparators();
+        if (pos >= limit) return Token.END_DOCUMENT;
+        switch (data[pos]) {
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '"': return Token.STRING;
+            case 't': case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            case '-': case '0': case '1': case '2': case '3': case '4':
+            case '5': case '6': case '7': case '8': case '9': return Token.NUMBER;
+            default: throw syntaxError("Unexpected character '" + (char) data[pos] + "'");
+        }
+    }
+
+    /**
+     * Returns the offset within the data of what comes next, e.g. to slice a value out of it with
+     * {@link #skipValue()}. Call {@link #peek()} before to skip the separators in front of a value.
+     */
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Returns the data being tokenized. Not a copy: it must not be modified.
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * Returns the slab the payloads read from this data are carved out of, created on first use
+     * and sized from the data left to read.
+     */
+    PayloadCodec.Slab slab() {
+        if (slab == null) slab = new PayloadCodec.Slab(limit - pos);
+        return slab;
+    }
+
+    void beginArray() throws MalformedJsonException {
+        expect('[');
+    }
+
+    void endArray() throws MalformedJsonException {
+        expect(']');
+    }
+
+    void beginObject() throws MalformedJsonException {
+        expect('{');
+    }
+
+    void endObject() throws MalformedJsonException {
+        expect('}');
+    }
+
+    /**
+     * Returns whether the current array or object has more elements.
+     */
+    boolean hasNext() throws MalformedJsonException {
+        skipSeparators();
+        if (pos >= limit) throw syntaxError("Unterminated array or object");
+        byte c = data[pos];
+        return c != ']' && c != '}';
+    }
+
+    /**
+     * Consumes the next property name, including the colon that follows it.
+     */
+    String nextName() throws MalformedJsonException {
+        String name = nextString();
+        skipWhitespace();
+        if (pos >= limit || data[pos] != ':') throw syntaxError("Expected ':' after name");
+        pos++;
+        return name;
+    }
+
+    String nextString() throws MalformedJsonException {
+        skipSeparators();
+        if (pos >= limit || data[pos] != '"') throw syntaxError("Expected a string");
+        int start = ++pos;
+        // Fast path: plain strings without escape sequences are decoded in one go.
+        while (pos < limit) {
+            byte c = data[pos];
+            if (c == '"') {
+                String value = new String(data, start, pos - start, UTF_8);
+                pos++;
+                return value;
+            }
+            if (c == '\\') break;
+            pos++;
+        }
+        StringBuilder sb = new StringBuilder(pos - start + 16);
+        sb.append(new String(data, start, pos - start, UTF_8));
+        while (pos < limit) {
+            byte c = data[pos];
+            if (c == '"') {
+                pos++;
+                return sb.toString();
+            }
+            if (c == '\\') {
+                if (pos + 1 >= limit) break;
+                byte escaped = data[pos + 1];
+                pos += 2;
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > limit) throw syntaxError("Unterminated escape sequence");
+                        int codeUnit = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(data[pos + i], 16);
+                            if (digit < 0) throw syntaxError("Invalid escape sequence");
+                            codeUnit = (codeUnit << 4) | digit;
+                        }
+                        sb.append((char) codeUnit);
+                        pos += 4;
+                        break;
+                    default: sb.append((char) escaped);
+                }
+            } else {
+                int runStart = pos;
+                while (pos < limit && data[pos] != '"' && data[pos] != '\\') pos++;
+                sb.append(new String(data, runStart, pos - runStart, UTF_8));
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Returns the length in bytes of the next string, without consuming it, if it holds no escape
+     * sequence. Such a string can then be consumed without building a {@link String}, with
+     * {@link #nextHexString(int, byte[], int)} or {@link #nextStringBytes(int, byte[], int)}.
+     * @return The length, or -1 if the string holds escape sequences.
+     */
+    int peekPlainStringLength() throws MalformedJsonException {
+        if (peek() != Token.STRING) throw syntaxError("Expected a string");
+        for (int i = pos + 1; i < limit; i++) {
+            byte c = data[i];
+            if (c == '"') return i - pos - 1;
+            if (c == '\\') return -1;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Consumes the next string, decoding its hexadecimal digits.
+     * @param length The length of the string, as returned by {@link #peekPlainStringLength()},
+     *               even.
+     * @param dest Where to write the {@code length / 2} decoded bytes.
+     */
+    void nextHexString(int length, byte[] dest, int offset) {
+        PayloadCodec.decodeHex(data, pos + 1, length, dest, offset);
+        pos += length + 2;
+    }
+
+    /**
+     * Consumes the next string, copying its UTF-8 bytes.
+     * @param length The length of the string, as returned by {@link #peekPlainStringLength()}.
+     * @param dest Where to write the bytes.
+     */
+    void nextStringBytes(int length, byte[] dest, int offset) {
+        System.arraycopy(data, pos + 1, dest, offset, length);
+        pos += length + 2;
+    }
+
+    /**
+     * Consumes the next value as a {@code long}. Quoted numbers and numbers with a fractional part
+     * are accepted too, mirroring {@link org.json.JSONObject#getLong(String)}.
+     */
+    long nextLong() throws MalformedJsonException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            String value = nextString();
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw syntaxError("Expected a number but was \"" + value + "\"");
+            }
+        }
+        if (token != Token.NUMBER) throw syntaxError("Expected a number");
+
+        int start = pos;
+        boolean negative = data[pos] == '-';
+        if (negative) pos++;
+        long value = 0;
+        int digits = 0;
+        while (pos < limit && data[pos] >= '0' && data[pos] <= '9' && digits < 18) {
+            value = value * 10 + (data[pos] - '0');
+            pos++;
+            digits++;
+        }
+        if (pos < limit && isNumberChar(data[pos])) {
+            int end = pos;
+            while (end < limit && data[end] >= '0' && data[end] <= '9') end++;
+            if (end == limit || !isNumberChar(data[end])) {
+                // An integer too long for the loop above, still exact as long as it fits.
+                try {
+                    value = Long.parseLong(new String(data, start, end - start, UTF_8));
+                    pos = end;
+                    return value;
+                } catch (NumberFormatException ignored) {}
+            }
+            // Fractions, exponents or integers out of range take the slow path.
+            pos = start;
+            return (long) nextDouble();
+        }
+        return negative ? -value : value;
+    }
+
+    int nextInt() throws MalformedJsonException {
+        return (int) nextLong();
+    }
+
+    double nextDouble() throws MalformedJsonException {
+        Token token = peek();
+        String value;
+        if (token == Token.STRING) {
+            value = nextString();
+        } else if (token == Token.NUMBER) {
+            int start = pos;
+            while (pos < limit && isNumberChar(data[pos])) pos++;
+            value = new String(data, start, pos - start, UTF_8);
+        } else {
+            throw syntaxError("Expected a number");
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was \"" + value + "\"");
+        }
+    }
+
+    boolean nextBoolean() throws MalformedJsonException {
+        if (peek() != Token.BOOLEAN) throw syntaxError("Expected a boolean");
+        if (data[pos] == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+    void nextNull() throws MalformedJsonException {
+        if (peek() != Token.NULL) throw syntaxError("Expected null");
+        expectLiteral("null");
+    }
+
+    /**
+     * Skips the next value, recursively skipping nested arrays and objects.
+     */
+    void skipValue() throws MalformedJsonException {
+        switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) skipValue();
+                endArray();
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case STRING:
+                skipString();
+                break;
+            case NUMBER:
+                while (pos < limit && isNumberChar(data[pos])) pos++;
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Expected a value");
+        }
+    }
+
+    private void skipString() throws MalformedJsonException {
+        pos++;
+        while (pos < limit) {
+            byte c = data[pos];
+            if (c == '"') {
+                pos++;
+                return;
+            }
+            pos += c == '\\' ? 2 : 1;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void expect(char c) throws MalformedJsonException {
+        skipSeparators();
+        if (pos >= limit || data[pos] != c) throw syntaxError("Expected '" + c + "'");
+        pos++;
+    }
+
+    private void expectLiteral(String literal) throws MalformedJsonException {
+        int length = literal.length();
+        if (pos + length > limit) throw syntaxError("Expected " + literal);
+        for (int i = 0; i < length; i++) {
+            if (data[pos + i] != literal.charAt(i)) throw syntaxError("Expected " + literal);
+        }
+        pos += length;
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            byte c = data[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+            pos++;
+        }
+    }
+
+    private void skipSeparators() {
+        while (pos < limit) {
+            byte c = data[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ',' && c != ':') return;
+            pos++;
+        }
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private MalformedJsonException syntaxError(String message) {
+        return new MalformedJsonException(message + " at offset " + pos);
+    }
+
+    static class MalformedJsonException extends Exception {
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.mikiloz.tdgateway;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Encodes messages of a certain type into binary records and back. Every record starts with the
+ * message timestamp, so that a record can be located by time without decoding it.
+ * @param <T> The type of the messages.
+ */
+interface MessageCodec<T> {
+
+    /**
+     * Returns the timestamp the records are indexed by, in milliseconds since the epoch.
+     */
+    long timeOf(T message);
+
+    /**
+     * Writes a message. The first field written must be {@link #timeOf(Object)} as a {@code long}.
+     */
+    void encode(T message, DataOutput output) throws IOException;
+
+    /**
+     * Reads a message from the current position of {@code buffer}, leaving the position right
+     * after it.
+     * @throws IOException If the record is corrupt or written in an unknown format.
+     */
+    T decode(ByteBuffer buffer) throws IOException;
+
+}
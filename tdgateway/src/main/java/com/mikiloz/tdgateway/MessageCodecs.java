@@ -0,0 +1,137 @@
+package com.mikiloz.tdgateway;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The binary record formats of {@link IotMessage} and {@link RawMessage}. Every record holds the
+ * message timestamp followed by a {@link #FORMAT_VERSION} byte, so that records written in a later
+ * format can be told apart. Lengths and counts are checked against the bytes left before anything
+ * is allocated for them, so a corrupt record fails with an {@link IOException}.
+ */
+final class MessageCodecs {
+
+    /**
+     * The version of the record formats.
+     */
+    static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The least amount of bytes a reception of a {@link RawMessage} takes: the length of its tap
+     * and its two signal values.
+     */
+    private static final int MIN_RECEPTION_SIZE = 4 + 8 + 8;
+
+    private MessageCodecs() {}
+
+    static final MessageCodec<IotMessage> IOT_MESSAGE = new MessageCodec<IotMessage>() {
+        @Override
+        public long timeOf(IotMessage message) {
+            return message.when;
+        }
+
+        @Override
+        public void encode(IotMessage message, DataOutput output) throws IOException {
+            output.writeLong(message.when);
+            output.writeByte(FORMAT_VERSION);
+            output.writeLong(message.received);
+            writeBytes(message.payload, message.payloadOffset, message.payloadLength, output);
+        }
+
+        @Override
+        public IotMessage decode(ByteBuffer buffer) throws IOException {
+            IotMessage message = new IotMessage();
+            message.when = buffer.getLong();
+            checkVersion(buffer);
+            message.received = buffer.getLong();
+            message.setPayload(readBytes(buffer));
+            return message;
+        }
+    };
+
+    static final MessageCodec<RawMessage> RAW_MESSAGE = new MessageCodec<RawMessage>() {
+        @Override
+        public long timeOf(RawMessage message) {
+            return message.time;
+        }
+
+        @Override
+        public void encode(RawMessage message, DataOutput output) throws IOException {
+            output.writeLong(message.time);
+            output.writeByte(FORMAT_VERSION);
+            output.writeDouble(message.snr);
+            writeString(message.device, output);
+            writeBytes(message.payload, message.payloadOffset, message.payloadLength, output);
+            output.writeInt(message.taps.length);
+            for (int i = 0; i < message.taps.length; i++) {
+                writeString(message.taps[i], output);
+                output.writeDouble(message.signals[2 * i]);
+                output.writeDouble(message.signals[2 * i + 1]);
+            }
+        }
+
+        @Override
+        public RawMessage decode(ByteBuffer buffer) throws IOException {
+            RawMessage message = new RawMessage();
+            message.time = buffer.getLong();
+            checkVersion(buffer);
+            message.snr = buffer.getDouble();
+            message.device = RawMessage.intern(readString(buffer));
+            message.setPayload(readBytes(buffer));
+            int receptions = buffer.getInt();
+            if (receptions < 0 || receptions > buffer.remaining() / MIN_RECEPTION_SIZE)
+                throw new IOException("Invalid reception count " + receptions);
+            String[] taps = new String[receptions];
+            double[] signals = new double[2 * receptions];
+            for (int i = 0; i < receptions; i++) {
+                taps[i] = RawMessage.intern(readString(buffer));
+                signals[2 * i] = buffer.getDouble();
+                signals[2 * i + 1] = buffer.getDouble();
+            }
+            message.setReceptions(taps, signals);
+            return message;
+        }
+    };
+
+    static void writeBytes(byte[] bytes, DataOutput output) throws IOException {
+        writeBytes(bytes, 0, bytes == null ? 0 : bytes.length, output);
+    }
+
+    static void writeBytes(byte[] bytes, int offset, int length, DataOutput output)
+            throws IOException {
+        if (bytes == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(length);
+            output.write(bytes, offset, length);
+        }
+    }
+
+    private static void checkVersion(ByteBuffer buffer) throws IOException {
+        byte version = buffer.get();
+        if (version != FORMAT_VERSION) throw new IOException("Unknown record format " + version);
+    }
+
+    static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Invalid length " + length + " with " + buffer.remaining()
+                    + " bytes left");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static void writeString(String string, DataOutput output) throws IOException {
+        writeBytes(string == null ? null : string.getBytes(JsonTokenizer.UTF_8), output);
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, JsonTokenizer.UTF_8);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.mikiloz.tdgateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Serializes {@link IotMessage}s and {@link RawMessage}s to and from a compact binary format:
+ * timestamps as {@code long} epoch milliseconds, signal values as {@code double}s and payloads as
+ * raw bytes. The JSON objects of the messages, if retained, are not serialized. Every message is
+ * tagged with a format version. This is the same format the {@link MessageStore} writes its
+ * records in.
+ */
+public final class MessageSerializer {
+
+    private MessageSerializer() {}
+
+    public static void writeMessage(IotMessage message, DataOutput output) throws IOException {
+        MessageCodecs.IOT_MESSAGE.encode(message, output);
+    }
+
+    public static void writeRawMessage(RawMessage message, DataOutput output) throws IOException {
+        MessageCodecs.RAW_MESSAGE.encode(message, output);
+    }
+
+    /**
+     * Reads a message written by {@link #writeMessage(IotMessage, DataOutput)}, leaving the
+     * buffer position right after it.
+     * @throws IOException If the buffer doesn't hold a whole message, or holds a corrupt one.
+     */
+    public static IotMessage readMessage(ByteBuffer buffer) throws IOException {
+        try {
+            return MessageCodecs.IOT_MESSAGE.decode(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated or corrupt message", e);
+        }
+    }
+
+    /**
+     * Reads a message written by {@link #writeRawMessage(RawMessage, DataOutput)}, leaving the
+     * buffer position right after it.
+     * @throws IOException If the buffer doesn't hold a whole message, or holds a corrupt one.
+     */
+    public static RawMessage readRawMessage(ByteBuffer buffer) throws IOException {
+        try {
+            return MessageCodecs.RAW_MESSAGE.decode(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated or corrupt message", e);
+        }
+    }
+
+    public static byte[] toBytes(IotMessage message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try {
+            writeMessage(message, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] toBytes(RawMessage message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writeRawMessage(message, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static IotMessage messageFromBytes(byte[] bytes) throws IOException {
+        return readMessage(ByteBuffer.wrap(bytes));
+    }
+
+    public static RawMessage rawMessageFromBytes(byte[] bytes) throws IOException {
+        return readRawMessage(ByteBuffer.wrap(bytes));
+    }
+
+}
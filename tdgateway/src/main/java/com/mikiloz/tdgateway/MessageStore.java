@@ -0,0 +1,129 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An embedded on-disk store of {@link IotMessage}s and {@link RawMessage}s. Messages are kept in
+ * append-only logs, one per device and message kind, indexed by the message timestamp.
+ *
+ * <p>The store also remembers which time ranges it holds completely. Once set through
+ * {@link SensorApiManager#setMessageStore(MessageStore)}, history calls are answered from the
+ * store when the requested page lies within those ranges, and go to the network otherwise, storing
+ * whatever they fetch.</p>
+ */
+public class MessageStore {
+
+    private static final String MESSAGES_DIRECTORY = "msgs";
+    private static final String RAW_MESSAGES_DIRECTORY = "raw";
+
+    private final File directory;
+    private final Map<String, SegmentedLog<IotMessage>> messageLogs = new HashMap<>();
+    private final Map<String, SegmentedLog<RawMessage>> rawMessageLogs = new HashMap<>();
+
+    public MessageStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Stores messages of a device.
+     * @param sn The device serial number.
+     * @param messages The messages to store.
+     * @param from The start of the time range for which {@code messages} are all the messages of
+     *             the device, in milliseconds since the epoch.
+     * @param to The end of that time range, in milliseconds since the epoch.
+     * @throws IOException If the store couldn't be written.
+     */
+    public void storeMessages(String sn, List<IotMessage> messages, long from, long to)
+            throws IOException {
+        messageLog(sn).append(messages, from, to);
+    }
+
+    /**
+     * Get the stored messages of a device within a time range, from newest to oldest.
+     * @param sn The device serial number.
+     * @param from The start of the range, in milliseconds since the epoch.
+     * @param to The end of the range, in milliseconds since the epoch.
+     * @return The stored messages within the range.
+     * @throws IOException If the store couldn't be read.
+     */
+    public List<IotMessage> getMessages(String sn, long from, long to) throws IOException {
+        return messageLog(sn).query(from, to);
+    }
+
+    /**
+     * Stores RAW messages of a device. See {@link #storeMessages(String, List, long, long)}.
+     */
+    public void storeRawMessages(String sn, List<RawMessage> messages, long from, long to)
+            throws IOException {
+        rawMessageLog(sn).append(messages, from, to);
+    }
+
+    /**
+     * Get the stored RAW messages of a device within a time range, from newest to oldest.
+     * See {@link #getMessages(String, long, long)}.
+     */
+    public List<RawMessage> getRawMessages(String sn, long from, long to) throws IOException {
+        return rawMessageLog(sn).query(from, to);
+    }
+
+    /**
+     * Answers a history page from the store.
+     * @return The newest {@code amount} messages up to {@code until}, or {@code null} if the store
+     * doesn't fully cover them.
+     */
+    @Nullable List<IotMessage> getMessagesHistory(String sn, int amount, long until)
+            throws IOException {
+        return history(messageLog(sn), amount, until);
+    }
+
+    @Nullable List<RawMessage> getRawMessagesHistory(String sn, int limit, long before)
+            throws IOException {
+        return history(rawMessageLog(sn), limit, before);
+    }
+
+    private static <T> List<T> history(SegmentedLog<T> log, int amount, long until)
+            throws IOException {
+        long[] range = log.coveringRange(until);
+        if (range == null) return null;
+        List<T> messages = log.query(range[0], until, amount);
+        if (messages.size() == amount) return messages;
+        // Fewer messages than requested are only a full answer at the start of the history.
+        return range[0] == Long.MIN_VALUE ? messages : null;
+    }
+
+    private SegmentedLog<IotMessage> messageLog(String sn) throws IOException {
+        synchronized (messageLogs) {
+            SegmentedLog<IotMessage> log = messageLogs.get(sn);
+            if (log == null) {
+                log = new SegmentedLog<>(deviceDirectory(sn, MESSAGES_DIRECTORY),
+                        MessageCodecs.IOT_MESSAGE);
+                messageLogs.put(sn, log);
+            }
+            return log;
+        }
+    }
+
+    private SegmentedLog<RawMessage> rawMessageLog(String sn) throws IOException {
+        synchronized (rawMessageLogs) {
+            SegmentedLog<RawMessage> log = rawMessageLogs.get(sn);
+            if (log == null) {
+                log = new SegmentedLog<>(deviceDirectory(sn, RAW_MESSAGES_DIRECTORY),
+                        MessageCodecs.RAW_MESSAGE);
+                rawMessageLogs.put(sn, log);
+            }
+            return log;
+        }
+    }
+
+    private File deviceDirectory(String sn, String kind) {
+        return new File(new File(directory, Util.toFileName(sn)), kind);
+    }
+
+}
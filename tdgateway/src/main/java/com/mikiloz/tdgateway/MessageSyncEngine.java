@@ -0,0 +1,380 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps every synchronized device up to date with the Device API by fetching only the messages
+ * newer than the last one seen. A high-water mark is kept per device from the messages' timestamps
+ * and, if a file is given, persisted so that a restart picks up where the engine left off.
+ *
+ * <p>A sync requests the latest messages after the device's mark. If that page comes back full,
+ * the older messages that didn't fit are fetched by walking the history back to the mark. Messages
+ * sharing the mark's timestamp are de-duplicated, so page boundaries never deliver a message
+ * twice. New messages are pushed to every {@link Subscriber}, oldest first.</p>
+ */
+public class MessageSyncEngine {
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final long SAVE_DELAY = 1000;
+
+    private final SensorApiManager sensorApiManager;
+    private final File watermarkFile;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Map<String, Watermark> watermarks = new HashMap<>();
+    private final Set<String> syncing = new HashSet<>();
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private long initialWatermark = System.currentTimeMillis();
+    private boolean saveScheduled;
+
+    /**
+     * Creates a sync engine.
+     * @param sensorApiManager The API manager the synchronized devices belong to.
+     * @param watermarkFile The file where the high-water marks are persisted, or {@code null} to
+     *                      keep them in memory only.
+     */
+    public MessageSyncEngine(SensorApiManager sensorApiManager, @Nullable File watermarkFile) {
+        this.sensorApiManager = sensorApiManager;
+        this.watermarkFile = watermarkFile;
+        if (watermarkFile != null) load();
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Sets the amount of messages requested per page.
+     * @param pageSize The page size, at least 1.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) throw new IllegalArgumentException();
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the mark used for devices that have never been synchronized. Defaults to the instant the
+     * engine was created, so that the first sync doesn't download the whole history.
+     * @param initialWatermark The initial mark, in milliseconds since the epoch. Use 0 to fetch the
+     *                         whole history on the first sync.
+     */
+    public void setInitialWatermark(long initialWatermark) {
+        this.initialWatermark = initialWatermark;
+    }
+
+    /**
+     * Returns the high-water mark of a device.
+     * @param device The device.
+     * @return The timestamp of the newest message seen from {@code device}, or {@code null} if it
+     * has never been synchronized.
+     */
+    public @Nullable Date getWatermark(IotDevice device) {
+        synchronized (watermarks) {
+            Watermark watermark = watermarks.get(device.getSerial());
+            return watermark == null ? null : new Date(watermark.time);
+        }
+    }
+
+    /**
+     * Forgets the high-water mark of a device, so that its next sync starts from the initial mark.
+     * @param device The device.
+     */
+    public void reset(IotDevice device) {
+        synchronized (watermarks) {
+            watermarks.remove(device.getSerial());
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Synchronizes every given device. See {@link #sync(IotDevice, SyncListener)}.
+     * @param devices The devices to synchronize.
+     * @param syncListener Notified once per device. Use {@code null} to rely on subscribers only.
+     */
+    public void syncAll(Collection<IotDevice> devices, @Nullable SyncListener syncListener) {
+        for (IotDevice device : devices) {
+            try {
+                sync(device, syncListener);
+            } catch (SensorApiManager.CannotUseDeviceApiException e) {
+                if (syncListener != null)
+                    syncListener.onSyncError(device, new SensorApiError(
+                            SensorApiError.Kind.AUTHENTICATION,
+                            "Device " + device.getSerial() + " has no authentication token."));
+            }
+        }
+    }
+
+    /**
+     * Fetches the messages of a device newer than its high-water mark and pushes them to the
+     * subscribers. Does nothing if a sync of the same device is already running.
+     * @param device The device to synchronize.
+     * @param syncListener Notified when the sync finishes. Use {@code null} to rely on subscribers
+     *                     only.
+     * @throws SensorApiManager.CannotUseDeviceApiException When there is no authentication token for
+     * the device.
+     */
+    public void sync(IotDevice device, @Nullable SyncListener syncListener)
+            throws SensorApiManager.CannotUseDeviceApiException {
+
+        if (!device.canUseDeviceApi()) throw new SensorApiManager.CannotUseDeviceApiException();
+        String sn = device.getSerial();
+        Watermark watermark;
+        synchronized (watermarks) {
+            if (!syncing.add(sn)) return;
+            watermark = watermarks.get(sn);
+            if (watermark == null) watermark = new Watermark(initialWatermark, new HashSet<String>());
+        }
+        new Sync(device, watermark, syncListener).start();
+    }
+
+    private void finish(IotDevice device, Watermark previous, List<IotMessage> fetched,
+                        @Nullable SyncListener syncListener) {
+
+        List<IotMessage> newMessages = new ArrayList<>(fetched.size());
+        for (IotMessage message : fetched) {
+            long time = message.when;
+            if (time > previous.time
+                    || (time == previous.time && !previous.boundary.contains(fingerprint(message))))
+                newMessages.add(message);
+        }
+        Collections.sort(newMessages, OLDEST_FIRST);
+
+        if (!newMessages.isEmpty()) {
+            long newestTime = newMessages.get(newMessages.size() - 1).when;
+            Set<String> boundary = new HashSet<>();
+            if (newestTime == previous.time) boundary.addAll(previous.boundary);
+            for (IotMessage message : newMessages) {
+                if (message.when == newestTime) boundary.add(fingerprint(message));
+            }
+            synchronized (watermarks) {
+                watermarks.put(device.getSerial(), new Watermark(newestTime, boundary));
+            }
+            scheduleSave();
+            for (Subscriber subscriber : subscribers) subscriber.onNewMessages(device, newMessages);
+        }
+        synchronized (watermarks) {
+            syncing.remove(device.getSerial());
+        }
+        if (syncListener != null) syncListener.onSyncComplete(device, newMessages);
+    }
+
+    private void fail(IotDevice device, SensorApiError error, @Nullable SyncListener syncListener) {
+        synchronized (watermarks) {
+            syncing.remove(device.getSerial());
+        }
+        if (syncListener != null) syncListener.onSyncError(device, error);
+    }
+
+    /**
+     * A single sync of a device: the latest page, then as many history pages as needed to reach
+     * back to the mark.
+     */
+    private class Sync implements IotDevice.IotMessagesReceivedListener,
+            SensorApiManager.SensorApiErrorListener {
+
+        private final IotDevice device;
+        private final Watermark watermark;
+        private final SyncListener syncListener;
+        private final Map<String, IotMessage> fetched = new LinkedHashMap<>();
+
+        Sync(IotDevice device, Watermark watermark, @Nullable SyncListener syncListener) {
+            this.device = device;
+            this.watermark = watermark;
+            this.syncListener = syncListener;
+        }
+
+        void start() throws SensorApiManager.CannotUseDeviceApiException {
+            try {
+                device.getLatestMessages(pageSize, new Date(watermark.time), this, this);
+            } catch (SensorApiManager.CannotUseDeviceApiException e) {
+                synchronized (watermarks) {
+                    syncing.remove(device.getSerial());
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void onMessagesReceived(List<IotMessage> messages) {
+            int added = 0;
+            long oldest = Long.MAX_VALUE;
+            for (IotMessage message : messages) {
+                long time = message.when;
+                if (time < oldest) oldest = time;
+                if (fetched.put(time + "/" + fingerprint(message), message) == null) added++;
+            }
+            // A full page that doesn't reach the mark means there are older messages left.
+            if (messages.size() >= pageSize && added > 0 && oldest > watermark.time) {
+                try {
+                    device.getMessagesHistory(pageSize, new Date(oldest), this, this);
+                    return;
+                } catch (SensorApiManager.CannotUseDeviceApiException e) {
+                    fail(device, new SensorApiError(SensorApiError.Kind.AUTHENTICATION,
+                            "Device " + device.getSerial() + " lost its authentication token."),
+                            syncListener);
+                    return;
+                }
+            }
+            finish(device, watermark, new ArrayList<>(fetched.values()), syncListener);
+        }
+
+        @Override
+        public void onError(SensorApiError error) {
+            fail(device, error, syncListener);
+        }
+    }
+
+    private static String fingerprint(IotMessage message) {
+        return message.received + ":" + message.payloadHashCode();
+    }
+
+    private static final Comparator<IotMessage> OLDEST_FIRST = new Comparator<IotMessage>() {
+        @Override
+        public int compare(IotMessage a, IotMessage b) {
+            long timeA = a.when, timeB = b.when;
+            return timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+        }
+    };
+
+    //region Persistence
+
+    private void scheduleSave() {
+        if (watermarkFile == null) return;
+        synchronized (watermarks) {
+            if (saveScheduled) return;
+            saveScheduled = true;
+        }
+        sensorApiManager.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        synchronized (watermarks) {
+            saveScheduled = false;
+            for (Map.Entry<String, Watermark> entry : watermarks.entrySet()) {
+                properties.setProperty(entry.getKey(), entry.getValue().encode());
+            }
+        }
+        File temporary = new File(watermarkFile.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            File parent = watermarkFile.getParentFile();
+            if (parent != null && !parent.isDirectory()) parent.mkdirs();
+            output = new FileOutputStream(temporary);
+            properties.store(output, null);
+            output.close();
+            output = null;
+            if (!temporary.renameTo(watermarkFile)) temporary.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null) try { output.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void load() {
+        if (!watermarkFile.isFile()) return;
+        Properties properties = new Properties();
+        InputStream input = null;
+        try {
+            input = new FileInputStream(watermarkFile);
+            properties.load(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            if (input != null) try { input.close(); } catch (IOException ignored) {}
+        }
+        synchronized (watermarks) {
+            for (String sn : properties.stringPropertyNames()) {
+                Watermark watermark = Watermark.decode(properties.getProperty(sn));
+                if (watermark != null) watermarks.put(sn, watermark);
+            }
+        }
+    }
+
+    //endregion
+
+    /**
+     * The timestamp of the newest message seen from a device, plus the fingerprints of the
+     * messages seen at exactly that timestamp.
+     */
+    private static class Watermark {
+
+        final long time;
+        final Set<String> boundary;
+
+        Watermark(long time, Set<String> boundary) {
+            this.time = time;
+            this.boundary = boundary;
+        }
+
+        String encode() {
+            StringBuilder sb = new StringBuilder().append(time);
+            for (String fingerprint : boundary) sb.append(',').append(fingerprint);
+            return sb.toString();
+        }
+
+        static @Nullable Watermark decode(String value) {
+            String[] parts = value.split(",");
+            try {
+                return new Watermark(Long.parseLong(parts[0]),
+                        new HashSet<>(Arrays.asList(parts).subList(1, parts.length)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    public interface Subscriber {
+        /**
+         * Called whenever new messages of a device have been fetched.
+         * @param device The device the messages belong to.
+         * @param messages The new messages, oldest first.
+         */
+        void onNewMessages(IotDevice device, List<IotMessage> messages);
+    }
+
+    public interface SyncListener {
+        /**
+         * Called when a sync finishes successfully.
+         * @param device The synchronized device.
+         * @param newMessages The new messages, oldest first. Empty if there were none.
+         */
+        void onSyncComplete(IotDevice device, List<IotMessage> newMessages);
+
+        void onSyncError(IotDevice device, SensorApiError error);
+    }
+
+}
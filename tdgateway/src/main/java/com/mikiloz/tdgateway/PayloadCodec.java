@@ -0,0 +1,121 @@
+package com.mikiloz.tdgateway;
+
+
+/**
+ * Decodes message payloads. Hexadecimal digits are decoded through a lookup table, which makes the
+ * loop a couple of array loads per byte, with no branch and no call to
+ * {@link Character#digit(char, int)}.
+ *
+ * <p>Payloads parsed one message at a time are carved out of a {@link Slab} instead of getting an
+ * array each, so that a page of messages shares a few arrays.</p>
+ */
+final class PayloadCodec {
+
+    /**
+     * The value of every hexadecimal digit, indexed by character or byte, -1 for the others. An
+     * invalid digit thus decodes to the same byte {@link Character#digit(char, int)} used to give.
+     */
+    private static final int[] HEX_VALUES = new int[256];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++)
+            HEX_VALUES[i] = i < 128 ? Character.digit((char) i, 16) : -1;
+    }
+
+    private PayloadCodec() {}
+
+    /**
+     * Returns whether a string of hexadecimal digits holds a payload, i.e. isn't empty and has an
+     * even length.
+     */
+    static boolean isHexPayload(int digits) {
+        return digits != 0 && digits % 2 == 0;
+    }
+
+    /**
+     * Decodes hexadecimal ASCII digits, e.g. straight from a response.
+     * @param digits The amount of digits, even.
+     * @param dest Where to write the {@code digits / 2} decoded bytes.
+     */
+    static void decodeHex(byte[] src, int from, int digits, byte[] dest, int offset) {
+        for (int i = 0; i < digits; i += 2) {
+            dest[offset++] = (byte) ((HEX_VALUES[src[from + i] & 0xff] << 4)
+                    + HEX_VALUES[src[from + i + 1] & 0xff]);
+        }
+    }
+
+    /**
+     * Decodes hexadecimal digits.
+     * @param dest Where to write the {@code hex.length() / 2} decoded bytes.
+     */
+    static void decodeHex(CharSequence hex, byte[] dest, int offset) {
+        int digits = hex.length();
+        for (int i = 0; i < digits; i += 2) {
+            dest[offset++] = (byte) ((valueOf(hex.charAt(i)) << 4) + valueOf(hex.charAt(i + 1)));
+        }
+    }
+
+    static byte[] decodeHex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        decodeHex(hex, data, 0);
+        return data;
+    }
+
+    private static int valueOf(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : Character.digit(c, 16);
+    }
+
+    /**
+     * Hands out room for payloads from shared arrays. A slab belongs to a single response, see
+     * {@link JsonTokenizer#slab()}, so that a message kept around only keeps an array of its own
+     * page alive, and its arrays are never larger than what is left of the response. Every array is
+     * filled by many payloads before a new one is started. Arrays are never reused: the messages
+     * keep referencing their slice of them.
+     */
+    static final class Slab {
+
+        private static final int CHUNK_SIZE = 4096;
+        /** Payloads larger than this get an array of their own, to keep chunks well filled. */
+        private static final int MAX_SHARED_SIZE = CHUNK_SIZE / 8;
+
+        private byte[] chunk = new byte[0];
+        private int used, offset;
+        private int remaining;
+
+        /**
+         * @param capacity An upper bound of the bytes that will be reserved, e.g. the length of
+         *                 the response the payloads are read from.
+         */
+        Slab(int capacity) {
+            this.remaining = capacity;
+        }
+
+        /**
+         * Reserves room for a payload.
+         * @return The array to write the payload to, from {@link #offset()}.
+         */
+        byte[] reserve(int length) {
+            if (length > MAX_SHARED_SIZE) {
+                offset = 0;
+                remaining -= length;
+                return new byte[length];
+            }
+            if (used + length > chunk.length) {
+                chunk = new byte[Math.min(CHUNK_SIZE, Math.max(length, remaining))];
+                used = 0;
+            }
+            offset = used;
+            used += length;
+            remaining -= length;
+            return chunk;
+        }
+
+        /**
+         * Returns where the last reserved room starts within its array.
+         */
+        int offset() {
+            return offset;
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Decodes the sensor values out of message payloads, according to a layout declared once per
+ * device category with a {@link Builder}:
+ * <pre>
+ * PayloadDecoder decoder = new PayloadDecoder.Builder()
+ *         .field("temperature", 0, 16, true, ByteOrder.BIG_ENDIAN, 0.01, 0)
+ *         .field("humidity", 16, 7)
+ *         .field("door", 23, 1)
+ *         .build();
+ * apiManager.registerPayloadDecoder("temp-sensor", decoder);
+ * </pre>
+ * Bits are numbered from the most significant bit of the first payload byte, the way the API
+ * prints payloads. A field's value is its raw integer, times its scale, plus its offset.
+ *
+ * <p>The layout is compiled into a few primitive arrays, and every decode writes into a reusable
+ * {@link Values} holder obtained from {@link #newValues()}: decoding a payload allocates nothing,
+ * and payloads are read where they are stored, be it a message or a batch.</p>
+ *
+ * <p>Decoders are immutable and thread-safe, {@link Values} holders aren't.</p>
+ */
+public class PayloadDecoder {
+
+    private final String[] names;
+    private final int[] firstBytes, lastBytes, shifts, bitLengths;
+    private final boolean[] signed, littleEndian;
+    private final long[] masks;
+    private final double[] scales, offsets;
+
+    private PayloadDecoder(List<Field> fields) {
+        int count = fields.size();
+        names = new String[count];
+        firstBytes = new int[count];
+        lastBytes = new int[count];
+        shifts = new int[count];
+        bitLengths = new int[count];
+        signed = new boolean[count];
+        littleEndian = new boolean[count];
+        masks = new long[count];
+        scales = new double[count];
+        offsets = new double[count];
+        for (int i = 0; i < count; i++) {
+            Field field = fields.get(i);
+            names[i] = field.name;
+            firstBytes[i] = field.bitOffset >> 3;
+            lastBytes[i] = (field.bitOffset + field.bitLength - 1) >> 3;
+            shifts[i] = 8 * (lastBytes[i] + 1) - field.bitOffset - field.bitLength;
+            bitLengths[i] = field.bitLength;
+            signed[i] = field.signed;
+            littleEndian[i] = field.byteOrder == ByteOrder.LITTLE_ENDIAN;
+            masks[i] = field.bitLength == 64 ? -1L : (1L << field.bitLength) - 1;
+            scales[i] = field.scale;
+            offsets[i] = field.offset;
+        }
+    }
+
+    /**
+     * Returns a new holder for the values decoded by this decoder, to be reused for every payload.
+     */
+    public Values newValues() {
+        return new Values(this);
+    }
+
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    public String getFieldName(int field) {
+        return names[field];
+    }
+
+    /**
+     * Returns the index of a field, to read its value from a {@link Values} holder. Look it up once,
+     * not for every payload.
+     * @return The index, or -1 if there's no field with that name.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a payload.
+     * @param payload The array the payload is stored in, or {@code null} if there's no payload.
+     * @param offset Where the payload starts within the array.
+     * @param length The length of the payload. Fields past it are marked as missing.
+     * @param values Where to write the decoded values. Must come from this decoder.
+     * @return Whether every field was within the payload.
+     */
+    public boolean decode(@Nullable byte[] payload, int offset, int length, Values values) {
+        if (values.decoder != this) throw new IllegalArgumentException("Values of another decoder");
+        if (payload == null) {
+            Arrays.fill(values.present, false);
+            return false;
+        }
+        boolean complete = true;
+        for (int i = 0; i < names.length; i++) {
+            if (lastBytes[i] >= length) {
+                values.present[i] = false;
+                complete = false;
+                continue;
+            }
+            long raw = 0;
+            if (littleEndian[i]) {
+                for (int b = offset + lastBytes[i]; b >= offset + firstBytes[i]; b--)
+                    raw = (raw << 8) | (payload[b] & 0xff);
+            } else {
+                for (int b = offset + firstBytes[i]; b <= offset + lastBytes[i]; b++)
+                    raw = (raw << 8) | (payload[b] & 0xff);
+            }
+            raw = (raw >>> shifts[i]) & masks[i];
+            if (signed[i]) raw = (raw << (64 - bitLengths[i])) >> (64 - bitLengths[i]);
+            values.raws[i] = raw;
+            values.values[i] = (signed[i] || raw >= 0 ? raw : unsignedToDouble(raw)) * scales[i]
+                    + offsets[i];
+            values.present[i] = true;
+        }
+        return complete;
+    }
+
+    /**
+     * Decodes the payload of a message, without copying it.
+     * @return Whether the message has a payload and every field was within it.
+     */
+    public boolean decode(IotMessage message, Values values) {
+        return decode(message.payload, message.payloadOffset, message.payloadLength, values);
+    }
+
+    /**
+     * Decodes the payload of a RAW message, without copying it.
+     * @return Whether the message has a payload and every field was within it.
+     */
+    public boolean decode(RawMessage message, Values values) {
+        return decode(message.payload, message.payloadOffset, message.payloadLength, values);
+    }
+
+    /**
+     * Decodes the payload of a message of a batch, without copying it.
+     * @param index The message index, less than {@link IotMessageBatch#size()}.
+     * @return Whether the message has a payload and every field was within it.
+     */
+    public boolean decode(IotMessageBatch batch, int index, Values values) {
+        return decode(batch.getPayloadData(), batch.getPayloadOffsets()[index],
+                batch.getPayloadLengths()[index], values);
+    }
+
+    /**
+     * Decodes the payload of a RAW message of a batch, without copying it.
+     * @param index The message index, less than {@link RawMessageBatch#size()}.
+     * @return Whether the message has a payload and every field was within it.
+     */
+    public boolean decode(RawMessageBatch batch, int index, Values values) {
+        return decode(batch.getPayloadData(), batch.getPayloadOffsets()[index],
+                batch.getPayloadLengths()[index], values);
+    }
+
+    private static double unsignedToDouble(long raw) {
+        return (double) (raw >>> 1) * 2 + (raw & 1);
+    }
+
+    /**
+     * The values decoded out of a payload, field by field. Reused from payload to payload: it holds
+     * the values of the last decoded payload only.
+     */
+    public static class Values {
+
+        private final PayloadDecoder decoder;
+        private final double[] values;
+        private final long[] raws;
+        private final boolean[] present;
+
+        private Values(PayloadDecoder decoder) {
+            this.decoder = decoder;
+            values = new double[decoder.names.length];
+            raws = new long[decoder.names.length];
+            present = new boolean[decoder.names.length];
+        }
+
+        /**
+         * Get the value of a field, scaled and offset.
+         * @param field The field index, as returned by {@link PayloadDecoder#indexOf(String)}.
+         * @return The value, meaningless if the field is missing.
+         */
+        public double getDouble(int field) {
+            return values[field];
+        }
+
+        /**
+         * Get the raw integer of a field, sign-extended for signed fields.
+         * @param field The field index, as returned by {@link PayloadDecoder#indexOf(String)}.
+         * @return The raw integer, meaningless if the field is missing.
+         */
+        public long getLong(int field) {
+            return raws[field];
+        }
+
+        public boolean getBoolean(int field) {
+            return raws[field] != 0;
+        }
+
+        /**
+         * Returns whether a field was within the last decoded payload.
+         */
+        public boolean isPresent(int field) {
+            return present[field];
+        }
+
+        public PayloadDecoder getDecoder() {
+            return decoder;
+        }
+    }
+
+    /**
+     * Declares the fields of a payload layout, then compiles them into a {@link PayloadDecoder}.
+     */
+    public static class Builder {
+
+        private final List<Field> fields = new ArrayList<>();
+
+        /**
+         * Declares an unsigned, big-endian field, whose value is its raw integer.
+         * @param bitOffset The position of the first bit of the field, from the most significant
+         *                  bit of the payload.
+         * @param bitLength The length of the field, from 1 to 64 bits.
+         */
+        public Builder field(String name, int bitOffset, int bitLength) {
+            return field(name, bitOffset, bitLength, false, ByteOrder.BIG_ENDIAN, 1, 0);
+        }
+
+        /**
+         * Declares a field.
+         * @param bitOffset The position of the first bit of the field, from the most significant
+         *                  bit of the payload.
+         * @param bitLength The length of the field, from 1 to 64 bits. A field can't span more than
+         *                  8 bytes.
+         * @param signed Whether the field is a two's complement integer.
+         * @param byteOrder The order of the bytes of the field. Little-endian fields must start
+         *                  and end on byte boundaries.
+         * @param scale What the raw integer is multiplied by.
+         * @param offset What is added to the scaled integer.
+         */
+        public Builder field(String name, int bitOffset, int bitLength, boolean signed,
+                             ByteOrder byteOrder, double scale, double offset) {
+            if (name == null || bitOffset < 0 || bitLength < 1 || bitLength > 64
+                    || (bitOffset & 7) + bitLength > 64)
+                throw new IllegalArgumentException("Invalid field " + name);
+            if (byteOrder == ByteOrder.LITTLE_ENDIAN && (bitOffset % 8 != 0 || bitLength % 8 != 0))
+                throw new IllegalArgumentException("Little-endian field " + name
+                        + " isn't byte-aligned");
+            for (Field field : fields) {
+                if (field.name.equals(name))
+                    throw new IllegalArgumentException("Duplicate field " + name);
+            }
+            fields.add(new Field(name, bitOffset, bitLength, signed, byteOrder, scale, offset));
+            return this;
+        }
+
+        public PayloadDecoder build() {
+            return new PayloadDecoder(fields);
+        }
+    }
+
+    private static class Field {
+
+        final String name;
+        final int bitOffset, bitLength;
+        final boolean signed;
+        final ByteOrder byteOrder;
+        final double scale, offset;
+
+        Field(String name, int bitOffset, int bitLength, boolean signed, ByteOrder byteOrder,
+              double scale, double offset) {
+            this.name = name;
+            this.bitOffset = bitOffset;
+            this.bitLength = bitLength;
+            this.signed = signed;
+            this.byteOrder = byteOrder;
+            this.scale = scale;
+            this.offset = offset;
+        }
+    }
+
+}
@@ -5,18 +5,33 @@ import android.support.annotation.Nullable;
 
 import org.json.JSONObject;
 
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class RawMessage {
 
+    private static final String[] NO_TAPS = new String[0];
+    private static final double[] NO_SIGNALS = new double[0];
+    /** Weakly held, so that an identifier no message refers to anymore can be collected. */
+    private static final Map<String, WeakReference<String>> identifiers = new WeakHashMap<>();
+
     String device;
-    Date time;
+    long time;
     double snr;
+    /** The array the payload is stored in, from {@link #payloadOffset}, possibly shared. */
     byte[] payload;
+    int payloadOffset, payloadLength;
     JSONObject jsonObject;
-    List<ReceptionInfo> rinfos = new ArrayList<>();
+    /** The base station of every reception. */
+    String[] taps = NO_TAPS;
+    /** The SNR and RSSI of every reception, interleaved: {@code snr0, rssi0, snr1, rssi1...} */
+    double[] signals = NO_SIGNALS;
 
     /**
      * Get the device id of the device that sent this message.
@@ -31,6 +46,14 @@ public class RawMessage {
      * @return The message reception timestamp (GMT).
      */
     public Date getTime() {
+        return new Date(time);
+    }
+
+    /**
+     * Get the message reception timestamp (GMT), without allocating a {@link Date}.
+     * @return The message reception timestamp, in milliseconds since the epoch.
+     */
+    public long getTimeMillis() {
         return time;
     }
 
@@ -43,21 +66,122 @@ public class RawMessage {
     }
 
     /**
-     * Returns the message's payload.
+     * Returns the message's payload. Payloads are stored in arrays shared by many messages, so this
+     * returns a copy; prefer {@link #getPayloadBuffer()} on hot paths.
      * @return The message's payload, will be {@code null} if it has no payload.
      */
     public @Nullable byte[] getPayload() {
-        return payload;
+        if (payload == null) return null;
+        if (payloadOffset == 0 && payloadLength == payload.length) return payload.clone();
+        return Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /**
+     * Returns a read-only view of the message's payload, without copying it.
+     * @return The payload, from position 0 to its length, will be {@code null} if it has no
+     * payload.
+     */
+    public @Nullable ByteBuffer getPayloadBuffer() {
+        if (payload == null) return null;
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
     }
 
     /**
-     * Get the list of all reception informations for each base stations.
+     * Returns the length of the message's payload, without copying it.
+     * @return The length, in bytes, or -1 if it has no payload.
+     */
+    public int getPayloadLength() {
+        return payload == null ? -1 : payloadLength;
+    }
+
+    /**
+     * Returns the JSON object this message was parsed from.
+     * @return The JSON object this message was parsed from, will be {@code null} unless
+     * {@link SensorApiManager#setRetainJson(boolean)} was enabled when the message was received.
+     */
+    public @Nullable JSONObject getJsonInformation() {
+        return jsonObject;
+    }
+
+    /**
+     * Get the amount of base stations that received this message.
+     * @return The amount of base stations that received this message.
+     */
+    public int getReceptionCount() {
+        return taps.length;
+    }
+
+    /**
+     * Get the identifier of the base station of a reception.
+     * @param index The reception index, less than {@link #getReceptionCount()}.
+     * @return The base station identifier.
+     */
+    public String getReceptionTap(int index) {
+        return taps[index];
+    }
+
+    /**
+     * Get the best signal of all repetitions for the base station of a reception.
+     * @param index The reception index, less than {@link #getReceptionCount()}.
+     * @return The best signal of all repetitions for the base station.
+     */
+    public double getReceptionSnr(int index) {
+        return signals[2 * index];
+    }
+
+    /**
+     * Get the received Signal Strength Indication (in dBm) of a reception.
+     * @param index The reception index, less than {@link #getReceptionCount()}.
+     * @return Received Signal Strength Indication (in dBm).
+     */
+    public double getReceptionRssi(int index) {
+        return signals[2 * index + 1];
+    }
+
+    /**
+     * Get the list of all reception informations for each base stations. The list is built on
+     * every call, prefer the indexed getters, e.g. {@link #getReceptionSnr(int)}, on hot paths.
      * @return The list of all reception informations for each base stations.
      */
     public List<ReceptionInfo> getReceptionInfoList() {
+        List<ReceptionInfo> rinfos = new ArrayList<>(taps.length);
+        for (int i = 0; i < taps.length; i++) {
+            rinfos.add(new ReceptionInfo(taps[i], signals[2 * i], signals[2 * i + 1]));
+        }
         return rinfos;
     }
 
+    void setPayload(@Nullable byte[] payload) {
+        setPayload(payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    void setPayload(@Nullable byte[] payload, int offset, int length) {
+        this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+    }
+
+    void setReceptions(String[] taps, double[] signals) {
+        this.taps = taps;
+        this.signals = signals;
+    }
+
+    /**
+     * Returns a canonical instance of a device or base station identifier. These repeat across
+     * every message, so sharing them keeps a single copy of each in memory, for as long as some
+     * message refers to it.
+     */
+    static String intern(@Nullable String identifier) {
+        if (identifier == null) return null;
+        synchronized (identifiers) {
+            WeakReference<String> reference = identifiers.get(identifier);
+            String interned = reference == null ? null : reference.get();
+            if (interned != null) return interned;
+            identifiers.put(identifier, new WeakReference<>(identifier));
+            return identifier;
+        }
+    }
+
     /**
      * Class that stores message reception information, for the radio stations involved in the
      * reception process.
@@ -0,0 +1,254 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * A page of {@link RawMessage}s stored column by column in primitive arrays. The payloads of every
+ * message share a single byte array, and the receptions of every message are stored in their own
+ * columns, message {@code i} owning the receptions from {@code getReceptionOffsets()[i]} up to
+ * {@code getReceptionOffsets()[i + 1]}. Aggregating SNR or RSSI over a batch touches a few
+ * contiguous arrays instead of one object per message and reception.
+ *
+ * <p>The column getters return the backing arrays, which may be longer than the batch: only the
+ * first {@link #size()} entries (or {@link #getReceptionCount()} for reception columns) are valid.
+ * They must not be modified.</p>
+ */
+public class RawMessageBatch {
+
+    private int size;
+    private long[] times;
+    private double[] snrs;
+    private String[] devices;
+    private int[] payloadOffsets, payloadLengths;
+    private byte[] payloadData;
+    private int payloadSize;
+
+    private int[] receptionOffsets;
+    private int receptionCount;
+    private String[] receptionTaps;
+    private double[] receptionSnrs, receptionRssis;
+
+    RawMessageBatch(int capacity) {
+        capacity = Math.max(capacity, 4);
+        times = new long[capacity];
+        snrs = new double[capacity];
+        devices = new String[capacity];
+        payloadOffsets = new int[capacity];
+        payloadLengths = new int[capacity];
+        payloadData = new byte[capacity * 24];
+        receptionOffsets = new int[capacity + 1];
+        receptionTaps = new String[capacity * 3];
+        receptionSnrs = new double[capacity * 3];
+        receptionRssis = new double[capacity * 3];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the reception timestamps (GMT), in milliseconds since the epoch.
+     * @return The timestamp column.
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * Get the best SNR of every message.
+     * @return The SNR column.
+     */
+    public double[] getSnrs() {
+        return snrs;
+    }
+
+    /**
+     * Get the id of the device that sent every message.
+     * @return The device column.
+     */
+    public String[] getDevices() {
+        return devices;
+    }
+
+    public int[] getPayloadOffsets() {
+        return payloadOffsets;
+    }
+
+    /**
+     * Get the length of every message's payload, -1 for messages without a payload.
+     * @return The payload length column.
+     */
+    public int[] getPayloadLengths() {
+        return payloadLengths;
+    }
+
+    public byte[] getPayloadData() {
+        return payloadData;
+    }
+
+    /**
+     * Get the index of the first reception of every message within the reception columns. Holds
+     * {@link #size()} + 1 valid entries, the last one being {@link #getReceptionCount()}.
+     * @return The reception offset column.
+     */
+    public int[] getReceptionOffsets() {
+        return receptionOffsets;
+    }
+
+    /**
+     * Get the total amount of receptions of every message in the batch.
+     * @return The amount of valid entries in the reception columns.
+     */
+    public int getReceptionCount() {
+        return receptionCount;
+    }
+
+    public String[] getReceptionTaps() {
+        return receptionTaps;
+    }
+
+    public double[] getReceptionSnrs() {
+        return receptionSnrs;
+    }
+
+    public double[] getReceptionRssis() {
+        return receptionRssis;
+    }
+
+    /**
+     * Returns a copy of the payload of a message.
+     * @param index The message index, less than {@link #size()}.
+     * @return The payload, or {@code null} if the message has no payload.
+     */
+    public @Nullable byte[] getPayload(int index) {
+        if (payloadLengths[index] < 0) return null;
+        return Arrays.copyOfRange(payloadData, payloadOffsets[index],
+                payloadOffsets[index] + payloadLengths[index]);
+    }
+
+    /**
+     * Returns a read-only view of the payload of a message, without copying it.
+     * @param index The message index, less than {@link #size()}.
+     * @return The payload, from position 0 to its length, or {@code null} if the message has no
+     * payload.
+     */
+    public @Nullable ByteBuffer getPayloadBuffer(int index) {
+        if (payloadLengths[index] < 0) return null;
+        return ByteBuffer.wrap(payloadData, payloadOffsets[index], payloadLengths[index]).slice()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Builds a {@link RawMessage} out of a row of this batch. Its payload isn't copied, the message
+     * shares the payload array of the batch.
+     * @param index The message index, less than {@link #size()}.
+     * @return The message.
+     */
+    public RawMessage getMessage(int index) {
+        RawMessage message = new RawMessage();
+        message.device = devices[index];
+        message.time = times[index];
+        message.snr = snrs[index];
+        if (payloadLengths[index] >= 0)
+            message.setPayload(payloadData, payloadOffsets[index], payloadLengths[index]);
+        int from = receptionOffsets[index], to = receptionOffsets[index + 1];
+        double[] signals = new double[2 * (to - from)];
+        for (int i = from; i < to; i++) {
+            signals[2 * (i - from)] = receptionSnrs[i];
+            signals[2 * (i - from) + 1] = receptionRssis[i];
+        }
+        message.setReceptions(Arrays.copyOfRange(receptionTaps, from, to), signals);
+        return message;
+    }
+
+    /**
+     * Starts a new row, its fields and receptions are set next.
+     */
+    void add() {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            snrs = Arrays.copyOf(snrs, capacity);
+            devices = Arrays.copyOf(devices, capacity);
+            payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+            payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+            receptionOffsets = Arrays.copyOf(receptionOffsets, capacity + 1);
+        }
+        times[size] = 0;
+        snrs[size] = 0;
+        devices[size] = null;
+        payloadOffsets[size] = payloadSize;
+        payloadLengths[size] = -1;
+        receptionOffsets[size] = receptionCount;
+        size++;
+        receptionOffsets[size] = receptionCount;
+    }
+
+    void setTime(long time) {
+        times[size - 1] = time;
+    }
+
+    void setSnr(double snr) {
+        snrs[size - 1] = snr;
+    }
+
+    void setDevice(String device) {
+        devices[size - 1] = device;
+    }
+
+    void setPayload(byte[] payload, int offset, int length) {
+        ensurePayloadCapacity(length);
+        System.arraycopy(payload, offset, payloadData, payloadSize, length);
+        commitPayload(length);
+    }
+
+    /**
+     * Sets the payload of the last row by copying the next string of a tokenizer straight from the
+     * response.
+     */
+    void readPayload(JsonTokenizer tokenizer) throws JsonTokenizer.MalformedJsonException {
+        int length = tokenizer.peekPlainStringLength();
+        if (length < 0) {
+            byte[] payload = tokenizer.nextString().getBytes(JsonTokenizer.UTF_8);
+            setPayload(payload, 0, payload.length);
+            return;
+        }
+        ensurePayloadCapacity(length);
+        tokenizer.nextStringBytes(length, payloadData, payloadSize);
+        commitPayload(length);
+    }
+
+    private void ensurePayloadCapacity(int additional) {
+        if (payloadSize + additional > payloadData.length)
+            payloadData = Arrays.copyOf(payloadData,
+                    Math.max(payloadData.length * 2, payloadSize + additional));
+    }
+
+    private void commitPayload(int length) {
+        payloadOffsets[size - 1] = payloadSize;
+        payloadLengths[size - 1] = length;
+        payloadSize += length;
+    }
+
+    /**
+     * Adds a reception to the last row.
+     */
+    void addReception(String tap, double snr, double rssi) {
+        if (receptionCount == receptionTaps.length) {
+            int capacity = receptionCount * 2;
+            receptionTaps = Arrays.copyOf(receptionTaps, capacity);
+            receptionSnrs = Arrays.copyOf(receptionSnrs, capacity);
+            receptionRssis = Arrays.copyOf(receptionRssis, capacity);
+        }
+        receptionTaps[receptionCount] = tap;
+        receptionSnrs[receptionCount] = snr;
+        receptionRssis[receptionCount] = rssi;
+        receptionCount++;
+        receptionOffsets[size] = receptionCount;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Merges identical GET requests while one of them is queued or in flight, so that they share a
+ * single network call. Requests are identical when they have the same URL and the same headers,
+ * i.e. the same authentication. Every merged request parses the shared response on its own and
+ * calls its own listeners, so they never see each other's result objects.
+ */
+class RequestCoalescer {
+
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Attaches a request to an identical one already queued or in flight.
+     * @return Whether the request was attached. If not, it leads a new flight and must be sent.
+     */
+    boolean join(ApiRequest<?> request) {
+        String key = keyOf(request);
+        if (key == null) return false;
+        synchronized (this) {
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                flight.followers.add(request);
+                return true;
+            }
+            flights.put(key, flight = new Flight(key));
+            request.addOutcomeListener(flight);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the key identical requests share: the URL and the headers of a GET request.
+     * @return The key, or {@code null} if the request isn't a GET.
+     */
+    static @Nullable String keyOf(ApiRequest<?> request) {
+        if (!request.getMethod().equals("GET")) return null;
+        return keyOf(request.getUrl(), request.getHeaders());
+    }
+
+    /**
+     * Returns the key of a URL and the headers it is requested with: the URL, followed by every
+     * header, sorted, on a line of its own.
+     */
+    static String keyOf(String url, Map<String, String> headers) {
+        StringBuilder key = new StringBuilder(url);
+        for (Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+            key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * The requests sharing a network call. The leader reports its outcome to the followers.
+     */
+    private class Flight implements ApiRequest.OutcomeListener {
+
+        final String key;
+        final List<ApiRequest<?>> followers = new ArrayList<>(2);
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        private List<ApiRequest<?>> land() {
+            synchronized (RequestCoalescer.this) {
+                flights.remove(key);
+                return followers;
+            }
+        }
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            for (ApiRequest<?> follower : land()) follower.onResponse(statusCode, headers, body);
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            for (ApiRequest<?> follower : land()) follower.onFailure(cause);
+        }
+    }
+
+}
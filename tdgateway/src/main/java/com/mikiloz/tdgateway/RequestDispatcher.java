@@ -0,0 +1,197 @@
+package com.mikiloz.tdgateway;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Queues the requests of a {@link SensorApiManager} before handing them to its
+ * {@link HttpTransport}, so that no more than a given amount of them is in flight at once and
+ * every {@link SensorApiManager.Endpoint} stays within its rate limit.
+ *
+ * <p>Every {@link SensorApiManager.Priority} has a lane of its own: a request is only sent when the
+ * lanes above its own have nothing that may be sent right now. Bulk reads never take the last free
+ * slot, so that a control call doesn't have to wait for a page of history to download. Within a
+ * lane, requests are queued per endpoint and sent in the order they were performed, except that a
+ * request whose endpoint is over its limit doesn't hold back the requests to other endpoints.
+ * Requests over a limit are delayed, never rejected.</p>
+ */
+class RequestDispatcher {
+
+    private static final SensorApiManager.Priority[] PRIORITIES = SensorApiManager.Priority.values();
+
+    private final SensorApiManager sensorApiManager;
+    private final HttpTransport transport;
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+    private final Map<SensorApiManager.Endpoint, TokenBucket> rateLimits =
+            new EnumMap<>(SensorApiManager.Endpoint.class);
+    private int maxConcurrentRequests;
+    private int inFlight;
+    private long sequence;
+    private long wakeUpAt = Long.MAX_VALUE;
+
+    RequestDispatcher(SensorApiManager sensorApiManager, HttpTransport transport,
+                      int maxConcurrentRequests) {
+        this.sensorApiManager = sensorApiManager;
+        this.transport = transport;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new Lane();
+    }
+
+    void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        synchronized (this) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+        }
+        dispatch();
+    }
+
+    /**
+     * Limits the rate of the requests to an endpoint.
+     * @param permitsPerSecond The sustained rate, or 0 to remove the limit.
+     * @param burst The amount of requests that can be sent at once after a quiet period.
+     */
+    void setRateLimit(SensorApiManager.Endpoint endpoint, double permitsPerSecond, int burst) {
+        synchronized (this) {
+            if (permitsPerSecond <= 0) rateLimits.remove(endpoint);
+            else rateLimits.put(endpoint, new TokenBucket(permitsPerSecond, burst,
+                    sensorApiManager.nanoTime()));
+        }
+        dispatch();
+    }
+
+    /**
+     * Returns the amount of requests waiting in a lane.
+     */
+    synchronized int getQueueDepth(SensorApiManager.Priority priority) {
+        return lanes[priority.ordinal()].depth;
+    }
+
+    synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    void enqueue(ApiRequest<?> request) {
+        request.setCompletionCallback(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RequestDispatcher.this) {
+                    inFlight--;
+                }
+                dispatch();
+            }
+        });
+        SensorApiManager.Endpoint endpoint = SensorApiManager.Endpoint.of(request.getUrl());
+        SensorApiManager.Priority priority = request.getPriority();
+        if (priority == null) {
+            priority = endpoint != null ? endpoint.getPriority() : SensorApiManager.Priority.NORMAL;
+        }
+        synchronized (this) {
+            lanes[priority.ordinal()].add(endpoint, new Queued(request, sequence++));
+        }
+        dispatch();
+    }
+
+    /**
+     * Sends as many queued requests as the limits allow, and schedules a new attempt for when the
+     * next rate limited request may go.
+     */
+    private void dispatch() {
+        List<ApiRequest<?>> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = sensorApiManager.nanoTime();
+            long[] wait = {Long.MAX_VALUE};
+            while (inFlight < maxConcurrentRequests) {
+                ApiRequest<?> next = null;
+                for (SensorApiManager.Priority priority : PRIORITIES) {
+                    if (priority == SensorApiManager.Priority.BULK
+                            && inFlight >= Math.max(1, maxConcurrentRequests - 1)) break;
+                    next = lanes[priority.ordinal()].poll(now, wait);
+                    if (next != null) break;
+                }
+                if (next == null) break;
+                inFlight++;
+                ready.add(next);
+            }
+            if (inFlight < maxConcurrentRequests && wait[0] != Long.MAX_VALUE)
+                scheduleWakeUp(now, wait[0]);
+        }
+        for (ApiRequest<?> request : ready) transport.send(request);
+    }
+
+    private void scheduleWakeUp(long now, long wait) {
+        long at = now + wait;
+        // A wake-up that comes earlier is already scheduled.
+        if (wakeUpAt != Long.MAX_VALUE && wakeUpAt - at <= 0) return;
+        wakeUpAt = at;
+        sensorApiManager.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RequestDispatcher.this) {
+                    wakeUpAt = Long.MAX_VALUE;
+                }
+                dispatch();
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The queued requests of a priority, per endpoint.
+     */
+    private class Lane {
+
+        final Map<SensorApiManager.Endpoint, Queue<Queued>> queues = new HashMap<>();
+        int depth;
+
+        void add(SensorApiManager.Endpoint endpoint, Queued queued) {
+            Queue<Queued> queue = queues.get(endpoint);
+            if (queue == null) queues.put(endpoint, queue = new ArrayDeque<>());
+            queue.add(queued);
+            depth++;
+        }
+
+        /**
+         * Takes the oldest request among the endpoints that may send right now.
+         * @param wait Lowered to the time until the next rate limited endpoint may send.
+         * @return The request, or {@code null} if none may be sent.
+         */
+        ApiRequest<?> poll(long now, long[] wait) {
+            Queue<Queued> next = null;
+            TokenBucket nextBucket = null;
+            for (Map.Entry<SensorApiManager.Endpoint, Queue<Queued>> entry : queues.entrySet()) {
+                Queue<Queued> queue = entry.getValue();
+                if (queue.isEmpty() || (next != null && next.peek().sequence < queue.peek().sequence))
+                    continue;
+                TokenBucket bucket = entry.getKey() == null ? null : rateLimits.get(entry.getKey());
+                long available = bucket == null ? 0 : bucket.nanosUntilAvailable(now);
+                if (available > 0) {
+                    wait[0] = Math.min(wait[0], available);
+                } else {
+                    next = queue;
+                    nextBucket = bucket;
+                }
+            }
+            if (next == null) return null;
+            if (nextBucket != null) nextBucket.tryAcquire(now);
+            depth--;
+            return next.poll().request;
+        }
+    }
+
+    private static class Queued {
+
+        final ApiRequest<?> request;
+        final long sequence;
+
+        Queued(ApiRequest<?> request, long sequence) {
+            this.request = request;
+            this.sequence = sequence;
+        }
+    }
+
+}
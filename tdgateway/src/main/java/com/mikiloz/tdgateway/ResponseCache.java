@@ -0,0 +1,318 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps the latest responses to the GET requests of some endpoints in memory, e.g. the device
+ * information, so that reading them again doesn't go to the network every time. Responses are kept
+ * per URL and headers, like {@link RequestCoalescer} merges requests, and the least recently used
+ * ones are dropped once the capacity is reached.
+ *
+ * <p>Every cached endpoint has a time to live and a stale period after it. A fresh response is
+ * served as is. A stale one is served too, and revalidated in the background: the request is sent
+ * again with {@code If-None-Match} and {@code If-Modified-Since} headers when the server gave an
+ * {@code ETag} or a {@code Last-Modified} date, so that a {@code 304 Not Modified} only refreshes
+ * the cached response. Past the stale period, requests wait for the network.</p>
+ *
+ * <p>A request that isn't a GET, e.g. a command that changes a device, drops the cached responses
+ * of the device it targets: the ones sent with the same headers, i.e. the same device credentials,
+ * and the ones naming the same {@code id} or {@code sn} in their query, e.g. the device information
+ * read through the Developer API.</p>
+ */
+class ResponseCache {
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final SensorApiManager sensorApiManager;
+    private final Map<SensorApiManager.Endpoint, Policy> policies =
+            new EnumMap<>(SensorApiManager.Endpoint.class);
+    private final Map<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            return size() > capacity;
+        }
+    };
+    private final Map<String, Fill> fills = new HashMap<>();
+    private int capacity;
+    private long generation;
+    private long hitCount, staleHitCount, missCount;
+
+    ResponseCache(SensorApiManager sensorApiManager, int capacity) {
+        this.sensorApiManager = sensorApiManager;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets how long the responses of an endpoint are cached.
+     * @param ttl How long a response is served without revalidating it, in milliseconds, or 0 to
+     *            stop caching the endpoint.
+     * @param staleTtl How long after that a response is still served while being revalidated, in
+     *                 milliseconds.
+     */
+    synchronized void setTtl(SensorApiManager.Endpoint endpoint, long ttl, long staleTtl) {
+        if (ttl <= 0) {
+            policies.remove(endpoint);
+        } else {
+            policies.put(endpoint, new Policy(TimeUnit.MILLISECONDS.toNanos(ttl),
+                    TimeUnit.MILLISECONDS.toNanos(staleTtl)));
+        }
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (entries.size() > capacity) {
+            List<String> eldest = new ArrayList<>(entries.keySet()).subList(0, entries.size() - capacity);
+            for (String key : eldest) entries.remove(key);
+        }
+    }
+
+    /**
+     * Drops every cached response. Revalidations in flight don't store theirs.
+     */
+    synchronized void clear() {
+        entries.clear();
+        generation++;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Answers a request from the cache, or through a request that fills the cache.
+     * @return Whether the request was handled. If not, it must be sent as usual.
+     */
+    boolean handle(final ApiRequest<?> request) {
+        if (request instanceof Fill) return false;
+        if (!request.getMethod().equals("GET")) {
+            invalidate(request);
+            return false;
+        }
+        SensorApiManager.Endpoint endpoint = SensorApiManager.Endpoint.of(request.getUrl());
+        String key = RequestCoalescer.keyOf(request);
+        final CachedResponse entry;
+        Fill fill = null;
+        synchronized (this) {
+            Policy policy = endpoint == null ? null : policies.get(endpoint);
+            if (policy == null) return false;
+            CachedResponse cached = entries.get(key);
+            long age = cached == null ? Long.MAX_VALUE
+                    : sensorApiManager.nanoTime() - cached.storedAt;
+            if (age <= policy.ttl) {
+                hitCount++;
+                entry = cached;
+            } else if (age - policy.ttl <= policy.staleTtl) {
+                staleHitCount++;
+                entry = cached;
+                if (!fills.containsKey(key)) fills.put(key, fill = new Fill(key, request, cached));
+            } else {
+                missCount++;
+                entry = null;
+                Fill pending = fills.get(key);
+                if (pending != null) {
+                    pending.waiters.add(request);
+                    return true;
+                }
+                fills.put(key, fill = new Fill(key, request, cached));
+                fill.waiters.add(request);
+            }
+        }
+        if (entry != null) {
+            // The response is parsed off the thread listeners are called on, like a network one.
+            sensorApiManager.runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    request.onResponse(200, entry.headers, entry.body);
+                }
+            });
+        }
+        if (fill != null) sensorApiManager.performRequest(fill);
+        return true;
+    }
+
+    private synchronized List<ApiRequest<?>> land(Fill fill, @Nullable CachedResponse entry) {
+        fills.remove(fill.key);
+        if (entry != null && fill.generation == generation && !fill.invalidated)
+            entries.put(fill.key, entry);
+        return fill.waiters;
+    }
+
+    /**
+     * Drops the cached responses of the device a request acts on. Fills in flight for them don't
+     * store theirs.
+     */
+    private synchronized void invalidate(ApiRequest<?> request) {
+        String key = RequestCoalescer.keyOf(request.getUrl(), request.getHeaders());
+        String identity = identityOf(key);
+        String id = queryParam(request.getUrl(), "id");
+        String sn = queryParam(request.getUrl(), "sn");
+        for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+            if (targets(keys.next(), identity, id, sn)) keys.remove();
+        }
+        for (Fill fill : fills.values()) {
+            if (targets(fill.key, identity, id, sn)) fill.invalidated = true;
+        }
+    }
+
+    private static boolean targets(String key, String identity, @Nullable String id,
+                                   @Nullable String sn) {
+        String keyIdentity = identityOf(key);
+        if (!identity.isEmpty() && identity.equals(keyIdentity)) return true;
+        String url = key.substring(0, key.length() - keyIdentity.length());
+        return (id != null && id.equals(queryParam(url, "id")))
+                || (sn != null && sn.equals(queryParam(url, "sn")));
+    }
+
+    /**
+     * Returns the headers part of a key, see {@link RequestCoalescer#keyOf(String, Map)}: who sent
+     * the request.
+     */
+    private static String identityOf(String key) {
+        int newline = key.indexOf('\n');
+        return newline < 0 ? "" : key.substring(newline);
+    }
+
+    /**
+     * Returns the value of a query parameter, still percent-encoded, or {@code null} if the URL
+     * doesn't have it.
+     */
+    private static @Nullable String queryParam(String url, String name) {
+        int start = url.indexOf('?');
+        while (start >= 0) {
+            int end = url.indexOf('&', start + 1);
+            if (end < 0) end = url.length();
+            if (url.startsWith(name, start + 1) && url.startsWith("=", start + 1 + name.length()))
+                return url.substring(start + 2 + name.length(), end);
+            start = end < url.length() ? end : -1;
+        }
+        return null;
+    }
+
+    private static @Nullable String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    private static class Policy {
+
+        final long ttl;
+        final long staleTtl;
+
+        Policy(long ttl, long staleTtl) {
+            this.ttl = ttl;
+            this.staleTtl = staleTtl;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class CachedResponse {
+
+        final Map<String, String> headers;
+        final byte[] body;
+        final long storedAt;
+
+        CachedResponse(Map<String, String> headers, byte[] body, long storedAt) {
+            this.headers = headers;
+            this.body = body;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * A request that fetches or revalidates a cached response, on behalf of the requests waiting
+     * for it. It goes through the manager's dispatcher like any other request.
+     */
+    private class Fill extends ApiRequest<Void> {
+
+        final String key;
+        final List<ApiRequest<?>> waiters = new ArrayList<>(1);
+        final long generation = ResponseCache.this.generation;
+        // Set when the response being fetched is invalidated, guarded by the cache.
+        boolean invalidated;
+        private final CachedResponse cached;
+        private final Map<String, String> headers;
+
+        /**
+         * @param request The request whose response is fetched.
+         * @param cached The response to revalidate, or {@code null} if there's none.
+         */
+        Fill(String key, ApiRequest<?> request, @Nullable CachedResponse cached) {
+            super(Request.Method.GET, request.getUrl(), null, null);
+            this.key = key;
+            this.cached = cached;
+            this.headers = new HashMap<>(request.getHeaders());
+            if (cached != null) {
+                String etag = header(cached.headers, ETAG);
+                String lastModified = header(cached.headers, LAST_MODIFIED);
+                if (etag != null) headers.put(IF_NONE_MATCH, etag);
+                if (lastModified != null) headers.put(IF_MODIFIED_SINCE, lastModified);
+            }
+            setPriority(request.getPriority());
+            addOutcomeListener(new OutcomeListener() {
+                @Override
+                public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+                    complete(statusCode, headers, body);
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    for (ApiRequest<?> waiter : ResponseCache.this.land(Fill.this, null))
+                        waiter.onFailure(cause);
+                }
+            });
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        @Override
+        Void parseResponse(NetworkResponse response) {
+            return null;
+        }
+
+        private void complete(int statusCode, Map<String, String> headers, byte[] body) {
+            long now = sensorApiManager.nanoTime();
+            if (statusCode == 304 && cached != null) {
+                CachedResponse refreshed = new CachedResponse(cached.headers, cached.body, now);
+                for (ApiRequest<?> waiter : ResponseCache.this.land(this, refreshed))
+                    waiter.onResponse(200, refreshed.headers, refreshed.body);
+            } else {
+                CachedResponse fetched = statusCode >= 200 && statusCode <= 299
+                        ? new CachedResponse(headers, body, now) : null;
+                for (ApiRequest<?> waiter : ResponseCache.this.land(this, fetched))
+                    waiter.onResponse(statusCode, headers, body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.VolleyError;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Retries the requests of a {@link SensorApiManager} that fail for a reason that may go away by
+ * itself, and stops sending requests to an endpoint that keeps failing.
+ *
+ * <p>Retries are delayed with an exponential backoff and full jitter: the n-th retry waits a random
+ * time between 0 and {@code initialBackoff * 2^n}, so that devices that failed together don't retry
+ * together. A {@code Retry-After} header is honoured. Retries are drawn from a budget that is
+ * refilled by a fraction of the first attempts, so that during an outage the retries can't add more
+ * than that fraction to the load. Only GET requests are retried after a connection error or a 5xx,
+ * since the others may have been carried out already; any request is retried after a 429 or a 503,
+ * which the API sends without carrying it out.</p>
+ *
+ * <p>Every {@link SensorApiManager.Endpoint} has its own {@link CircuitBreaker}: after a few
+ * consecutive connection errors or 5xx, its requests fail right away with
+ * {@link SensorApiError.Kind#CIRCUIT_OPEN} for a while, then a single request is let through to
+ * probe whether the endpoint works again.</p>
+ */
+class RetryController implements ApiRequest.RetryHandler {
+
+    private static final double RETRY_BUDGET_CAPACITY = 10;
+
+    private final SensorApiManager sensorApiManager;
+    private final RequestDispatcher dispatcher;
+    private final Map<SensorApiManager.Endpoint, CircuitBreaker> circuitBreakers =
+            new EnumMap<>(SensorApiManager.Endpoint.class);
+    private final Random random = new Random();
+    private int maxRetries;
+    private long initialBackoff, maxBackoff;
+    private double retryBudgetRatio;
+    private double retryBudget = RETRY_BUDGET_CAPACITY;
+    private int failureThreshold;
+    private long openDuration;
+
+    /**
+     * @param initialBackoff The maximum delay of the first retry, in milliseconds.
+     * @param maxBackoff The maximum delay of any retry, in milliseconds.
+     * @param openDuration How long a circuit stays open, in milliseconds.
+     */
+    RetryController(SensorApiManager sensorApiManager, RequestDispatcher dispatcher, int maxRetries,
+                    long initialBackoff, long maxBackoff, double retryBudgetRatio,
+                    int failureThreshold, long openDuration) {
+        this.sensorApiManager = sensorApiManager;
+        this.dispatcher = dispatcher;
+        setRetryPolicy(maxRetries, initialBackoff, maxBackoff);
+        setRetryBudgetRatio(retryBudgetRatio);
+        setCircuitBreaker(failureThreshold, openDuration);
+    }
+
+    synchronized void setRetryPolicy(int maxRetries, long initialBackoff, long maxBackoff) {
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    synchronized void setRetryBudgetRatio(double retryBudgetRatio) {
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    /**
+     * Sets the circuit breaker of every endpoint. The circuits are closed again.
+     * @param failureThreshold The amount of consecutive failures that opens a circuit, or 0 to
+     *                         never open them.
+     */
+    synchronized void setCircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        circuitBreakers.clear();
+    }
+
+    /**
+     * Returns whether the requests to an endpoint are currently refused.
+     */
+    synchronized boolean isCircuitOpen(SensorApiManager.Endpoint endpoint) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        return circuitBreaker != null && circuitBreaker.isOpen(sensorApiManager.nanoTime());
+    }
+
+    /**
+     * Sends a request for the first time.
+     */
+    void send(ApiRequest<?> request) {
+        request.setRetryHandler(this);
+        synchronized (this) {
+            retryBudget = Math.min(RETRY_BUDGET_CAPACITY, retryBudget + retryBudgetRatio);
+        }
+        enqueue(request);
+    }
+
+    private void enqueue(ApiRequest<?> request) {
+        SensorApiManager.Endpoint endpoint = SensorApiManager.Endpoint.of(request.getUrl());
+        boolean allowed;
+        synchronized (this) {
+            CircuitBreaker circuitBreaker = circuitBreakerOf(endpoint);
+            allowed = circuitBreaker == null
+                    || circuitBreaker.allowRequest(sensorApiManager.nanoTime());
+        }
+        if (allowed) dispatcher.enqueue(request);
+        else request.onFailure(new CircuitOpenError(endpoint));
+    }
+
+    @Override
+    public boolean onAttemptCompleted(final ApiRequest<?> request, int statusCode,
+                                      Map<String, String> headers, @Nullable Throwable cause) {
+        if (cause instanceof CircuitOpenError) return false;
+        boolean failed = cause != null || statusCode >= 500;
+        long delay;
+        synchronized (this) {
+            long now = sensorApiManager.nanoTime();
+            CircuitBreaker circuitBreaker = circuitBreakerOf(SensorApiManager.Endpoint.of(request.getUrl()));
+            if (circuitBreaker != null) {
+                if (!failed) circuitBreaker.onSuccess();
+                // The probe time is spread too, so that clients that failed together don't probe
+                // together.
+                else circuitBreaker.onFailure(now, TimeUnit.MILLISECONDS.toNanos(
+                        (long) (openDuration * (0.5 + random.nextDouble() / 2))));
+                // A retry would be refused, the actual failure is more telling.
+                if (circuitBreaker.isOpen(now)) return false;
+            }
+            if (!isRetryable(request, statusCode, cause) || request.getRetryCount() >= maxRetries
+                    || retryBudget < 1) return false;
+            long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(request.getRetryCount(), 30));
+            delay = (long) (ceiling * random.nextDouble());
+            long retryAfter = retryAfterOf(headers);
+            if (retryAfter > maxBackoff) return false;
+            delay = Math.max(delay, retryAfter);
+            retryBudget -= 1;
+        }
+        request.prepareRetry();
+        sensorApiManager.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(request);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private @Nullable CircuitBreaker circuitBreakerOf(@Nullable SensorApiManager.Endpoint endpoint) {
+        if (endpoint == null || failureThreshold < 1) return null;
+        CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        if (circuitBreaker == null) {
+            circuitBreakers.put(endpoint, circuitBreaker = new CircuitBreaker(failureThreshold));
+        }
+        return circuitBreaker;
+    }
+
+    private static boolean isRetryable(ApiRequest<?> request, int statusCode, @Nullable Throwable cause) {
+        if (statusCode == 429 || statusCode == 503) return true;
+        if (!request.getMethod().equals("GET")) return false;
+        return cause != null || statusCode == 500 || statusCode == 502 || statusCode == 504;
+    }
+
+    /**
+     * Returns the delay asked by a {@code Retry-After} header, in milliseconds.
+     * @return The delay, or 0 if there's none or it's given as a date.
+     */
+    private static long retryAfterOf(Map<String, String> headers) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!"Retry-After".equalsIgnoreCase(header.getKey())) continue;
+            try {
+                return Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The failure of a request refused by an open circuit.
+     */
+    static class CircuitOpenError extends VolleyError {
+
+        CircuitOpenError(SensorApiManager.Endpoint endpoint) {
+            super("The circuit of endpoint " + endpoint + " is open");
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * An append-only log of the messages of a single device, split into segment files. Segments hold
+ * disjoint time ranges and are kept in time order. Every segment holds its records sorted, and
+ * keeps a sparse in-memory index (one entry every {@value #INDEX_INTERVAL} records), so that a time
+ * range is located with a binary search and read from the memory-mapped segment, newest first. The
+ * log also tracks which time ranges are fully covered, i.e. which ranges hold every message the API
+ * has for them.
+ *
+ * <p>Newer messages are appended to segments in ascending time order. Walking the history back
+ * stores ever older batches instead, which go to segments in descending time order, so that they
+ * are appended as well rather than each opening a segment of its own. Only a batch that falls
+ * within the range of an existing segment has that segment rewritten.</p>
+ * @param <T> The type of the messages.
+ */
+class SegmentedLog<T> {
+
+    private static final long MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int INDEX_INTERVAL = 64;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DESCENDING_SEGMENT_SUFFIX = ".desc" + SEGMENT_SUFFIX;
+    private static final String COVERAGE_FILE = "coverage";
+
+    private final File directory;
+    private final MessageCodec<T> codec;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<long[]> coverage = new ArrayList<>();
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private final Comparator<T> oldestFirst = new Comparator<T>() {
+        @Override
+        public int compare(T a, T b) {
+            long timeA = codec.timeOf(a), timeB = codec.timeOf(b);
+            return timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+        }
+    };
+    private long nextSegmentNumber;
+
+    SegmentedLog(File directory, MessageCodec<T> codec) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create " + directory);
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (String name : names) {
+            int separator = name.indexOf('.');
+            try {
+                nextSegmentNumber = Math.max(nextSegmentNumber,
+                        Long.parseLong(name.substring(0, separator)) + 1);
+            } catch (NumberFormatException ignored) {}
+            Segment segment = new Segment(new File(directory, name),
+                    name.endsWith(DESCENDING_SEGMENT_SUFFIX));
+            // A segment left empty by a crash holds no range.
+            if (segment.count > 0) segments.add(segment);
+            else if (!segment.file.delete()) throw new IOException("Couldn't delete " + segment.file);
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.minTime < b.minTime ? -1 : (a.minTime == b.minTime ? 0 : 1);
+            }
+        });
+        loadCoverage();
+    }
+
+    /**
+     * Appends messages to the log, skipping the ones inside ranges that were already covered, and
+     * marks {@code [from, to]} as covered.
+     * @param messages The messages, in any order.
+     * @param from The start of the range the messages fully cover.
+     * @param to The end of the range the messages fully cover.
+     */
+    synchronized void append(List<T> messages, long from, long to) throws IOException {
+        List<T> sorted = new ArrayList<>(messages.size());
+        for (T message : messages) {
+            if (!isCovered(codec.timeOf(message))) sorted.add(message);
+        }
+        Collections.sort(sorted, oldestFirst);
+
+        // Every run of messages between two segments, or within one, goes to its own place.
+        for (int start = 0, end; start < sorted.size(); start = end) {
+            long time = codec.timeOf(sorted.get(start));
+            int next = 0;
+            while (next < segments.size() && segments.get(next).minTime <= time) next++;
+            Segment before = next > 0 ? segments.get(next - 1) : null;
+            Segment after = next < segments.size() ? segments.get(next) : null;
+
+            end = start;
+            if (before != null && time <= before.maxTime) {
+                while (end < sorted.size() && codec.timeOf(sorted.get(end)) <= before.maxTime) end++;
+                before.merge(sorted.subList(start, end));
+                continue;
+            }
+            while (end < sorted.size()
+                    && (after == null || codec.timeOf(sorted.get(end)) < after.minTime)) end++;
+            List<T> run = sorted.subList(start, end);
+            if (after != null && after.descending && after.size < MAX_SEGMENT_SIZE) {
+                after.append(newestFirst(run));
+            } else if (before != null && !before.descending && before.size < MAX_SEGMENT_SIZE) {
+                before.append(run);
+            } else {
+                // A run older than some segment is likely followed by older ones.
+                boolean descending = after != null;
+                Segment segment = new Segment(new File(directory, String.format(Locale.US,
+                        "%010d%s", nextSegmentNumber++,
+                        descending ? DESCENDING_SEGMENT_SUFFIX : SEGMENT_SUFFIX)), descending);
+                segments.add(next, segment);
+                segment.append(descending ? newestFirst(run) : run);
+            }
+        }
+
+        addCoverage(from, to);
+        saveCoverage();
+    }
+
+    /**
+     * Returns the stored messages within a time range, from newest to oldest.
+     */
+    synchronized List<T> query(long from, long to) throws IOException {
+        return query(from, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the newest stored messages within a time range, from newest to oldest, reading no
+     * more records than asked for.
+     * @param limit The maximum amount of messages to return.
+     */
+    synchronized List<T> query(long from, long to, int limit) throws IOException {
+        List<T> messages = new ArrayList<>(Math.min(limit, 256));
+        for (int i = segments.size() - 1; i >= 0 && messages.size() < limit; i--) {
+            Segment segment = segments.get(i);
+            if (segment.maxTime < from) break;
+            if (segment.minTime <= to) segment.read(from, to, limit, messages);
+        }
+        return messages;
+    }
+
+    private List<T> newestFirst(List<T> messages) {
+        List<T> reversed = new ArrayList<>(messages);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    /**
+     * Returns the fully covered range that contains an instant.
+     * @return The range as {@code {from, to}}, or {@code null} if {@code time} isn't covered.
+     */
+    synchronized @Nullable long[] coveringRange(long time) {
+        for (long[] range : coverage) {
+            if (range[0] <= time && time <= range[1]) return range.clone();
+        }
+        return null;
+    }
+
+    private boolean isCovered(long time) {
+        for (long[] range : coverage) {
+            if (range[0] <= time && time <= range[1]) return true;
+        }
+        return false;
+    }
+
+    //region Coverage
+
+    private void addCoverage(long from, long to) {
+        if (from > to) return;
+        List<long[]> merged = new ArrayList<>(coverage.size() + 1);
+        long[] added = {from, to};
+        for (long[] range : coverage) {
+            if (endsBefore(range[1], added[0]) || endsBefore(added[1], range[0])) {
+                merged.add(range);
+            } else {
+                added[0] = Math.min(added[0], range[0]);
+                added[1] = Math.max(added[1], range[1]);
+            }
+        }
+        merged.add(added);
+        Collections.sort(merged, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        coverage.clear();
+        coverage.addAll(merged);
+    }
+
+    /**
+     * Returns whether a range ending at {@code end} is disjoint from, and not adjacent to, a range
+     * starting at {@code start}.
+     */
+    private static boolean endsBefore(long end, long start) {
+        return end < start && end + 1 != start;
+    }
+
+    private void loadCoverage() throws IOException {
+        File file = new File(directory, COVERAGE_FILE);
+        if (!file.isFile()) return;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                JsonTokenizer.UTF_8));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                int separator = line.indexOf(' ');
+                if (separator < 0) continue;
+                try {
+                    coverage.add(new long[] {Long.parseLong(line.substring(0, separator)),
+                            Long.parseLong(line.substring(separator + 1))});
+                } catch (NumberFormatException ignored) {}
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void saveCoverage() throws IOException {
+        File file = new File(directory, COVERAGE_FILE);
+        File temporary = new File(directory, COVERAGE_FILE + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), JsonTokenizer.UTF_8);
+        try {
+            for (long[] range : coverage) writer.write(range[0] + " " + range[1] + "\n");
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(file)) throw new IOException("Couldn't replace " + file);
+    }
+
+    //endregion
+
+    /**
+     * A segment file: a sequence of {@code [int length][record]} entries, in ascending or, for a
+     * descending segment, descending time order.
+     */
+    private class Segment {
+
+        final File file;
+        final boolean descending;
+        long size;
+        int count;
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+        long[] indexTimes = new long[16];
+        long[] indexOffsets = new long[16];
+        int indexSize;
+        private ByteBuffer mapped;
+
+        Segment(File file, boolean descending) throws IOException {
+            this.file = file;
+            this.descending = descending;
+            if (file.isFile()) scan();
+        }
+
+        /**
+         * Rebuilds the sparse index of an existing segment, dropping a partially written record
+         * left behind by a crash.
+         */
+        private void scan() throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                long length = randomAccessFile.length();
+                ByteBuffer buffer = randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, length);
+                long offset = 0;
+                while (offset + 4 + 8 <= length) {
+                    int recordLength = buffer.getInt((int) offset);
+                    if (recordLength < 8 || offset + 4 + recordLength > length) break;
+                    indexRecord(buffer.getLong((int) offset + 4), offset);
+                    offset += 4 + recordLength;
+                }
+                if (offset != length) randomAccessFile.setLength(offset);
+                size = offset;
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        /**
+         * Appends messages, in the order of the segment and all beyond its range.
+         */
+        void append(List<T> messages) throws IOException {
+            write(file, true, messages);
+        }
+
+        /**
+         * Rewrites the segment with messages within its range added.
+         */
+        void merge(List<T> messages) throws IOException {
+            List<T> merged = new ArrayList<>(count + messages.size());
+            read(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, merged);
+            merged.addAll(messages);
+            Collections.sort(merged, oldestFirst);
+            if (descending) Collections.reverse(merged);
+
+            File temporary = new File(file.getPath() + ".tmp");
+            reset();
+            try {
+                write(temporary, false, merged);
+                if (!temporary.renameTo(file)) throw new IOException("Couldn't replace " + file);
+            } catch (IOException e) {
+                reset();
+                scan();
+                throw e;
+            }
+        }
+
+        private void write(File target, boolean append, List<T> messages) throws IOException {
+            FileOutputStream output = new FileOutputStream(target, append);
+            try {
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                long offset = size;
+                for (T message : messages) {
+                    recordBuffer.reset();
+                    codec.encode(message, recordOutput);
+                    int recordLength = recordBuffer.size();
+                    batch.write(recordLength >>> 24);
+                    batch.write(recordLength >>> 16);
+                    batch.write(recordLength >>> 8);
+                    batch.write(recordLength);
+                    recordBuffer.writeTo(batch);
+                    indexRecord(codec.timeOf(message), offset);
+                    offset += 4 + recordLength;
+                }
+                batch.writeTo(output);
+                output.getFD().sync();
+                size = offset;
+            } finally {
+                output.close();
+            }
+            mapped = null;
+        }
+
+        private void reset() {
+            size = 0;
+            count = 0;
+            indexSize = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            mapped = null;
+        }
+
+        private void indexRecord(long time, long offset) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (indexSize == indexTimes.length) {
+                    indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                }
+                indexTimes[indexSize] = time;
+                indexOffsets[indexSize] = offset;
+                indexSize++;
+            }
+            count++;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+        }
+
+        /**
+         * Adds the records within a time range to {@code messages}, newest first, until there are
+         * {@code limit} of them.
+         */
+        void read(long from, long to, int limit, List<T> messages) throws IOException {
+            // The last indexed record that is newer than the range, in a descending segment, or
+            // that isn't, in an ascending one.
+            int low = 0, high = indexSize - 1, last = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (descending ? indexTimes[middle] > to : indexTimes[middle] <= to) {
+                    last = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            ByteBuffer buffer = map().duplicate();
+            if (descending) {
+                int offset = last < 0 ? 0 : (int) indexOffsets[last];
+                while (offset < size && messages.size() < limit) {
+                    int recordLength = buffer.getInt(offset);
+                    long time = buffer.getLong(offset + 4);
+                    if (time < from) break;
+                    if (time <= to) {
+                        buffer.position(offset + 4);
+                        messages.add(codec.decode(buffer));
+                    }
+                    offset += 4 + recordLength;
+                }
+                return;
+            }
+
+            // Records can only be walked forwards: every indexed block is walked backwards by
+            // collecting the offsets of its records first.
+            int[] offsets = new int[INDEX_INTERVAL];
+            for (int block = last; block >= 0 && messages.size() < limit; block--) {
+                int offset = (int) indexOffsets[block];
+                int end = block + 1 < indexSize ? (int) indexOffsets[block + 1] : (int) size;
+                int found = 0;
+                while (offset < end) {
+                    long time = buffer.getLong(offset + 4);
+                    if (time > to) break;
+                    if (time >= from) offsets[found++] = offset;
+                    offset += 4 + buffer.getInt(offset);
+                }
+                while (found > 0 && messages.size() < limit) {
+                    buffer.position(offsets[--found] + 4);
+                    messages.add(codec.decode(buffer));
+                }
+                if (indexTimes[block] < from) break;
+            }
+        }
+
+        private ByteBuffer map() throws IOException {
+            if (mapped == null) {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                try {
+                    mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } finally {
+                    randomAccessFile.close();
+                }
+            }
+            return mapped;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkError;
+import com.android.volley.ParseError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+
+/**
+ * Describes why a call to the Sensor API failed, as reported to a
+ * {@link SensorApiManager.SensorApiErrorListener}. The {@link Kind} tells failures that may go
+ * away by themselves, e.g. a timeout, from the ones that won't, e.g. a revoked token. The
+ * underlying exception, if any, is the {@link #getCause() cause}.
+ */
+public class SensorApiError extends Exception {
+
+    /**
+     * The categories of failures.
+     */
+    public enum Kind {
+        /** The API couldn't be reached. */
+        CONNECTION,
+        /** The API didn't answer in time. */
+        TIMEOUT,
+        /** The credentials were rejected or are missing, e.g. a device without a token. */
+        AUTHENTICATION,
+        /** Too many requests were made, the API answered with a 429. */
+        RATE_LIMITED,
+        /** The API refused the request, with any other 4xx status. */
+        CLIENT,
+        /** The API failed to answer, with a 5xx status. */
+        SERVER,
+        /** The response couldn't be parsed. */
+        PARSE,
+        /** The request wasn't sent, because the endpoint failed too often lately. */
+        CIRCUIT_OPEN,
+        /** The request couldn't be built, e.g. because of invalid parameters. */
+        INVALID_REQUEST
+    }
+
+    private final Kind kind;
+    private final int statusCode;
+
+    /**
+     * @param statusCode The HTTP status of the response, or -1 if there was none.
+     */
+    SensorApiError(Kind kind, String message, int statusCode, @Nullable Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+        this.statusCode = statusCode;
+    }
+
+    SensorApiError(Kind kind, String message) {
+        this(kind, message, -1, null);
+    }
+
+    /**
+     * Describes the failure of a request.
+     */
+    static SensorApiError fromVolleyError(VolleyError error) {
+        return fromVolleyError(null, error);
+    }
+
+    /**
+     * Describes the failure of a request.
+     * @param message The message of the error, or {@code null} for one that describes its kind.
+     */
+    static SensorApiError fromVolleyError(@Nullable String message, VolleyError error) {
+        int statusCode = error.networkResponse != null ? error.networkResponse.statusCode : -1;
+        Kind kind;
+        if (error instanceof RetryController.CircuitOpenError) kind = Kind.CIRCUIT_OPEN;
+        else if (error instanceof ParseError) kind = Kind.PARSE;
+        else if (error instanceof TimeoutError) kind = Kind.TIMEOUT;
+        else if (error instanceof AuthFailureError) kind = Kind.AUTHENTICATION;
+        else if (statusCode == 429) kind = Kind.RATE_LIMITED;
+        else if (statusCode >= 500) kind = Kind.SERVER;
+        else if (statusCode >= 400) kind = Kind.CLIENT;
+        else if (error instanceof NetworkError) kind = Kind.CONNECTION;
+        else kind = Kind.SERVER;
+        if (message == null) {
+            message = kind == Kind.PARSE ? "Error parsing the response"
+                    : "Error performing the query: "
+                    + (statusCode != -1 ? "HTTP " + statusCode
+                    : error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+        }
+        return new SensorApiError(kind, message, statusCode, error);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the HTTP status of the response the API gave.
+     * @return The status code, or -1 if the API didn't answer.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns whether the failure is likely to be temporary, so that the same call may succeed
+     * later. Requests are already retried a few times before such errors are reported, see
+     * {@link SensorApiManager#setRetryPolicy(int, long, long)}.
+     * @return Whether the call is worth trying again later.
+     */
+    public boolean isTransient() {
+        switch (kind) {
+            case CONNECTION: case TIMEOUT: case RATE_LIMITED: case SERVER: case CIRCUIT_OPEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SensorApiError{" + kind + (statusCode != -1 ? " " + statusCode : "") + ": "
+                + getMessage() + "}";
+    }
+
+}
@@ -1,24 +1,37 @@
 package com.mikiloz.tdgateway;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 
-import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
-import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
+import com.android.volley.toolbox.HttpHeaderParser;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An API Manager class for the Telecom Design Sensor API.
@@ -26,19 +39,24 @@ import java.util.Map;
 public class SensorApiManager {
 
     static final String DEVICE_AUTHENTICATION_ENDPOINT =
-            "https://sensor.insgroup.fr/iot/devices/crc.json?sn=%1$s&key=%2$s";
+            "https://sensor.insgroup.fr/iot/devices/crc.json";
+    static final EndpointTemplate DEVICE_AUTHENTICATION_TEMPLATE =
+            new EndpointTemplate(DEVICE_AUTHENTICATION_ENDPOINT, "sn", "key");
 
-    static final String[] DEVICE_MESSAGES_HISTORY_ENDPOINT_PARAMS = {"amount", "until"};
     static final String DEVICE_MESSAGES_HISTORY_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/msgs/history.json";
+    static final EndpointTemplate DEVICE_MESSAGES_HISTORY_TEMPLATE =
+            new EndpointTemplate(DEVICE_MESSAGES_HISTORY_ENDPOINT, "amount", "until");
 
-    static final String[] DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT_PARAMS = {"amount", "after"};
     static final String DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/msgs/recents.json";
+    static final EndpointTemplate DEVICE_MESSAGES_HISTORY_LATEST_TEMPLATE =
+            new EndpointTemplate(DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, "amount", "after");
 
-    static final String[] DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT_PARAMS = {"limit", "before"};
     static final String DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/msgs/sfx/history.json";
+    static final EndpointTemplate DEVICE_RAW_MESSAGES_HISTORY_TEMPLATE =
+            new EndpointTemplate(DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT, "limit", "before");
 
     static final String DEVICE_CHILD_DEVICES_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/children.json";
@@ -46,42 +64,79 @@ public class SensorApiManager {
     static final String DEVICE_CLEAR_MESSAGES_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/clear.json";
 
-    static final String[] DEVICE_CHANGE_STATUS_ENDPOINT_PARAMS = {"id", "value"};
     static final String DEVICE_CHANGE_STATUS_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/status.json";
+    static final EndpointTemplate DEVICE_CHANGE_STATUS_TEMPLATE =
+            new EndpointTemplate(DEVICE_CHANGE_STATUS_ENDPOINT, "id", "value");
 
-    static final String[] DEVICE_SET_ACTIVE_FLAG_ENDPOINT_PARAMS = {"id", "sn", "value"};
     static final String DEVICE_SET_ACTIVE_FLAG_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/status.json";
+    static final EndpointTemplate DEVICE_SET_ACTIVE_FLAG_TEMPLATE =
+            new EndpointTemplate(DEVICE_SET_ACTIVE_FLAG_ENDPOINT, "id", "sn", "value");
 
-    static final String[] DEVICE_SET_MONITORING_FLAG_ENDPOINT_PARAMS = {"id", "sn", "value"};
     static final String DEVICE_SET_MONITORING_FLAG_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/watch.json";
+    static final EndpointTemplate DEVICE_SET_MONITORING_FLAG_TEMPLATE =
+            new EndpointTemplate(DEVICE_SET_MONITORING_FLAG_ENDPOINT, "id", "sn", "value");
 
-    static final String[] DEVICE_SET_BIDIR_VALUE_ENDPOINT_PARAMS = {"id", "sn", "value"};
     static final String DEVICE_SET_BIDIR_VALUE_ENDPOINT =
             "https://sensor.insgroup.fr/iot/devices/bidirval.json";
+    static final EndpointTemplate DEVICE_SET_BIDIR_VALUE_TEMPLATE =
+            new EndpointTemplate(DEVICE_SET_BIDIR_VALUE_ENDPOINT, "id", "sn", "value");
 
-    static final String[] DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT_PARAMS = {"id", "sn"};
     static final String DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT =
             "https://sensor.insgroup.fr/iot/developers/device.json";
+    static final EndpointTemplate DEVELOPER_GET_DEVICE_INFORMATION_TEMPLATE =
+            new EndpointTemplate(DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT, "id", "sn");
 
-    static final SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy KK:mm:ss aa z", Locale.US);
     static final int GMT_TIMEZONE = 1;
 
 
 
     private Context context;
     private String developerAuthToken;
-    private RequestQueue requestQueue;
-    List<IotDevice> iotDevices = new ArrayList<>();
+    private final HttpTransport transport;
+    private final RequestDispatcher dispatcher;
+    private final RetryController retryController;
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private volatile boolean coalescingRequests = true;
+    private final ResponseCache responseCache = new ResponseCache(this, DEFAULT_CACHE_CAPACITY);
+    private final Executor callbackExecutor;
+    final DeviceRegistry iotDevices = new DeviceRegistry();
+    private final List<FleetListener> fleetListeners = new CopyOnWriteArrayList<>();
+    private int registrationConcurrency = DEFAULT_REGISTRATION_CONCURRENCY;
+    private final Map<String, PayloadDecoder> payloadDecoders = new ConcurrentHashMap<>();
 
     private final static String DEVELOPER_AUTH_HEADER = "Authorization";
+    private final static int DEFAULT_REGISTRATION_CONCURRENCY = 4;
+    private final static int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private final static int DEFAULT_CACHE_CAPACITY = 256;
+    private final static long DEFAULT_CACHE_TTL = 60 * 1000L;
+    private final static long DEFAULT_CACHE_STALE_TTL = 10 * 60 * 1000L;
+    private final static int DEFAULT_MAX_RETRIES = 3;
+    private final static long DEFAULT_INITIAL_BACKOFF = 500;
+    private final static long DEFAULT_MAX_BACKOFF = 30 * 1000L;
+    private final static double DEFAULT_RETRY_BUDGET_RATIO = 0.2;
+    private final static int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private final static long DEFAULT_CIRCUIT_OPEN_DURATION = 30 * 1000L;
+    private final static long DEFAULT_TOKEN_LIFETIME = 12 * 60 * 60 * 1000L;
+    private final static long DEFAULT_TOKEN_REFRESH_MARGIN = 15 * 60 * 1000L;
+    private final static String TOKEN_STORE_DIRECTORY = "tdgateway_tokens";
+
+    private TokenStore tokenStore;
+    private long tokenLifetime = DEFAULT_TOKEN_LIFETIME;
+    private long tokenRefreshMargin = DEFAULT_TOKEN_REFRESH_MARGIN;
+    private final Random random = new Random();
+    private ScheduledExecutorService scheduler;
+    private volatile Ticker ticker = Ticker.SYSTEM;
+    private MessageStore messageStore;
+    private volatile boolean retainJson;
 
 
     public SensorApiManager(Context context) {
+        this(new VolleyTransport(context, DEFAULT_MAX_CONCURRENT_REQUESTS), new MainThreadExecutor());
         this.context = context;
-        requestQueue = Volley.newRequestQueue(context);
+        tokenStore = new FileTokenStore(new File(context.getFilesDir(), TOKEN_STORE_DIRECTORY));
     }
 
     public SensorApiManager(Context context, String developerAuthToken) {
@@ -89,12 +144,38 @@ public class SensorApiManager {
         this.developerAuthToken = developerAuthToken;
     }
 
+    /**
+     * Creates an API manager that sends its requests through the given transport, e.g. an
+     * {@link UrlConnectionTransport} to run on a plain JVM. No {@link TokenStore} is set, see
+     * {@link #setTokenStore(TokenStore)}.
+     * @param transport The transport that sends the HTTP requests.
+     * @param callbackExecutor The executor every listener is called on. A single thread executor
+     *                         keeps the guarantee of the Android main thread: listeners never run
+     *                         concurrently.
+     */
+    public SensorApiManager(HttpTransport transport, Executor callbackExecutor) {
+        this.transport = transport;
+        this.callbackExecutor = callbackExecutor;
+        this.dispatcher = new RequestDispatcher(this, transport, DEFAULT_MAX_CONCURRENT_REQUESTS);
+        this.retryController = new RetryController(this, dispatcher, DEFAULT_MAX_RETRIES,
+                DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_RETRY_BUDGET_RATIO,
+                DEFAULT_CIRCUIT_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_OPEN_DURATION);
+        responseCache.setTtl(Endpoint.DEVICE_INFORMATION, DEFAULT_CACHE_TTL, DEFAULT_CACHE_STALE_TTL);
+        responseCache.setTtl(Endpoint.CHILD_DEVICES, DEFAULT_CACHE_TTL, DEFAULT_CACHE_STALE_TTL);
+    }
+
+    public SensorApiManager(HttpTransport transport, Executor callbackExecutor,
+                            String developerAuthToken) {
+        this(transport, callbackExecutor);
+        this.developerAuthToken = developerAuthToken;
+    }
+
     public IotDevice newIotDeviceForDeviceApi(String sn, String key,
                                               @Nullable Runnable onDeviceApiAuthenticated,
                                               @Nullable SensorApiManager.SensorApiErrorListener errorListener) {
         final IotDevice device = new IotDevice(null, sn, key, this,
                 onDeviceApiAuthenticated, null, errorListener);
-        iotDevices.add(device);
+        addIotDevices(Collections.singletonList(device));
         return device;
     }
 
@@ -103,7 +184,7 @@ public class SensorApiManager {
                                                  @Nullable SensorApiManager.SensorApiErrorListener errorListener) {
         final IotDevice device = new IotDevice(id, sn, null, this,
                 null, onDeviceInformationAcquired, errorListener);
-        iotDevices.add(device);
+        addIotDevices(Collections.singletonList(device));
         return device;
     }
 
@@ -113,10 +194,358 @@ public class SensorApiManager {
                                   @Nullable SensorApiManager.SensorApiErrorListener errorListener) {
         final IotDevice device = new IotDevice(id, sn, key, this,
                 onDeviceApiAuthenticated, onDeviceInformationAcquired, errorListener);
-        iotDevices.add(device);
+        addIotDevices(Collections.singletonList(device));
         return device;
     }
 
+    /**
+     * Registers a whole fleet of devices at once. Unlike {@link #newIotDevice}, which fires the
+     * authentication and information requests of every device right away, the bootstrap requests
+     * are paced so that no more than {@link #setRegistrationConcurrency(int)} of them are in flight
+     * at any given time. A device is authenticated against the Device API when its serial number
+     * and key are known, and its information is retrieved from the Developer API when a developer
+     * authentication token is set.
+     * @param deviceSpecs The identification of the devices to register.
+     * @param registrationListener Notified of the registration progress and of its completion. Use
+     *                             {@code null} if you're not interested in either.
+     * @return The registered devices, in the same order as {@code deviceSpecs}. They become usable
+     * as their own bootstrap requests complete.
+     */
+    public List<IotDevice> registerDevices(Collection<DeviceSpec> deviceSpecs,
+                                           @Nullable RegistrationListener registrationListener) {
+        List<IotDevice> devices = new ArrayList<>(deviceSpecs.size());
+        for (DeviceSpec spec : deviceSpecs) {
+            devices.add(new IotDevice(spec.getId(), spec.getSerial(), spec.getKey(), this));
+        }
+        addIotDevices(devices);
+        new DeviceBootstrapper(this, devices, registrationConcurrency, registrationListener).start();
+        return devices;
+    }
+
+    /**
+     * Returns every device created by this manager and not removed since, e.g. to poll them with a
+     * {@link FleetPoller}.
+     * @return A read-only live view of the devices, in no particular order, safe to iterate while
+     * devices are being added or removed.
+     */
+    public Collection<IotDevice> getIotDevices() {
+        return iotDevices.all();
+    }
+
+    /**
+     * Finds a device of this manager by its ID, in constant time.
+     * @return The device, or {@code null} if there's none with that ID.
+     */
+    public @Nullable IotDevice findIotDeviceById(String id) {
+        return iotDevices.getById(id);
+    }
+
+    /**
+     * Finds a device of this manager by its serial number, in constant time, e.g. to route
+     * incoming data to it.
+     * @return The device, or {@code null} if there's none with that serial number.
+     */
+    public @Nullable IotDevice findIotDeviceBySerial(String sn) {
+        return iotDevices.getBySerial(sn);
+    }
+
+    /**
+     * Finds a device of this manager by its UID, in constant time.
+     * @return The device, or {@code null} if there's none with that UID.
+     */
+    public @Nullable IotDevice findIotDeviceByUid(String uid) {
+        return iotDevices.getByUid(uid);
+    }
+
+    /**
+     * Returns the devices of this manager behind a gateway, without going through the whole fleet.
+     * Only devices whose information has been retrieved are known to be behind their gateway.
+     * @param gateway The gateway, as returned by {@link IotDevice#getGateway()}.
+     * @return A read-only view of the devices, in no particular order.
+     */
+    public Collection<IotDevice> getGatewayChildren(String gateway) {
+        return iotDevices.getChildren(gateway);
+    }
+
+    /**
+     * Removes a device from this manager: it stops being polled, and its authentication token is no
+     * longer refreshed. The device itself can still be used.
+     * @param device The device to remove.
+     * @return Whether the device belonged to this manager.
+     */
+    public boolean removeIotDevice(IotDevice device) {
+        if (!iotDevices.remove(device)) return false;
+        device.cancelAuthTokenRefresh();
+        for (FleetListener fleetListener : fleetListeners) fleetListener.onIotDeviceRemoved(device);
+        return true;
+    }
+
+    private void addIotDevices(Collection<IotDevice> devices) {
+        for (IotDevice device : devices) iotDevices.add(device);
+        for (FleetListener fleetListener : fleetListeners) fleetListener.onIotDevicesAdded(devices);
+    }
+
+    /**
+     * Called when the identifiers of a device may have changed, i.e. its information was retrieved.
+     */
+    void onIotDeviceInformationChanged(IotDevice device) {
+        iotDevices.reindex(device);
+    }
+
+    void addFleetListener(FleetListener fleetListener) {
+        fleetListeners.add(fleetListener);
+    }
+
+    void removeFleetListener(FleetListener fleetListener) {
+        fleetListeners.remove(fleetListener);
+    }
+
+    /**
+     * Registers the decoder of the payloads of a device category. See
+     * {@link IotDevice#getPayloadDecoder()}.
+     * @param category The category, as returned by {@link IotDevice#getCategory()}.
+     * @param decoder The decoder, or {@code null} to unregister the category's decoder.
+     */
+    public void registerPayloadDecoder(String category, @Nullable PayloadDecoder decoder) {
+        if (decoder == null) payloadDecoders.remove(category);
+        else payloadDecoders.put(category, decoder);
+    }
+
+    /**
+     * Returns the decoder of the payloads of a device category.
+     * @return The decoder, or {@code null} if none was registered for the category.
+     */
+    public @Nullable PayloadDecoder getPayloadDecoder(@Nullable String category) {
+        return category == null ? null : payloadDecoders.get(category);
+    }
+
+    /**
+     * Sets the maximum amount of bootstrap requests that {@link #registerDevices} keeps in flight.
+     * @param registrationConcurrency The maximum amount of concurrent requests, at least 1.
+     */
+    public void setRegistrationConcurrency(int registrationConcurrency) {
+        if (registrationConcurrency < 1) throw new IllegalArgumentException();
+        this.registrationConcurrency = registrationConcurrency;
+    }
+
+    /**
+     * Sets the maximum amount of requests handed to the transport at once, 4 by default. The others
+     * wait in the manager's queue, in the lane of their {@link Priority}. Bulk reads never take the
+     * last free slot, it is kept for more urgent requests. Raising it only helps if the transport
+     * can send that many requests at once too, e.g. a {@link VolleyTransport} created with a
+     * larger thread pool.
+     * @param maxConcurrentRequests The maximum amount of requests in flight, at least 1.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1) throw new IllegalArgumentException();
+        dispatcher.setMaxConcurrentRequests(maxConcurrentRequests);
+    }
+
+    /**
+     * Limits the rate of the requests to an endpoint with a token bucket. Requests over the limit
+     * are queued until they may be sent, without holding back the requests to other endpoints.
+     * @param endpoint The endpoint to limit.
+     * @param requestsPerSecond The sustained rate, or 0 to remove the limit.
+     * @param burst The amount of requests that can be sent at once after a quiet period, at least
+     *              1.
+     */
+    public void setRateLimit(Endpoint endpoint, double requestsPerSecond, int burst) {
+        if (requestsPerSecond > 0 && burst < 1) throw new IllegalArgumentException();
+        dispatcher.setRateLimit(endpoint, requestsPerSecond, burst);
+    }
+
+    /**
+     * Sets whether identical GET requests (same URL, same authentication) share a single network
+     * call while one of them is queued or in flight. Enabled by default. Every caller still gets its
+     * own listeners called, with its own copy of the parsed response.
+     * @param coalescingRequests Whether to coalesce identical requests.
+     */
+    public void setRequestCoalescing(boolean coalescingRequests) {
+        this.coalescingRequests = coalescingRequests;
+    }
+
+    /**
+     * Sets how requests that fail for a transient reason are retried. By default, a request is
+     * retried up to 3 times, the n-th retry waiting a random time between 0 and
+     * {@code 500ms * 2^n}, capped at 30 seconds. The random delays keep a fleet of devices that
+     * failed at once from retrying at once. Only reads are retried after a connection error or a
+     * 5xx, since a command may have been carried out already.
+     * @param maxRetries The maximum amount of retries of a request, or 0 to never retry.
+     * @param initialBackoff The maximum delay of the first retry, in milliseconds.
+     * @param maxBackoff The maximum delay of any retry, in milliseconds. A request whose
+     *                   {@code Retry-After} asks for more isn't retried.
+     */
+    public void setRetryPolicy(int maxRetries, long initialBackoff, long maxBackoff) {
+        if (maxRetries < 0 || initialBackoff < 0 || maxBackoff < initialBackoff)
+            throw new IllegalArgumentException();
+        retryController.setRetryPolicy(maxRetries, initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Sets the retry budget: every request sent adds this fraction of a retry to the budget, and
+     * every retry takes one, so that retries never add more than this fraction to the load during
+     * an outage. Up to 10 retries can be saved up. 0.2 by default.
+     * @param retryBudgetRatio The amount of retries allowed per request sent.
+     */
+    public void setRetryBudget(double retryBudgetRatio) {
+        if (retryBudgetRatio < 0) throw new IllegalArgumentException();
+        retryController.setRetryBudgetRatio(retryBudgetRatio);
+    }
+
+    /**
+     * Sets the circuit breaker of the endpoints. After {@code failureThreshold} consecutive
+     * connection errors or 5xx on an endpoint, its requests fail right away with a
+     * {@link SensorApiError.Kind#CIRCUIT_OPEN} error for up to {@code openDuration}. A single
+     * request is then sent to probe the endpoint: if it succeeds, requests go through again. By
+     * default, circuits open after 5 failures, for up to 30 seconds.
+     * @param failureThreshold The amount of consecutive failures that opens a circuit, or 0 to
+     *                         disable the circuit breakers.
+     * @param openDuration The maximum time a circuit stays open before probing, in milliseconds.
+     */
+    public void setCircuitBreaker(int failureThreshold, long openDuration) {
+        if (failureThreshold < 0 || openDuration < 0) throw new IllegalArgumentException();
+        retryController.setCircuitBreaker(failureThreshold, openDuration);
+    }
+
+    /**
+     * Returns whether the requests to an endpoint currently fail right away, because it failed too
+     * often lately.
+     * @param endpoint The endpoint.
+     * @return Whether the circuit of the endpoint is open.
+     */
+    public boolean isCircuitOpen(Endpoint endpoint) {
+        return retryController.isCircuitOpen(endpoint);
+    }
+
+    /**
+     * Sets how long the responses of an endpoint are kept in the in-memory cache. By default, the
+     * device information and the child devices are cached for a minute, and served for 10 more
+     * minutes while they're revalidated in the background. Revalidations are conditional when the
+     * server sends an {@code ETag} or a {@code Last-Modified} date, so unchanged responses aren't
+     * downloaded again. A command sent to the API, e.g. a new bidir value, drops the cached
+     * responses of the device it targets.
+     * @param endpoint The endpoint, whose GET requests are cached.
+     * @param ttl How long a response is served as is, in milliseconds, or 0 to stop caching the
+     *            endpoint.
+     * @param staleTtl How long after that a response is still served while being revalidated, in
+     *                 milliseconds, or 0 to always wait for the revalidation.
+     */
+    public void setCacheTtl(Endpoint endpoint, long ttl, long staleTtl) {
+        if (staleTtl < 0) throw new IllegalArgumentException();
+        responseCache.setTtl(endpoint, ttl, staleTtl);
+    }
+
+    /**
+     * Sets the maximum amount of responses kept in the cache, 256 by default. The least recently
+     * used ones are dropped first.
+     * @param cacheCapacity The maximum amount of cached responses, at least 1.
+     */
+    public void setCacheCapacity(int cacheCapacity) {
+        if (cacheCapacity < 1) throw new IllegalArgumentException();
+        responseCache.setCapacity(cacheCapacity);
+    }
+
+    /**
+     * Drops every cached response, so that the next reads go to the network.
+     */
+    public void clearCache() {
+        responseCache.clear();
+    }
+
+    /**
+     * Returns the amount of requests answered with a fresh cached response.
+     */
+    public long getCacheHitCount() {
+        return responseCache.getHitCount();
+    }
+
+    /**
+     * Returns the amount of requests answered with a stale cached response, which was revalidated
+     * in the background.
+     */
+    public long getCacheStaleHitCount() {
+        return responseCache.getStaleHitCount();
+    }
+
+    /**
+     * Returns the amount of requests to a cached endpoint that had to wait for the network.
+     */
+    public long getCacheMissCount() {
+        return responseCache.getMissCount();
+    }
+
+    /**
+     * Returns the amount of requests waiting to be sent in a priority lane. A lane whose depth keeps
+     * growing is starved by the lanes above it, or by its endpoints' rate limits.
+     * @param priority The lane.
+     * @return The amount of queued requests, not counting the ones in flight.
+     */
+    public int getQueueDepth(Priority priority) {
+        return dispatcher.getQueueDepth(priority);
+    }
+
+    /**
+     * Returns the amount of requests handed to the transport and not completed yet.
+     * @return The amount of requests in flight.
+     */
+    public int getInFlightCount() {
+        return dispatcher.getInFlightCount();
+    }
+
+    /**
+     * Sets the store where Device API authentication tokens are persisted. By default, tokens are
+     * kept in a {@link FileTokenStore} inside the application's files directory.
+     * @param tokenStore The token store, or {@code null} to authenticate devices on every start.
+     */
+    public void setTokenStore(@Nullable TokenStore tokenStore) {
+        this.tokenStore = tokenStore;
+    }
+
+    /**
+     * Sets how long a Device API authentication token is considered valid after being obtained.
+     * @param tokenLifetime The token lifetime, in milliseconds.
+     */
+    public void setTokenLifetime(long tokenLifetime) {
+        this.tokenLifetime = tokenLifetime;
+    }
+
+    /**
+     * Sets how long before its expiration a token is refreshed in the background. Refreshes are
+     * spread over this margin so that a fleet authenticated at once doesn't refresh at once too.
+     * @param tokenRefreshMargin The refresh margin, in milliseconds.
+     */
+    public void setTokenRefreshMargin(long tokenRefreshMargin) {
+        this.tokenRefreshMargin = tokenRefreshMargin;
+    }
+
+    /**
+     * Sets the local store that history calls are answered from whenever it covers the requested
+     * page. Pages fetched from the network are written to it.
+     * @param messageStore The message store, or {@code null} to always query the network.
+     */
+    public void setMessageStore(@Nullable MessageStore messageStore) {
+        this.messageStore = messageStore;
+    }
+
+    public @Nullable MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Sets whether received messages keep the JSON object they were parsed from, available through
+     * {@link IotMessage#getJsonInformation()} and {@link RawMessage#getJsonInformation()}. Disabled
+     * by default: the JSON trees take much more memory than the messages themselves, and building
+     * them rules out the streaming parser.
+     * @param retainJson Whether to keep the JSON objects.
+     */
+    public void setRetainJson(boolean retainJson) {
+        this.retainJson = retainJson;
+    }
+
+    public boolean isRetainingJson() {
+        return retainJson;
+    }
+
     public void setDeveloperAuthToken(String developerAuthToken) {
         this.developerAuthToken = developerAuthToken;
     }
@@ -124,24 +553,113 @@ public class SensorApiManager {
         return developerAuthToken != null;
     }
 
-    void performRequest(Request request) {
-        requestQueue.add(request);
+    /**
+     * Stops the transport and the background scheduler. Requests in flight may never complete.
+     */
+    public void shutdown() {
+        transport.shutdown();
+        synchronized (this) {
+            if (scheduler != null) scheduler.shutdown();
+        }
+    }
+
+    void performRequest(ApiRequest<?> request) {
+        request.setDelivery(callbackExecutor);
+        if (responseCache.handle(request)) return;
+        if (coalescingRequests && coalescer.join(request)) return;
+        retryController.send(request);
+    }
+
+    /**
+     * Runs an action on the thread responses are delivered on.
+     */
+    void deliver(Runnable action) {
+        callbackExecutor.execute(action);
+    }
+
+    /**
+     * Runs an action off the thread responses are delivered on, e.g. disk writes.
+     */
+    void runInBackground(Runnable action) {
+        scheduler().execute(action);
+    }
+
+    /**
+     * Replaces the executor background work and delayed attempts run on, e.g. by a test.
+     */
+    synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the current time that rate limits, cached responses and circuits are timed with.
+     * @return The time, in nanoseconds, comparable with {@link System#nanoTime()} by default.
+     */
+    long nanoTime() {
+        return ticker.nanoTime();
+    }
+
+    /**
+     * Replaces the clock of {@link #nanoTime()}, e.g. by a test.
+     */
+    void setTicker(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TDGateway-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    @Nullable TokenStore.Entry getStoredAuthToken(String sn) {
+        TokenStore store = tokenStore;
+        if (store == null) return null;
+        TokenStore.Entry entry = store.get(sn);
+        if (entry == null) return null;
+        if (entry.isExpired(System.currentTimeMillis())) {
+            store.remove(sn);
+            return null;
+        }
+        return entry;
+    }
+
+    TokenStore.Entry storeAuthToken(String sn, String token) {
+        TokenStore.Entry entry = new TokenStore.Entry(token, System.currentTimeMillis() + tokenLifetime);
+        TokenStore store = tokenStore;
+        if (store != null) store.put(sn, entry);
+        return entry;
+    }
+
+    void evictAuthToken(String sn) {
+        TokenStore store = tokenStore;
+        if (store != null) store.remove(sn);
+    }
+
+    ScheduledFuture<?> scheduleTokenRefresh(Runnable refresh, long expirationTime) {
+        double spread;
+        synchronized (random) { spread = 0.5 + random.nextDouble() / 2; }
+        long delay = expirationTime - (long) (tokenRefreshMargin * spread) - System.currentTimeMillis();
+        return scheduler().schedule(refresh, Math.max(0, delay), TimeUnit.MILLISECONDS);
     }
 
     void requestIotDeviceInformation(String id, String sn,
-            final IotDevice.IotInformationResponseReceivedListener informationReceived)
+            final IotDevice.IotInformationResponseReceivedListener informationReceived,
+            @Nullable final SensorApiErrorListener errorListener)
             throws CannotUseDeveloperApiException {
 
         if (developerAuthToken == null) throw new CannotUseDeveloperApiException();
 
-        String[] params = {id, sn};
-        String endpoint;
-        try {
-            endpoint = Util.populateUrlWithParams(DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT,
-                    DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT_PARAMS, params);
-        } catch (Util.InvalidParamsAndValuesLengthException e) {
-            return;
-        }
+        String endpoint = DEVELOPER_GET_DEVICE_INFORMATION_TEMPLATE.builder()
+                .param(id).param(sn).build();
 
         SensorApiManager.AuthenticatedDeveloperJsonObjectRequest request =
                 new AuthenticatedDeveloperJsonObjectRequest(Request.Method.GET,
@@ -154,37 +672,171 @@ public class SensorApiManager {
                 }, new Response.ErrorListener() {
                     @Override
                     public void onErrorResponse(VolleyError error) {
-
+                        if (errorListener != null)
+                            errorListener.onError(SensorApiError.fromVolleyError(error));
                     }
                 });
         performRequest(request);
     }
 
 
-    class AuthenticatedDeveloperJsonObjectRequest extends JsonObjectRequest {
+    class AuthenticatedDeveloperJsonObjectRequest extends ApiRequest<JSONObject> {
 
         private final Map<String, String> headers = new HashMap<>();
 
         AuthenticatedDeveloperJsonObjectRequest(int method, String url,
                                       Response.Listener<JSONObject> listener,
                                       Response.ErrorListener errorListener) {
-            super(method, url, null, listener, errorListener);
+            super(method, url, listener, errorListener);
             headers.put(DEVELOPER_AUTH_HEADER, "Basic " + developerAuthToken);
         }
 
         @Override
-        public Map<String, String> getHeaders() throws AuthFailureError {
+        JSONObject parseResponse(NetworkResponse response) throws ParseError {
+            try {
+                return new JSONObject(new String(response.data,
+                        HttpHeaderParser.parseCharset(response.headers, "utf-8")));
+            } catch (UnsupportedEncodingException e) {
+                throw new ParseError(e);
+            } catch (JSONException je) {
+                throw new ParseError(je);
+            }
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
             return headers;
         }
 
     }
 
+    /**
+     * Posts to the Android main thread.
+     */
+    private static class MainThreadExecutor implements Executor {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            handler.post(runnable);
+        }
+    }
+
+    /**
+     * The lanes requests are queued in, from the most to the least urgent. See
+     * {@link #getQueueDepth(Priority)}.
+     */
+    public enum Priority {
+        /** Authentication and commands that change a device, e.g. its bidir value. */
+        CONTROL,
+        /** Reads of the current state, e.g. the latest messages or the device information. */
+        NORMAL,
+        /** Multi-page history reads and backfills. */
+        BULK
+    }
+
+    /**
+     * The endpoints of the Sensor API, for {@link #setRateLimit(Endpoint, double, int)},
+     * {@link #setCacheTtl(Endpoint, long, long)} and {@link #isCircuitOpen(Endpoint)}.
+     */
+    public enum Endpoint {
+        DEVICE_AUTHENTICATION(DEVICE_AUTHENTICATION_ENDPOINT, Priority.CONTROL),
+        MESSAGES_HISTORY(DEVICE_MESSAGES_HISTORY_ENDPOINT, Priority.BULK),
+        LATEST_MESSAGES(DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, Priority.NORMAL),
+        RAW_MESSAGES_HISTORY(DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT, Priority.BULK),
+        CHILD_DEVICES(DEVICE_CHILD_DEVICES_ENDPOINT, Priority.NORMAL),
+        CLEAR_MESSAGES(DEVICE_CLEAR_MESSAGES_ENDPOINT, Priority.CONTROL),
+        /** Both the status and the "active" flag are set through this endpoint. */
+        DEVICE_STATUS(DEVICE_CHANGE_STATUS_ENDPOINT, Priority.CONTROL),
+        MONITORING_FLAG(DEVICE_SET_MONITORING_FLAG_ENDPOINT, Priority.CONTROL),
+        BIDIR_VALUE(DEVICE_SET_BIDIR_VALUE_ENDPOINT, Priority.CONTROL),
+        DEVICE_INFORMATION(DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT, Priority.NORMAL);
+
+        private static final Map<String, Endpoint> BY_URL = new HashMap<>();
+        static {
+            for (Endpoint endpoint : values()) BY_URL.put(endpoint.url, endpoint);
+        }
+
+        private final String url;
+        private final Priority priority;
+
+        Endpoint(String url, Priority priority) {
+            this.url = withoutQuery(url);
+            this.priority = priority;
+        }
+
+        /**
+         * Returns the lane the requests to this endpoint are queued in.
+         * @return The priority of the requests to this endpoint.
+         */
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the endpoint a request URL belongs to, or {@code null} if it's none of them.
+         */
+        static @Nullable Endpoint of(String url) {
+            return BY_URL.get(withoutQuery(url));
+        }
+
+        private static String withoutQuery(String url) {
+            int query = url.indexOf('?');
+            return query < 0 ? url : url.substring(0, query);
+        }
+    }
+
     public static class CannotUseDeveloperApiException extends Exception {}
     public static class CannotUseDeviceApiException extends Exception {}
     public static class SensorApiException extends Exception {}
 
+    /**
+     * A source of monotonic timestamps, see {@link #nanoTime()}.
+     */
+    interface Ticker {
+
+        Ticker SYSTEM = new Ticker() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        long nanoTime();
+    }
+
+    /**
+     * Notified when devices are added to or removed from the manager.
+     */
+    interface FleetListener {
+        void onIotDevicesAdded(Collection<IotDevice> devices);
+        void onIotDeviceRemoved(IotDevice device);
+    }
+
     public interface SensorApiErrorListener {
-        void onError(String details);
+        /**
+         * Called when a call to the API fails, after any retries.
+         * @param error What went wrong.
+         */
+        void onError(SensorApiError error);
+    }
+
+    public interface RegistrationListener {
+        /**
+         * Called every time a device has finished its bootstrap, successfully or not.
+         * @param completed The amount of devices that have finished so far.
+         * @param total The total amount of devices being registered.
+         */
+        void onProgress(int completed, int total);
+
+        /**
+         * Called once, when every device has finished its bootstrap.
+         * @param devices All the registered devices.
+         * @param failed The devices that couldn't be authenticated or whose information couldn't
+         *               be retrieved.
+         */
+        void onRegistrationComplete(List<IotDevice> devices, List<IotDevice> failed);
     }
 
 }
@@ -0,0 +1,189 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.text.ParseException;
+import java.util.Date;
+
+
+/**
+ * Parses the dates the Sensor API returns in the {@code firstseen} and {@code lastseen} fields of a
+ * device, e.g. {@code "Apr 5, 2017 3:27:26 PM"}. The API doesn't include the time zone, so a fixed
+ * UTC offset is applied.
+ *
+ * <p>Unlike {@link java.text.SimpleDateFormat}, instances are immutable and can be shared between
+ * threads. The epoch time is computed directly from the fields, without a {@link java.util.Calendar}
+ * or any intermediate strings.</p>
+ */
+final class SensorDateParser {
+
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug",
+            "sep", "oct", "nov", "dec"};
+    private static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+    /**
+     * A parser for the offset the Sensor API reports its dates in.
+     */
+    static final SensorDateParser DEFAULT = new SensorDateParser(SensorApiManager.GMT_TIMEZONE);
+
+    private final long offsetMillis;
+
+    /**
+     * @param gmtOffsetHours The offset from UTC of the parsed dates, in hours.
+     */
+    SensorDateParser(int gmtOffsetHours) {
+        this.offsetMillis = gmtOffsetHours * 3600L * 1000;
+    }
+
+    /**
+     * Parses a date.
+     * @param text The date, in the {@code "MMM d, yyyy h:mm:ss a"} format.
+     * @return The parsed date.
+     * @throws ParseException When {@code text} isn't a valid date.
+     */
+    Date parse(String text) throws ParseException {
+        return new Date(parseMillis(text));
+    }
+
+    /**
+     * Parses a date, returning {@code null} instead of throwing when it isn't valid.
+     */
+    @Nullable Date parseOrNull(@Nullable String text) {
+        if (text == null) return null;
+        try {
+            return parse(text);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a date into milliseconds since the epoch.
+     * @param text The date, in the {@code "MMM d, yyyy h:mm:ss a"} format.
+     * @return The parsed time.
+     * @throws ParseException When {@code text} isn't a valid date.
+     */
+    long parseMillis(String text) throws ParseException {
+        Cursor cursor = new Cursor(text);
+        int month = cursor.month();
+        cursor.skipSpaces();
+        int day = cursor.number(1, 2);
+        cursor.expect(',');
+        cursor.skipSpaces();
+        int year = cursor.number(4, 4);
+        cursor.skipSpaces();
+        int hour = cursor.number(1, 2);
+        cursor.expect(':');
+        int minute = cursor.number(2, 2);
+        cursor.expect(':');
+        int second = cursor.number(2, 2);
+        cursor.skipSpaces();
+        boolean pm = cursor.meridiem();
+        cursor.skipSpaces();
+        cursor.end();
+
+        if (day < 1 || day > daysInMonth(year, month)) throw cursor.error("Invalid day");
+        if (hour > 12 || minute > 59 || second > 59) throw cursor.error("Invalid time");
+        // 12 AM is midnight and 12 PM is noon.
+        int hourOfDay = (hour % 12) + (pm ? 12 : 0);
+
+        return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                + ((hourOfDay * 60L + minute) * 60 + second) * 1000 - offsetMillis;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return isLeapYear(year) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * Returns the days from 1970-01-01 to a date of the proleptic Gregorian calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // Count years from March, so that the leap day is the last day of the year.
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * The read position within the parsed text.
+     */
+    private static class Cursor {
+
+        private final String text;
+        private int pos;
+
+        Cursor(String text) {
+            this.text = text;
+        }
+
+        int month() throws ParseException {
+            int start = pos;
+            while (pos < text.length() && Character.isLetter(text.charAt(pos))) pos++;
+            // Both abbreviated and full month names are accepted, like SimpleDateFormat does.
+            if (pos - start >= 3) {
+                for (int i = 0; i < MONTHS.length; i++) {
+                    if (text.regionMatches(true, start, MONTHS[i], 0, 3)) return i + 1;
+                }
+            }
+            pos = start;
+            throw error("Invalid month");
+        }
+
+        int number(int minDigits, int maxDigits) throws ParseException {
+            int value = 0, digits = 0;
+            while (pos < text.length() && digits < maxDigits) {
+                char c = text.charAt(pos);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                pos++;
+                digits++;
+            }
+            if (digits < minDigits) throw error("Expected a number");
+            return value;
+        }
+
+        boolean meridiem() throws ParseException {
+            if (pos + 2 <= text.length()) {
+                if (text.regionMatches(true, pos, "AM", 0, 2)) {
+                    pos += 2;
+                    return false;
+                }
+                if (text.regionMatches(true, pos, "PM", 0, 2)) {
+                    pos += 2;
+                    return true;
+                }
+            }
+            throw error("Expected AM or PM");
+        }
+
+        void expect(char c) throws ParseException {
+            if (pos >= text.length() || text.charAt(pos) != c) throw error("Expected '" + c + "'");
+            pos++;
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && text.charAt(pos) == ' ') pos++;
+        }
+
+        void end() throws ParseException {
+            if (pos != text.length()) throw error("Unexpected trailing characters");
+        }
+
+        ParseException error(String message) {
+            return new ParseException(message + ": \"" + text + "\"", pos);
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The result of an asynchronous call to the Sensor API, returned by the {@code *Async} methods of
+ * {@link IotDevice}. Besides the blocking {@link Future} methods, callbacks can be added, and
+ * futures can be chained and joined without nesting listeners, e.g. to query a whole fleet of
+ * devices at once and wait for all of them with {@link #allAsList(Collection)}.
+ *
+ * <p>Callbacks added before the result is known are called on the thread the result is delivered
+ * on, i.e. the callback executor of the {@link SensorApiManager} (the main thread, on Android).
+ * Callbacks added afterwards are called right away, on the thread that adds them. For the same
+ * reason, {@link #get()} must never be called on the callback executor: it would wait forever.</p>
+ *
+ * <p>Requests already sent can't be cancelled: {@link #cancel(boolean)} always fails.</p>
+ * @param <T> The type of the result.
+ */
+public class SensorFuture<T> implements Future<T> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Callback<? super T>> callbacks = new ArrayList<>(1);
+    private T value;
+    private SensorApiError error;
+
+    SensorFuture() {}
+
+    /**
+     * Returns a future that already has a result.
+     */
+    public static <T> SensorFuture<T> immediate(@Nullable T value) {
+        SensorFuture<T> future = new SensorFuture<>();
+        future.set(value);
+        return future;
+    }
+
+    /**
+     * Returns a future that already failed.
+     */
+    public static <T> SensorFuture<T> immediateFailure(SensorApiError error) {
+        SensorFuture<T> future = new SensorFuture<>();
+        future.setError(error);
+        return future;
+    }
+
+    /**
+     * Joins futures: the returned one succeeds with all their results, in the same order, once they
+     * have all succeeded, or fails as soon as any of them fails.
+     * @param futures The futures to join.
+     * @return A future of the list of results.
+     */
+    public static <T> SensorFuture<List<T>> allAsList(Collection<? extends SensorFuture<? extends T>> futures) {
+        return join(futures, false);
+    }
+
+    /**
+     * Joins futures like {@link #allAsList(Collection)}, but never fails: the result of a future
+     * that failed is {@code null}. Useful to query many devices when some of them may be offline.
+     * @param futures The futures to join.
+     * @return A future of the list of results.
+     */
+    public static <T> SensorFuture<List<T>> successfulAsList(Collection<? extends SensorFuture<? extends T>> futures) {
+        return join(futures, true);
+    }
+
+    private static <T> SensorFuture<List<T>> join(Collection<? extends SensorFuture<? extends T>> futures,
+                                                  final boolean ignoreFailures) {
+        final SensorFuture<List<T>> joined = new SensorFuture<>();
+        @SuppressWarnings("unchecked")
+        final T[] results = (T[]) new Object[futures.size()];
+        if (results.length == 0) {
+            joined.set(new ArrayList<T>(0));
+            return joined;
+        }
+        final AtomicInteger remaining = new AtomicInteger(results.length);
+        int index = 0;
+        for (SensorFuture<? extends T> future : futures) {
+            final int position = index++;
+            future.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    results[position] = result;
+                    if (remaining.decrementAndGet() == 0) joined.set(Arrays.asList(results));
+                }
+
+                @Override
+                public void onFailure(SensorApiError error) {
+                    if (!ignoreFailures) joined.setError(error);
+                    else if (remaining.decrementAndGet() == 0) joined.set(Arrays.asList(results));
+                }
+            });
+        }
+        return joined;
+    }
+
+    /**
+     * Adds a callback, called once with the result or the error.
+     * @param callback The callback.
+     * @return This future.
+     */
+    public SensorFuture<T> addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        deliver(callback);
+        return this;
+    }
+
+    /**
+     * Returns a future of the result of a function applied to the result of this one. If this one
+     * fails, the returned one fails with the same error.
+     * @param function The function, which must not throw.
+     * @return The future of the transformed result.
+     */
+    public <R> SensorFuture<R> transform(final Function<? super T, ? extends R> function) {
+        final SensorFuture<R> transformed = new SensorFuture<>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                transformed.set(function.apply(result));
+            }
+
+            @Override
+            public void onFailure(SensorApiError error) {
+                transformed.setError(error);
+            }
+        });
+        return transformed;
+    }
+
+    /**
+     * Chains another asynchronous call after this one, e.g. a query after the authentication of a
+     * device. If this one fails, the call isn't made and the returned future fails with the same
+     * error.
+     * @param function Makes the next call with the result of this one.
+     * @return The future of the result of the next call.
+     */
+    public <R> SensorFuture<R> then(final AsyncFunction<? super T, R> function) {
+        final SensorFuture<R> chained = new SensorFuture<>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                function.apply(result).addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R result) {
+                        chained.set(result);
+                    }
+
+                    @Override
+                    public void onFailure(SensorApiError error) {
+                        chained.setError(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(SensorApiError error) {
+                chained.setError(error);
+            }
+        });
+        return chained;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the result.
+     * @throws ExecutionException When the call failed. Its cause is the {@link SensorApiError}.
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException();
+        return result();
+    }
+
+    /**
+     * Completes this future with a result. Only the first result or error counts.
+     */
+    void set(@Nullable T value) {
+        complete(value, null);
+    }
+
+    /**
+     * Completes this future with an error. Only the first result or error counts.
+     */
+    void setError(SensorApiError error) {
+        complete(null, error);
+    }
+
+    /**
+     * Returns an action that completes this future with a result, for the operations that report
+     * their success with a {@link Runnable}.
+     */
+    Runnable setter(@Nullable final T value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                set(value);
+            }
+        };
+    }
+
+    /**
+     * Returns a listener that completes this future with the error it receives.
+     */
+    SensorApiManager.SensorApiErrorListener errorListener() {
+        return new SensorApiManager.SensorApiErrorListener() {
+            @Override
+            public void onError(SensorApiError error) {
+                setError(error);
+            }
+        };
+    }
+
+    private void complete(@Nullable T value, @Nullable SensorApiError error) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (callbacks == null) return;
+            this.value = value;
+            this.error = error;
+            pending = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (Callback<? super T> callback : pending) deliver(callback);
+    }
+
+    private void deliver(Callback<? super T> callback) {
+        if (error != null) callback.onFailure(error);
+        else callback.onSuccess(value);
+    }
+
+    private T result() throws ExecutionException {
+        if (error != null) throw new ExecutionException(error);
+        return value;
+    }
+
+    public interface Callback<T> {
+        void onSuccess(@Nullable T result);
+        void onFailure(SensorApiError error);
+    }
+
+    public interface Function<T, R> {
+        R apply(@Nullable T input);
+    }
+
+    public interface AsyncFunction<T, R> {
+        SensorFuture<R> apply(@Nullable T input);
+    }
+
+}
@@ -4,7 +4,6 @@ import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
 import com.android.volley.Response;
 import com.android.volley.toolbox.HttpHeaderParser;
-import com.android.volley.toolbox.JsonRequest;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -14,31 +13,40 @@ import java.io.UnsupportedEncodingException;
 
 
 /**
- * A special {@link com.android.volley.Request} class for the Telecom Design Sensor API, because
- * those fools can't decide whether returning JSON objects or arrays on an API call.
+ * A special {@link ApiRequest} class for the Telecom Design Sensor API, because those fools can't
+ * decide whether returning JSON objects or arrays on an API call.
  */
-class SensorJsonRequest extends JsonRequest<JSONArray> {
+class SensorJsonRequest extends ApiRequest<JSONArray> {
+
+    private static final String PROTOCOL_CHARSET = "utf-8";
 
     public SensorJsonRequest(int method, String url, Response.Listener<JSONArray> listener,
                              Response.ErrorListener errorListener) {
-        super(method, url, null, listener, errorListener);
+        super(method, url, listener, errorListener);
     }
 
 
     @Override
-    protected Response<JSONArray> parseNetworkResponse(NetworkResponse response) {
+    JSONArray parseResponse(NetworkResponse response) throws ParseError {
         try {
-            String jsonString = new String(response.data,
-                    HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET));
-            if (jsonString.startsWith("[")) return Response.success(new JSONArray(jsonString),
-                    HttpHeaderParser.parseCacheHeaders(response));
-            else return Response.success(new JSONObject(jsonString).getJSONArray("items"),
-                    HttpHeaderParser.parseCacheHeaders(response));
+            return parseJsonArray(response);
         } catch (UnsupportedEncodingException e) {
-            return Response.error(new ParseError(e));
+            throw new ParseError(e);
         } catch (JSONException je) {
-            return Response.error(new ParseError(je));
+            throw new ParseError(je);
         }
     }
 
+    /**
+     * Decodes a response body that is either a bare JSON array or an object holding the array
+     * under its {@code items} key.
+     */
+    static JSONArray parseJsonArray(NetworkResponse response)
+            throws UnsupportedEncodingException, JSONException {
+        String jsonString = new String(response.data,
+                HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET));
+        if (jsonString.startsWith("[")) return new JSONArray(jsonString);
+        else return new JSONObject(jsonString).getJSONArray("items");
+    }
+
 }
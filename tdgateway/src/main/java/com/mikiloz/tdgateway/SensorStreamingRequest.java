@@ -0,0 +1,157 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An {@link ApiRequest} for the Telecom Design Sensor API that decodes the returned array (bare, or
+ * wrapped in an object under its {@code items} key) straight from the response bytes into a page
+ * of items, in a single pass. If the body can't be tokenized, the request falls back to the
+ * {@code org.json} tree used by {@link SensorJsonRequest}.
+ * @param <P> The type of the page the items of the array are collected into.
+ */
+class SensorStreamingRequest<P> extends ApiRequest<P> {
+
+    private static final String PROTOCOL_CHARSET = "utf-8";
+
+    private final PageParser<P> pageParser;
+    private final boolean retainJson;
+
+    /**
+     * @param retainJson Whether the parsed items should keep the JSON object they were parsed
+     *                   from. Building those objects requires the {@code org.json} tree, so the
+     *                   streaming path is skipped.
+     */
+    SensorStreamingRequest(int method, String url, PageParser<P> pageParser, boolean retainJson,
+                           Response.Listener<P> listener,
+                           Response.ErrorListener errorListener) {
+        super(method, url, listener, errorListener);
+        this.pageParser = pageParser;
+        this.retainJson = retainJson;
+    }
+
+    @Override
+    P parseResponse(NetworkResponse response) throws ParseError {
+        String charset = HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET);
+        if (!retainJson && isUtf8Compatible(charset)) {
+            try {
+                return parseItems(response.data, pageParser);
+            } catch (JsonTokenizer.MalformedJsonException ignored) {}
+        }
+
+        try {
+            JSONArray array = SensorJsonRequest.parseJsonArray(response);
+            P page = pageParser.newPage(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                pageParser.parse(array.getJSONObject(i), retainJson, page);
+            }
+            return page;
+        } catch (UnsupportedEncodingException e) {
+            throw new ParseError(e);
+        } catch (JSONException je) {
+            throw new ParseError(je);
+        }
+    }
+
+    /**
+     * Tokenizes a response body that is either a bare JSON array or an object holding the array
+     * under its {@code items} key, handing every element to {@code pageParser}.
+     */
+    static <P> P parseItems(byte[] data, PageParser<P> pageParser)
+            throws JsonTokenizer.MalformedJsonException {
+
+        JsonTokenizer tokenizer = new JsonTokenizer(data);
+        JsonTokenizer.Token token = tokenizer.peek();
+        if (token == JsonTokenizer.Token.BEGIN_ARRAY) {
+            return readArray(tokenizer, pageParser);
+        } else if (token == JsonTokenizer.Token.BEGIN_OBJECT) {
+            P page = null;
+            tokenizer.beginObject();
+            while (tokenizer.hasNext()) {
+                String name = tokenizer.nextName();
+                if (page == null && name.equals("items")
+                        && tokenizer.peek() == JsonTokenizer.Token.BEGIN_ARRAY) {
+                    page = readArray(tokenizer, pageParser);
+                } else {
+                    tokenizer.skipValue();
+                }
+            }
+            tokenizer.endObject();
+            if (page != null) return page;
+        }
+        throw new JsonTokenizer.MalformedJsonException("No items array in response");
+    }
+
+    private static <P> P readArray(JsonTokenizer tokenizer, PageParser<P> pageParser)
+            throws JsonTokenizer.MalformedJsonException {
+        P page = pageParser.newPage(0);
+        tokenizer.beginArray();
+        while (tokenizer.hasNext()) pageParser.parse(tokenizer, page);
+        tokenizer.endArray();
+        return page;
+    }
+
+    private static boolean isUtf8Compatible(String charset) {
+        return charset.equalsIgnoreCase("utf-8") || charset.equalsIgnoreCase("utf8")
+                || charset.equalsIgnoreCase("us-ascii");
+    }
+
+    /**
+     * Turns a single array element into an item, either from the tokenizer (the streaming path)
+     * or from an already built JSON object (the fallback path).
+     * @param <T> The type of the item.
+     */
+    interface ItemParser<T> {
+        T parse(JsonTokenizer tokenizer) throws JsonTokenizer.MalformedJsonException;
+        T parse(JSONObject object, boolean retainJson) throws JSONException;
+    }
+
+    /**
+     * Collects the elements of the array into a page, e.g. a list or a columnar batch.
+     * @param <P> The type of the page.
+     */
+    interface PageParser<P> {
+        /**
+         * @param sizeHint The amount of elements, if known beforehand, or 0.
+         */
+        P newPage(int sizeHint);
+        void parse(JsonTokenizer tokenizer, P page) throws JsonTokenizer.MalformedJsonException;
+        void parse(JSONObject object, boolean retainJson, P page) throws JSONException;
+    }
+
+    /**
+     * Returns a {@link PageParser} that collects the items into a list.
+     */
+    static <T> PageParser<List<T>> listOf(final ItemParser<T> itemParser) {
+        return new PageParser<List<T>>() {
+            @Override
+            public List<T> newPage(int sizeHint) {
+                return new ArrayList<>(sizeHint > 0 ? sizeHint : 16);
+            }
+
+            @Override
+            public void parse(JsonTokenizer tokenizer, List<T> page)
+                    throws JsonTokenizer.MalformedJsonException {
+                page.add(itemParser.parse(tokenizer));
+            }
+
+            @Override
+            public void parse(JSONObject object, boolean retainJson, List<T> page)
+                    throws JSONException {
+                page.add(itemParser.parse(object, retainJson));
+            }
+        };
+    }
+
+}
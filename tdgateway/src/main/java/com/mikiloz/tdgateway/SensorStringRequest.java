@@ -0,0 +1,30 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.UnsupportedEncodingException;
+
+
+/**
+ * An {@link ApiRequest} whose response is returned as a plain {@link String}, decoded with the
+ * charset of the response (ISO-8859-1 if none is given).
+ */
+class SensorStringRequest extends ApiRequest<String> {
+
+    SensorStringRequest(int method, String url, Response.Listener<String> listener,
+                        Response.ErrorListener errorListener) {
+        super(method, url, listener, errorListener);
+    }
+
+    @Override
+    String parseResponse(NetworkResponse response) {
+        try {
+            return new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            return new String(response.data);
+        }
+    }
+
+}
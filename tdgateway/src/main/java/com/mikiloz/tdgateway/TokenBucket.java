@@ -0,0 +1,56 @@
+package com.mikiloz.tdgateway;
+
+
+/**
+ * A token bucket: permits are refilled at a steady rate, and up to {@code burst} of them can be
+ * saved up to be spent at once. Not thread-safe, callers synchronize.
+ */
+class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double permits;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond The refill rate.
+     * @param burst The maximum amount of permits that can be saved up, at least 1.
+     */
+    TokenBucket(double permitsPerSecond, int burst, long now) {
+        if (permitsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException();
+        this.permitsPerNano = permitsPerSecond / 1e9;
+        this.burst = burst;
+        this.permits = burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Takes a permit if one is available.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return Whether a permit was taken.
+     */
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (permits < 1) return false;
+        permits -= 1;
+        return true;
+    }
+
+    /**
+     * Returns how long until a permit is available.
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The wait, in nanoseconds, 0 if a permit is available right away.
+     */
+    long nanosUntilAvailable(long now) {
+        refill(now);
+        return permits >= 1 ? 0 : (long) Math.ceil((1 - permits) / permitsPerNano);
+    }
+
+    private void refill(long now) {
+        if (now > refilledAt) {
+            permits = Math.min(burst, permits + (now - refilledAt) * permitsPerNano);
+            refilledAt = now;
+        }
+    }
+
+}
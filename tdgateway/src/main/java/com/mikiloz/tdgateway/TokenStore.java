@@ -0,0 +1,64 @@
+package com.mikiloz.tdgateway;
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * A store of Device API authentication tokens, keyed by device serial number. The
+ * {@link SensorApiManager} consults it before requesting a new token, so that devices don't have
+ * to authenticate again after a restart. Implementations must be thread-safe.
+ * @see FileTokenStore
+ */
+public interface TokenStore {
+
+    /**
+     * Returns the token stored for a device.
+     * @param sn The device serial number.
+     * @return The stored token, or {@code null} if there is none.
+     */
+    @Nullable Entry get(String sn);
+
+    /**
+     * Stores the token of a device, replacing the previous one if present.
+     * @param sn The device serial number.
+     * @param entry The token to store.
+     */
+    void put(String sn, Entry entry);
+
+    /**
+     * Removes the token of a device, e.g. because the API rejected it.
+     * @param sn The device serial number.
+     */
+    void remove(String sn);
+
+    /**
+     * An authentication token together with the instant it stops being valid.
+     */
+    class Entry {
+
+        private final String token;
+        private final long expirationTime;
+
+        public Entry(String token, long expirationTime) {
+            this.token = token;
+            this.expirationTime = expirationTime;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * Get the instant this token stops being valid, in milliseconds since the epoch.
+         * @return The instant this token stops being valid, in milliseconds since the epoch.
+         */
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expirationTime;
+        }
+    }
+
+}
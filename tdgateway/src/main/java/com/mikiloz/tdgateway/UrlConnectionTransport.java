@@ -0,0 +1,125 @@
+package com.mikiloz.tdgateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * An {@link HttpTransport} built on {@link HttpURLConnection}, for running the library on a plain
+ * JVM, e.g. a backend gateway, without an Android {@link android.content.Context}.
+ *
+ * <p>Requests are sent from a fixed pool of worker threads over persistent (keep-alive)
+ * connections: every response body is read to the end and closed, never disconnected, so the
+ * connection goes back to the JVM's keep-alive cache and is reused by the next request to the API
+ * host. The amount of workers therefore bounds the amount of open sockets, however many devices
+ * share the transport. The JVM keeps up to {@code http.maxConnections} idle connections per host
+ * (5 by default), raise that system property when using more workers.</p>
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    private static final int DEFAULT_THREAD_COUNT = 4;
+    private static final int DEFAULT_TIMEOUT = 10000;
+
+    private final ExecutorService executor;
+    private final int timeout;
+
+    public UrlConnectionTransport() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param threadCount The amount of worker threads, i.e. of requests in flight at once.
+     * @param timeout The connect and read timeouts, in milliseconds.
+     */
+    public UrlConnectionTransport(int threadCount, int timeout) {
+        if (threadCount < 1 || timeout < 0) throw new IllegalArgumentException();
+        this.timeout = timeout;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TDGateway-http-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void send(final ApiRequest<?> request) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                perform(request);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void perform(ApiRequest<?> request) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+            connection.setRequestMethod(request.getMethod());
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            byte[] body = request.getBody();
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                connection.setRequestProperty("Content-Type", request.getBodyContentType());
+                OutputStream output = connection.getOutputStream();
+                try {
+                    output.write(body);
+                } finally {
+                    output.close();
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+            InputStream input = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] data = input == null ? new byte[0] : readFully(input);
+
+            Map<String, String> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                // The status line is reported under a null key.
+                if (header.getKey() != null && !header.getValue().isEmpty())
+                    headers.put(header.getKey(), header.getValue().get(0));
+            }
+            request.onResponse(statusCode, headers, data);
+        } catch (IOException | RuntimeException e) {
+            request.onFailure(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) != -1; ) output.write(buffer, 0, read);
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.mikiloz.tdgateway;
+
+import android.content.Context;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.Volley;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+
+/**
+ * An {@link HttpTransport} that sends requests through a Volley {@link RequestQueue}. This is the
+ * transport {@link SensorApiManager#SensorApiManager(Context)} uses.
+ */
+public class VolleyTransport implements HttpTransport {
+
+    private static final String CACHE_DIRECTORY = "volley";
+
+    private final RequestQueue requestQueue;
+
+    public VolleyTransport(Context context) {
+        this(Volley.newRequestQueue(context));
+    }
+
+    /**
+     * Creates a transport with its own request queue, set up like
+     * {@link Volley#newRequestQueue(Context)} does but with a custom amount of network threads.
+     * @param threadPoolSize The amount of network threads, i.e. of requests in flight at once.
+     */
+    public VolleyTransport(Context context, int threadPoolSize) {
+        this(new RequestQueue(new DiskBasedCache(new File(context.getCacheDir(), CACHE_DIRECTORY)),
+                new BasicNetwork(new HurlStack()), threadPoolSize));
+        requestQueue.start();
+    }
+
+    public VolleyTransport(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    @Override
+    public void send(ApiRequest<?> request) {
+        requestQueue.add(new VolleyRequest(request));
+    }
+
+    @Override
+    public void shutdown() {
+        requestQueue.stop();
+    }
+
+    private static int methodOf(String method) {
+        switch (method) {
+            case "POST": return Request.Method.POST;
+            case "PUT": return Request.Method.PUT;
+            case "DELETE": return Request.Method.DELETE;
+            default: return Request.Method.GET;
+        }
+    }
+
+    /**
+     * Adapts an {@link ApiRequest} to Volley. The response is handed over from Volley's network
+     * thread, so parsing still happens off the main thread, and Volley's own delivery is unused.
+     */
+    private static class VolleyRequest extends Request<Void> {
+
+        private final ApiRequest<?> request;
+
+        VolleyRequest(ApiRequest<?> request) {
+            super(methodOf(request.getMethod()), request.getUrl(), null);
+            this.request = request;
+            // Retries are up to the SensorApiManager, which spreads them out.
+            setRetryPolicy(new DefaultRetryPolicy(DefaultRetryPolicy.DEFAULT_TIMEOUT_MS, 0,
+                    DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return request.getHeaders();
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            return request.getBody();
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return request.getBodyContentType();
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            // A 304 to a request Volley made conditional carries Volley's cached entry, which is what
+            // the request gets. A 304 to a request made conditional by the library has no data.
+            request.onResponse(response.notModified && response.data != null ? 200 : response.statusCode,
+                    response.headers != null ? response.headers : Collections.<String, String>emptyMap(),
+                    response.data != null ? response.data : new byte[0]);
+            return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {}
+
+        @Override
+        public void deliverError(VolleyError error) {
+            NetworkResponse response = error.networkResponse;
+            if (response != null) {
+                request.onResponse(response.statusCode,
+                        response.headers != null ? response.headers : Collections.<String, String>emptyMap(),
+                        response.data != null ? response.data : new byte[0]);
+            } else {
+                request.onFailure(error);
+            }
+        }
+    }
+
+}
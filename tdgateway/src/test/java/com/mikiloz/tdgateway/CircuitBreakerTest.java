@@ -0,0 +1,66 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void onFailure_opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3);
+        assertFalse(breaker.onFailure(0, 100));
+        assertFalse(breaker.onFailure(0, 100));
+        assertTrue(breaker.allowRequest(0));
+        assertTrue(breaker.onFailure(10, 100));
+        assertTrue(breaker.isOpen(10));
+        assertFalse(breaker.allowRequest(109));
+    }
+
+    @Test
+    public void onSuccess_resetsFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2);
+        breaker.onFailure(0, 100);
+        breaker.onSuccess();
+        assertFalse(breaker.onFailure(0, 100));
+        assertFalse(breaker.isOpen(0));
+    }
+
+    @Test
+    public void allowRequest_letsSingleProbeThroughAfterOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker(1);
+        breaker.onFailure(0, 100);
+        assertTrue(breaker.allowRequest(100));
+        // Half-open: every other request is refused while the probe is out.
+        assertFalse(breaker.allowRequest(100));
+        assertTrue(breaker.isOpen(100));
+
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen(100));
+        assertTrue(breaker.allowRequest(100));
+        assertTrue(breaker.allowRequest(100));
+    }
+
+    @Test
+    public void onFailure_ofProbeOpensCircuitAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(1);
+        breaker.onFailure(0, 100);
+        assertTrue(breaker.allowRequest(100));
+        assertTrue(breaker.onFailure(150, 100));
+        assertFalse(breaker.allowRequest(249));
+        assertTrue(breaker.allowRequest(250));
+    }
+
+    @Test
+    public void onFailure_whileOpenDoesNotExtendOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker(1);
+        breaker.onFailure(0, 100);
+        // A request sent before the circuit opened fails late.
+        assertFalse(breaker.onFailure(50, 100));
+        assertTrue(breaker.allowRequest(100));
+    }
+
+}
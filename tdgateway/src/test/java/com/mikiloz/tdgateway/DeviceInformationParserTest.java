@@ -0,0 +1,67 @@
+package com.mikiloz.tdgateway;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link IotDevice#parseIotDeviceInformation(JSONObject, IotDevice)} and its
+ * streaming counterpart, which must agree.
+ */
+public class DeviceInformationParserTest {
+
+    private static IotDevice[] parse(String json) throws Exception {
+        IotDevice fromJson = new IotDevice(null, "AB12", null, null);
+        IotDevice.parseIotDeviceInformation(new JSONObject(json), fromJson);
+        IotDevice streamed = new IotDevice(null, "AB12", null, null);
+        IotDevice.parseIotDeviceInformation(
+                new JsonTokenizer(json.getBytes(JsonTokenizer.UTF_8)), streamed);
+        return new IotDevice[] {fromJson, streamed};
+    }
+
+    @Test
+    public void parse_readsFieldsOfExpectedType() throws Exception {
+        for (IotDevice device : parse("{\"id\":\"7\",\"serial\":\"CD34\",\"index\":3,"
+                + "\"msgs\":40,\"losts\":2,\"active\":true,\"unknown\":[1,{}]}")) {
+            assertEquals("7", device.getId());
+            assertEquals("CD34", device.getSerial());
+            assertEquals(3, device.getIndex());
+            assertEquals(40, device.getMessageCount());
+            assertEquals(2, device.getLostMessageCount());
+            assertTrue(device.isActive());
+        }
+    }
+
+    @Test
+    public void parse_coercesQuotedNumbersAndBooleans() throws Exception {
+        for (IotDevice device : parse("{\"index\":\"3\",\"msgs\":\" 40.0\",\"losts\":\"-2\","
+                + "\"active\":\"TRUE\"}")) {
+            assertEquals(3, device.getIndex());
+            assertEquals(40, device.getMessageCount());
+            assertEquals(-2, device.getLostMessageCount());
+            assertTrue(device.isActive());
+        }
+    }
+
+    @Test
+    public void parse_coercesNumbersIntoStrings() throws Exception {
+        for (IotDevice device : parse("{\"id\":12345678901,\"serial\":1234}")) {
+            assertEquals("12345678901", device.getId());
+            assertEquals("1234", device.getSerial());
+        }
+    }
+
+    @Test
+    public void parse_skipsValuesThatCannotBeCoerced() throws Exception {
+        for (IotDevice device : parse("{\"index\":5,\"msgs\":\"many\",\"losts\":\"1e3\","
+                + "\"active\":\"yes\",\"serial\":null}")) {
+            assertEquals(5, device.getIndex());
+            assertEquals(0, device.getMessageCount());
+            assertEquals(0, device.getLostMessageCount());
+            assertFalse(device.isActive());
+            assertEquals("AB12", device.getSerial());
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link DeviceRegistry}.
+ */
+public class DeviceRegistryTest {
+
+    private static IotDevice device(String id, String sn) {
+        return new IotDevice(id, sn, null, null);
+    }
+
+    @Test
+    public void add_indexesDevice() {
+        DeviceRegistry registry = new DeviceRegistry();
+        IotDevice device = device("1", "AB12");
+        assertTrue(registry.add(device));
+        assertFalse(registry.add(device));
+        assertSame(device, registry.getById("1"));
+        assertSame(device, registry.getBySerial("AB12"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void remove_pointsIndexBackAtRemainingDuplicate() {
+        DeviceRegistry registry = new DeviceRegistry();
+        IotDevice first = device("1", "AB12");
+        IotDevice second = device("2", "AB12");
+        registry.add(first);
+        registry.add(second);
+        assertSame(second, registry.getBySerial("AB12"));
+
+        assertTrue(registry.remove(second));
+        assertSame(first, registry.getBySerial("AB12"));
+        assertSame(first, registry.getById("1"));
+        assertNull(registry.getById("2"));
+
+        assertTrue(registry.remove(first));
+        assertNull(registry.getBySerial("AB12"));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void remove_keepsIndexOfOtherDevice() {
+        DeviceRegistry registry = new DeviceRegistry();
+        IotDevice first = device("1", "AB12");
+        IotDevice second = device("2", "AB12");
+        registry.add(first);
+        registry.add(second);
+        assertTrue(registry.remove(first));
+        assertSame(second, registry.getBySerial("AB12"));
+        assertNull(registry.getById("1"));
+    }
+
+    @Test
+    public void reindex_pointsIndexBackAtRemainingDuplicate() {
+        DeviceRegistry registry = new DeviceRegistry();
+        IotDevice first = device("1", "AB12");
+        IotDevice second = device("2", "AB12");
+        registry.add(first);
+        registry.add(second);
+
+        // The information of the second device turns out to have another serial number.
+        second.copyInformation(device("2", "CD34"));
+        registry.reindex(second);
+        assertSame(first, registry.getBySerial("AB12"));
+        assertSame(second, registry.getBySerial("CD34"));
+        assertSame(second, registry.getById("2"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link EndpointTemplate}.
+ */
+public class EndpointTemplateTest {
+
+    private static final EndpointTemplate TEMPLATE =
+            new EndpointTemplate("https://example.com/api", "sn", "amount", "until");
+
+    private static String encode(String text) {
+        StringBuilder sb = new StringBuilder();
+        EndpointTemplate.appendEncoded(text, sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void appendEncoded_keepsUnreservedCharacters() {
+        assertEquals("AZaz09-._~", encode("AZaz09-._~"));
+    }
+
+    @Test
+    public void appendEncoded_encodesReservedCharacters() {
+        assertEquals("a%20b%26c%3Dd%2Fe%3Ff%23g%2Bh%25i%2Aj%3Ak%40l%21",
+                encode("a b&c=d/e?f#g+h%i*j:k@l!"));
+    }
+
+    @Test
+    public void appendEncoded_encodesMultiByteCharacters() {
+        // 2, 3 and 4 bytes in UTF-8: e acute, the euro sign and a smiley emoji.
+        assertEquals("%C3%A9", encode("\u00e9"));
+        assertEquals("%E2%82%AC", encode("\u20ac"));
+        assertEquals("%F0%9F%98%80", encode("\uD83D\uDE00"));
+        assertEquals("x%C3%A9%E2%82%AC%F0%9F%98%80y", encode("x\u00e9\u20ac\uD83D\uDE00y"));
+    }
+
+    @Test
+    public void appendEncoded_replacesUnpairedSurrogates() {
+        assertEquals("%3Fx", encode("\uD83Dx"));
+        assertEquals("x%3F", encode("x\uD83D"));
+        assertEquals("%3Fx", encode("\uDE00x"));
+        assertEquals("%3F%F0%9F%98%80", encode("\uDE00\uD83D\uDE00"));
+    }
+
+    @Test
+    public void build_joinsParameters() {
+        assertEquals("https://example.com/api?sn=AB%2012&amount=20&until=-1",
+                TEMPLATE.builder().param("AB 12").param(20).param(-1).build());
+        assertEquals("https://example.com/api?sn=x&amount=true&until=false",
+                TEMPLATE.builder().param("x").param(true).param(false).build());
+    }
+
+    @Test
+    public void build_prefixesFirstParameterAfterSkippedOnes() {
+        assertEquals("https://example.com/api?amount=20",
+                TEMPLATE.builder().skip().param(20).skip().build());
+        assertEquals("https://example.com/api?until=5",
+                TEMPLATE.builder().param((CharSequence) null).skip().param(5).build());
+        assertEquals("https://example.com/api?sn=x&until=5",
+                TEMPLATE.builder().param("x").skip().param(5).build());
+    }
+
+    @Test
+    public void build_leavesOutAllSkippedParameters() {
+        assertEquals("https://example.com/api", TEMPLATE.builder().skip().skip().skip().build());
+        assertEquals("https://example.com/api", TEMPLATE.getUrl());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsMissingParameters() {
+        TEMPLATE.builder().param("x").build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void param_rejectsTooManyParameters() {
+        TEMPLATE.builder().param("x").param(1).param(2).param(3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void skip_rejectsTooManyParameters() {
+        TEMPLATE.builder().skip().skip().skip().skip();
+    }
+
+    @Test
+    public void builder_isResetAfterFailure() {
+        try {
+            TEMPLATE.builder().param("x").param(1).param(2).param(3);
+            fail();
+        } catch (IllegalStateException expected) {}
+        assertEquals("https://example.com/api?amount=1",
+                TEMPLATE.builder().skip().param(1).skip().build());
+    }
+}
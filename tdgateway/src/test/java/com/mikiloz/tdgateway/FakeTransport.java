@@ -0,0 +1,44 @@
+package com.mikiloz.tdgateway;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpTransport} that holds on to the requests it is sent, for the test to answer them
+ * through {@link ApiRequest#onResponse(int, java.util.Map, byte[])} or
+ * {@link ApiRequest#onFailure(Throwable)}.
+ */
+class FakeTransport implements HttpTransport {
+
+    private final BlockingQueue<ApiRequest<?>> sent = new LinkedBlockingQueue<>();
+
+    @Override
+    public void send(ApiRequest<?> request) {
+        sent.add(request);
+    }
+
+    @Override
+    public void shutdown() {}
+
+    /**
+     * Returns the oldest request sent and not taken yet, waiting up to a second for one.
+     * @return The request, or {@code null} if none was sent.
+     */
+    ApiRequest<?> next() throws InterruptedException {
+        return sent.poll(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the oldest request sent and not taken yet, without waiting.
+     * @return The request, or {@code null} if none was sent.
+     */
+    ApiRequest<?> poll() {
+        return sent.poll();
+    }
+
+    int pendingCount() {
+        return sent.size();
+    }
+
+}
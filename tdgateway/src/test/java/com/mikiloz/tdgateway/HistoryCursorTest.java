@@ -0,0 +1,139 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link HistoryCursor}.
+ */
+public class HistoryCursorTest {
+
+    /**
+     * A cursor over a history of timestamps, in pages of up to {@code amount} of them. Pages are
+     * answered when the test calls {@link #answer()}.
+     */
+    private static class TimeCursor extends HistoryCursor<Long> {
+
+        private final List<Long> history;
+        private final int amount;
+        final List<Long> requested = new ArrayList<>();
+        private PageCallback pending;
+
+        /**
+         * @param history The timestamps, from newest to oldest.
+         */
+        TimeCursor(int amount, Long... history) {
+            super(null, 1);
+            this.amount = amount;
+            this.history = Arrays.asList(history);
+        }
+
+        @Override
+        void fetchPage(Date until, PageCallback callback) {
+            requested.add(until == null ? null : until.getTime());
+            pending = callback;
+        }
+
+        void answer() {
+            PageCallback callback = pending;
+            pending = null;
+            Long until = requested.get(requested.size() - 1);
+            List<Long> page = new ArrayList<>();
+            for (Long time : history) {
+                if ((until == null || time <= until) && page.size() < amount) page.add(time);
+            }
+            callback.onPage(page);
+        }
+
+        @Override
+        long timeOf(Long message) {
+            return message;
+        }
+    }
+
+    private static class Recorder implements HistoryCursor.PageListener<Long> {
+
+        final List<Long> messages = new ArrayList<>();
+        int pages, ends, errors;
+
+        @Override
+        public void onPage(List<Long> page) {
+            pages++;
+            messages.addAll(page);
+        }
+
+        @Override
+        public void onEnd() {
+            ends++;
+        }
+
+        @Override
+        public void onError(SensorApiError error) {
+            errors++;
+        }
+    }
+
+    private static List<Long> walk(TimeCursor cursor) {
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < 100 && recorder.ends == 0; i++) {
+            cursor.next(recorder);
+            while (cursor.pending != null && recorder.ends == 0 && recorder.pages == i) {
+                cursor.answer();
+            }
+        }
+        assertEquals(1, recorder.ends);
+        return recorder.messages;
+    }
+
+    @Test
+    public void next_walksHistoryBackToEmptyPage() {
+        TimeCursor cursor = new TimeCursor(2, 50L, 40L, 30L, 20L, 10L);
+        assertEquals(Arrays.asList(50L, 40L, 30L, 20L, 10L), walk(cursor));
+        assertTrue(cursor.isExhausted());
+    }
+
+    @Test
+    public void next_keepsMessagesSharingTimestampAcrossPages() {
+        TimeCursor cursor = new TimeCursor(3, 50L, 40L, 40L, 40L, 30L, 20L);
+        assertEquals(Arrays.asList(50L, 40L, 40L, 40L, 30L, 20L), walk(cursor));
+        assertEquals(Long.valueOf(40), cursor.requested.get(1));
+    }
+
+    @Test
+    public void next_movesPastPageOfSingleMillisecond() {
+        TimeCursor cursor = new TimeCursor(2, 50L, 40L, 40L, 40L, 30L);
+        // The third message of that millisecond can't be reached with pages of two.
+        assertEquals(Arrays.asList(50L, 40L, 40L, 30L), walk(cursor));
+    }
+
+    @Test
+    public void next_endsAfterClose() {
+        TimeCursor cursor = new TimeCursor(2, 50L, 40L);
+        cursor.close();
+        Recorder recorder = new Recorder();
+        cursor.next(recorder);
+        assertEquals(1, recorder.ends);
+        assertEquals(0, recorder.pages);
+    }
+
+    @Test
+    public void close_endsWaitingListener() {
+        TimeCursor cursor = new TimeCursor(2, 50L, 40L);
+        Recorder recorder = new Recorder();
+        cursor.next(recorder);
+        cursor.close();
+        assertEquals(1, recorder.ends);
+
+        // The page of the request in flight is dropped.
+        cursor.answer();
+        assertEquals(0, recorder.pages);
+        assertEquals(1, recorder.ends);
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link HistoryPublisher}.
+ */
+public class HistoryPublisherTest {
+
+    /**
+     * A cursor over a history made of a single page of one message, answered right away.
+     */
+    private static class OnePageCursor extends HistoryCursor<Long> {
+
+        boolean closed;
+
+        OnePageCursor() {
+            super(null, 1);
+        }
+
+        @Override
+        void fetchPage(Date until, PageCallback callback) {
+            callback.onPage(until == null ? Collections.singletonList(1L)
+                    : Collections.<Long>emptyList());
+        }
+
+        @Override
+        long timeOf(Long message) {
+            return message;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static class Recorder implements Subscriber<List<Long>> {
+
+        final List<String> signals = new ArrayList<>();
+        Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            signals.add("subscribe");
+        }
+
+        @Override
+        public void onNext(List<Long> page) {
+            signals.add("next " + page);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            signals.add("error " + error.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+
+    private static HistoryPublisher<Long> publisherOf(final HistoryCursor<Long> cursor) {
+        return new HistoryPublisher<Long>() {
+            @Override
+            HistoryCursor<Long> openCursor() {
+                return cursor;
+            }
+        };
+    }
+
+    @Test
+    public void subscribe_walksHistoryThenCompletes() {
+        Recorder recorder = new Recorder();
+        publisherOf(new OnePageCursor()).subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(list("subscribe", "next [1]", "complete"), recorder.signals);
+    }
+
+    @Test
+    public void subscribe_signalsErrorWhenCursorCannotBeOpened() {
+        Recorder recorder = new Recorder();
+        new HistoryPublisher<Long>() {
+            @Override
+            HistoryCursor<Long> openCursor() {
+                throw new IllegalStateException("No device id");
+            }
+        }.subscribe(recorder);
+        assertEquals(list("subscribe", "error IllegalStateException"), recorder.signals);
+        recorder.subscription.request(1);
+        recorder.subscription.cancel();
+        assertEquals(2, recorder.signals.size());
+    }
+
+    @Test
+    public void request_nonPositiveSignalsErrorAndClosesCursor() {
+        OnePageCursor cursor = new OnePageCursor();
+        Recorder recorder = new Recorder();
+        publisherOf(cursor).subscribe(recorder);
+        recorder.subscription.request(0);
+        recorder.subscription.request(-1);
+        assertEquals(list("subscribe", "error IllegalArgumentException"), recorder.signals);
+        assertTrue(cursor.closed);
+    }
+
+    @Test
+    public void request_nonPositiveAfterTerminationIsIgnored() {
+        Recorder recorder = new Recorder();
+        publisherOf(new OnePageCursor()).subscribe(recorder);
+        recorder.subscription.request(2);
+        recorder.subscription.request(0);
+        assertEquals(list("subscribe", "next [1]", "complete"), recorder.signals);
+
+        recorder = new Recorder();
+        publisherOf(new OnePageCursor()).subscribe(recorder);
+        recorder.subscription.cancel();
+        recorder.subscription.request(-1);
+        assertEquals(list("subscribe"), recorder.signals);
+    }
+
+    private static List<String> list(String... signals) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, signals);
+        return list;
+    }
+
+}
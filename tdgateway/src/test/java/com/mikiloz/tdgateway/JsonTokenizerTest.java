@@ -0,0 +1,97 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link JsonTokenizer}.
+ */
+public class JsonTokenizerTest {
+
+    private static JsonTokenizer tokenizer(String json) {
+        return new JsonTokenizer(json.getBytes(JsonTokenizer.UTF_8));
+    }
+
+    @Test
+    public void nextString_decodesEscapes() throws Exception {
+        assertEquals("a\"b\\c/d\n\t\r\b\f",
+                tokenizer("\"a\\\"b\\\\c\\/d\\n\\t\\r\\b\\f\"").nextString());
+        assertEquals("\u00e9\u20ac", tokenizer("\"\\u00e9\\u20AC\"").nextString());
+    }
+
+    @Test
+    public void nextString_decodesSurrogatePairEscapes() throws Exception {
+        String value = tokenizer("\"x\\uD83D\\uDE00y\"").nextString();
+        assertEquals("x\uD83D\uDE00y", value);
+        assertEquals(0x1F600, value.codePointAt(1));
+    }
+
+    @Test
+    public void nextString_decodesUtf8AroundEscapes() throws Exception {
+        assertEquals("\u00e9\n\uD83D\uDE00", tokenizer("\"\u00e9\\n\uD83D\uDE00\"").nextString());
+    }
+
+    @Test(expected = JsonTokenizer.MalformedJsonException.class)
+    public void nextString_rejectsTruncatedUnicodeEscape() throws Exception {
+        tokenizer("\"\\u12\"").nextString();
+    }
+
+    @Test(expected = JsonTokenizer.MalformedJsonException.class)
+    public void nextString_rejectsUnterminatedString() throws Exception {
+        tokenizer("\"abc").nextString();
+    }
+
+    @Test
+    public void nextLong_acceptsQuotedAndFractionalNumbers() throws Exception {
+        assertEquals(1496310000000L, tokenizer("\"1496310000000\"").nextLong());
+        assertEquals(12L, tokenizer("12.75").nextLong());
+        assertEquals(-12L, tokenizer("-12.75").nextLong());
+        assertEquals(1500L, tokenizer("1.5e3").nextLong());
+        assertEquals(3L, tokenizer("\"3.9\"").nextLong());
+    }
+
+    @Test
+    public void nextLong_isExactAroundFastPathBoundary() throws Exception {
+        // 18 digits are read by the fast path, longer integers are parsed on their own.
+        assertEquals(999999999999999999L, tokenizer("999999999999999999").nextLong());
+        assertEquals(-999999999999999999L, tokenizer("-999999999999999999").nextLong());
+        assertEquals(1234567890123456789L, tokenizer("1234567890123456789").nextLong());
+        assertEquals(Long.MAX_VALUE, tokenizer("9223372036854775807").nextLong());
+        assertEquals(Long.MIN_VALUE, tokenizer("-9223372036854775808").nextLong());
+    }
+
+    @Test
+    public void nextLong_consumesOnlyTheNumber() throws Exception {
+        JsonTokenizer tokenizer = tokenizer("[1234567890123456789,12.5,7]");
+        tokenizer.beginArray();
+        assertEquals(1234567890123456789L, tokenizer.nextLong());
+        assertEquals(12L, tokenizer.nextLong());
+        assertEquals(7L, tokenizer.nextLong());
+        tokenizer.endArray();
+        assertEquals(JsonTokenizer.Token.END_DOCUMENT, tokenizer.peek());
+    }
+
+    @Test(expected = JsonTokenizer.MalformedJsonException.class)
+    public void nextLong_rejectsNonNumericString() throws Exception {
+        tokenizer("\"abc\"").nextLong();
+    }
+
+    @Test
+    public void skipValue_skipsNestedValues() throws Exception {
+        JsonTokenizer tokenizer = tokenizer(
+                "{\"a\": [1, {\"b\": \"]\\\"}\"}, null, true], \"c\": false}");
+        tokenizer.beginObject();
+        assertEquals("a", tokenizer.nextName());
+        tokenizer.skipValue();
+        assertEquals("c", tokenizer.nextName());
+        assertFalse(tokenizer.nextBoolean());
+        tokenizer.endObject();
+        assertEquals(JsonTokenizer.Token.END_DOCUMENT, tokenizer.peek());
+    }
+
+    @Test(expected = JsonTokenizer.MalformedJsonException.class)
+    public void peek_rejectsSingleQuotes() throws Exception {
+        tokenizer("['a']").skipValue();
+    }
+}
@@ -0,0 +1,113 @@
+package com.mikiloz.tdgateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler that runs the tasks it's given to execute right away, on the calling thread, and
+ * holds the scheduled ones, whatever their delay, until the test runs them with
+ * {@link #runDelayed()}.
+ */
+class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+    private final List<Task> delayed = new ArrayList<>();
+
+    ManualScheduler() {
+        super(1);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task task = new Task(command, unit.toMillis(delay));
+        synchronized (this) {
+            delayed.add(task);
+        }
+        return task;
+    }
+
+    /**
+     * Returns the delays of the tasks held, in milliseconds, in the order they were scheduled.
+     */
+    synchronized List<Long> delays() {
+        List<Long> delays = new ArrayList<>();
+        for (Task task : delayed) if (!task.cancelled) delays.add(task.delay);
+        return delays;
+    }
+
+    /**
+     * Runs the tasks held so far, whatever their delay. Tasks they schedule are held in turn.
+     */
+    void runDelayed() {
+        List<Task> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(delayed);
+            delayed.clear();
+        }
+        for (Task task : tasks) if (!task.cancelled) task.run();
+    }
+
+    private static class Task implements ScheduledFuture<Object> {
+
+        final Runnable command;
+        final long delay;
+        volatile boolean cancelled, done;
+
+        Task(Runnable command, long delay) {
+            this.command = command;
+            this.delay = delay;
+        }
+
+        void run() {
+            command.run();
+            done = true;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long otherDelay = other.getDelay(TimeUnit.MILLISECONDS);
+            return delay < otherDelay ? -1 : (delay == otherDelay ? 0 : 1);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) return false;
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+
+}
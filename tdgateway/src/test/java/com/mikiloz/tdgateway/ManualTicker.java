@@ -0,0 +1,21 @@
+package com.mikiloz.tdgateway;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when the test advances it.
+ */
+class ManualTicker implements SensorApiManager.Ticker {
+
+    private volatile long now;
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MessageSerializer}.
+ */
+public class MessageSerializerTest {
+
+    private static RawMessage rawMessage() {
+        RawMessage message = new RawMessage();
+        message.time = 1500000000000L;
+        message.snr = 12.5;
+        message.device = "1A2B3C";
+        message.setPayload(new byte[] {1, 2, 3});
+        message.setReceptions(new String[] {"0001", "0002"}, new double[] {10, -120, 8, -125});
+        return message;
+    }
+
+    @Test
+    public void rawMessage_roundTrips() throws IOException {
+        RawMessage message = MessageSerializer.rawMessageFromBytes(MessageSerializer.toBytes(rawMessage()));
+        assertEquals(1500000000000L, message.getTimeMillis());
+        assertEquals(12.5, message.getSnr(), 0);
+        assertEquals("1A2B3C", message.getDevice());
+        assertArrayEquals(new byte[] {1, 2, 3}, message.getPayload());
+        assertArrayEquals(new String[] {"0001", "0002"}, message.taps);
+        assertArrayEquals(new double[] {10, -120, 8, -125}, message.signals, 0);
+    }
+
+    @Test
+    public void message_roundTrips() throws IOException {
+        IotMessage message = new IotMessage();
+        message.when = 2000;
+        message.received = 1000;
+        message.setPayload(null);
+        IotMessage read = MessageSerializer.messageFromBytes(MessageSerializer.toBytes(message));
+        assertEquals(2000, read.getReceptionTime());
+        assertEquals(1000, read.getEmissionTime());
+        assertNull(read.getPayload());
+    }
+
+    @Test(expected = IOException.class)
+    public void readMessage_rejectsPayloadLengthBeyondRemainingBytes() throws IOException {
+        IotMessage message = new IotMessage();
+        message.setPayload(new byte[] {1, 2, 3});
+        byte[] bytes = MessageSerializer.toBytes(message);
+        // The payload length follows the two timestamps and the version byte.
+        ByteBuffer.wrap(bytes).putInt(8 + 1 + 8, Integer.MAX_VALUE);
+        MessageSerializer.messageFromBytes(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void readRawMessage_rejectsReceptionCountBeyondRemainingBytes() throws IOException {
+        RawMessage message = rawMessage();
+        message.setReceptions(new String[0], new double[0]);
+        byte[] bytes = MessageSerializer.toBytes(message);
+        // The reception count is the last field.
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4, 100000000);
+        MessageSerializer.rawMessageFromBytes(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void readRawMessage_rejectsTruncatedRecord() throws IOException {
+        byte[] bytes = MessageSerializer.toBytes(rawMessage());
+        MessageSerializer.readRawMessage(ByteBuffer.wrap(bytes, 0, bytes.length - 5).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void readMessage_rejectsUnknownVersion() throws IOException {
+        byte[] bytes = MessageSerializer.toBytes(new IotMessage());
+        bytes[8] = (byte) (MessageCodecs.FORMAT_VERSION + 1);
+        MessageSerializer.messageFromBytes(bytes);
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MessageStore}, and for the history calls of {@link IotDevice} answered
+ * from it.
+ */
+public class MessageStoreTest {
+
+    private static final String SN = "AB12";
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageStore store;
+    private FakeTransport transport;
+    private SensorApiManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new MessageStore(folder.newFolder());
+        transport = new FakeTransport();
+        manager = new SensorApiManager(transport, DIRECT);
+        manager.setMessageStore(store);
+        manager.setTokenStore(new MemoryTokenStore());
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private static List<IotMessage> messages(long from, long to) {
+        List<IotMessage> messages = new ArrayList<>();
+        for (long when = from; when <= to; when++) {
+            IotMessage message = new IotMessage();
+            message.when = when;
+            message.received = when;
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static long[] times(List<IotMessage> messages) {
+        long[] times = new long[messages.size()];
+        for (int i = 0; i < times.length; i++) times[i] = messages.get(i).when;
+        return times;
+    }
+
+    @Test
+    public void getMessagesHistory_answersCoveredPage() throws IOException {
+        store.storeMessages(SN, messages(100, 109), 100, 200);
+        assertArrayEquals(new long[] {109, 108, 107},
+                times(store.getMessagesHistory(SN, 3, 200)));
+        assertArrayEquals(new long[] {105, 104}, times(store.getMessagesHistory(SN, 2, 105)));
+    }
+
+    @Test
+    public void getMessagesHistory_fallsThroughOutsideCoverage() throws IOException {
+        store.storeMessages(SN, messages(100, 109), 100, 200);
+        assertNull(store.getMessagesHistory(SN, 3, 201));
+        assertNull(store.getMessagesHistory("CD34", 3, 150));
+    }
+
+    @Test
+    public void getMessagesHistory_fallsThroughOnShortPageUnlessHistoryStarts() throws IOException {
+        store.storeMessages(SN, messages(100, 109), 100, 200);
+        assertNull(store.getMessagesHistory(SN, 20, 200));
+
+        store.storeMessages(SN, Collections.<IotMessage>emptyList(), Long.MIN_VALUE, 99);
+        assertEquals(10, store.getMessagesHistory(SN, 20, 200).size());
+    }
+
+    @Test
+    public void getMessagesHistory_storesNetworkPageAndAnswersItAgain() throws Exception {
+        IotDevice device = new IotDevice(null, SN, "key", manager);
+        device.obtainAuthToken(null, null);
+        final BlockingQueue<List<IotMessage>> received = new LinkedBlockingQueue<>();
+        IotDevice.IotMessagesReceivedListener listener = new IotDevice.IotMessagesReceivedListener() {
+            @Override
+            public void onMessagesReceived(List<IotMessage> messages) {
+                received.add(messages);
+            }
+        };
+
+        device.getMessagesHistory(2, new Date(1000), listener, null);
+        ApiRequest<?> request = transport.next();
+        assertNotNull(request);
+        request.onResponse(200, Collections.<String, String>emptyMap(),
+                "[{\"when\":900,\"received\":890},{\"when\":800,\"received\":790}]"
+                        .getBytes(JsonTokenizer.UTF_8));
+        assertArrayEquals(new long[] {900, 800}, times(received.poll(1, TimeUnit.SECONDS)));
+
+        // The page is stored in the background, before the next lookup runs there.
+        device.getMessagesHistory(2, new Date(1000), listener, null);
+        assertArrayEquals(new long[] {900, 800}, times(received.poll(1, TimeUnit.SECONDS)));
+        assertNull(transport.poll());
+
+        // Older messages weren't fetched yet.
+        device.getMessagesHistory(2, new Date(799), listener, null);
+        assertNotNull(transport.next());
+    }
+
+    private static class MemoryTokenStore implements TokenStore {
+
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+        MemoryTokenStore() {
+            entries.put(SN, new Entry("token", Long.MAX_VALUE));
+        }
+
+        @Override
+        public Entry get(String sn) {
+            return entries.get(sn);
+        }
+
+        @Override
+        public void put(String sn, Entry entry) {
+            entries.put(sn, entry);
+        }
+
+        @Override
+        public void remove(String sn) {
+            entries.remove(sn);
+        }
+    }
+
+}
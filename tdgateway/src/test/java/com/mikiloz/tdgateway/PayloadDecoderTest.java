@@ -0,0 +1,153 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link PayloadDecoder}.
+ */
+public class PayloadDecoderTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    @Test
+    public void decode_readsUnalignedFieldSpanningThreeBytes() {
+        // Bits 5 to 18 of 00000101 10101010 11000000: 10110101010110.
+        PayloadDecoder decoder = new PayloadDecoder.Builder().field("value", 5, 14).build();
+        PayloadDecoder.Values values = decoder.newValues();
+        byte[] payload = bytes(0x05, 0xaa, 0xc0);
+        assertTrue(decoder.decode(payload, 0, payload.length, values));
+        assertEquals(11606L, values.getLong(0));
+        assertEquals(11606.0, values.getDouble(0), 0);
+    }
+
+    @Test
+    public void decode_readsSmallFieldsWithinOneByte() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("high", 0, 3)
+                .field("flag", 3, 1)
+                .field("low", 4, 4)
+                .build();
+        PayloadDecoder.Values values = decoder.newValues();
+        byte[] payload = bytes(0xb6);
+        assertTrue(decoder.decode(payload, 0, 1, values));
+        assertEquals(5L, values.getLong(0));
+        assertTrue(values.getBoolean(1));
+        assertEquals(6L, values.getLong(2));
+    }
+
+    @Test
+    public void decode_signExtendsSignedFields() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("value", 4, 12, true, ByteOrder.BIG_ENDIAN, 0.5, 10)
+                .build();
+        PayloadDecoder.Values values = decoder.newValues();
+        assertTrue(decoder.decode(bytes(0xff, 0xfe), 0, 2, values));
+        assertEquals(-2L, values.getLong(0));
+        assertEquals(9.0, values.getDouble(0), 0);
+        assertTrue(decoder.decode(bytes(0xf7, 0xff), 0, 2, values));
+        assertEquals(2047L, values.getLong(0));
+        assertEquals(1033.5, values.getDouble(0), 0);
+    }
+
+    @Test
+    public void decode_readsUnsignedSixtyFourBitFields() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder().field("value", 0, 64).build();
+        PayloadDecoder.Values values = decoder.newValues();
+        assertTrue(decoder.decode(bytes(0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff), 0, 8,
+                values));
+        assertEquals(-1L, values.getLong(0));
+        assertEquals(18446744073709551615.0, values.getDouble(0), 0);
+        assertTrue(decoder.decode(bytes(0x80, 0, 0, 0, 0, 0, 0, 0x01), 0, 8, values));
+        assertEquals(0x8000000000000001L, values.getLong(0));
+        assertEquals(9223372036854775809.0, values.getDouble(0), 0);
+    }
+
+    @Test
+    public void decode_readsSignedSixtyFourBitFields() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("value", 0, 64, true, ByteOrder.BIG_ENDIAN, 1, 0)
+                .build();
+        PayloadDecoder.Values values = decoder.newValues();
+        assertTrue(decoder.decode(bytes(0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xfe), 0, 8,
+                values));
+        assertEquals(-2L, values.getLong(0));
+        assertEquals(-2.0, values.getDouble(0), 0);
+    }
+
+    @Test
+    public void decode_readsLittleEndianFields() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("unsigned", 8, 16, false, ByteOrder.LITTLE_ENDIAN, 1, 0)
+                .field("signed", 24, 16, true, ByteOrder.LITTLE_ENDIAN, 0.01, 0)
+                .build();
+        PayloadDecoder.Values values = decoder.newValues();
+        assertTrue(decoder.decode(bytes(0x00, 0x34, 0x12, 0x9c, 0xff), 0, 5, values));
+        assertEquals(0x1234L, values.getLong(0));
+        assertEquals(-100L, values.getLong(1));
+        assertEquals(-1.0, values.getDouble(1), 1e-9);
+    }
+
+    @Test
+    public void decode_marksFieldsPastPayloadAsMissing() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("first", 0, 8)
+                .field("second", 12, 8)
+                .build();
+        PayloadDecoder.Values values = decoder.newValues();
+        // The array holds more bytes than the payload, which starts at 1 and is 1 byte long.
+        assertFalse(decoder.decode(bytes(0x00, 0x2a, 0xff, 0xff), 1, 1, values));
+        assertTrue(values.isPresent(0));
+        assertEquals(42L, values.getLong(0));
+        assertFalse(values.isPresent(1));
+
+        assertTrue(decoder.decode(bytes(0x00, 0x2a, 0xff, 0xff), 1, 3, values));
+        assertTrue(values.isPresent(1));
+        assertEquals(0xffL, values.getLong(1));
+
+        assertFalse(decoder.decode(null, 0, 0, values));
+        assertFalse(values.isPresent(0));
+        assertFalse(values.isPresent(1));
+    }
+
+    @Test
+    public void indexOf_findsFields() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder()
+                .field("a", 0, 8)
+                .field("b", 8, 8)
+                .build();
+        assertEquals(2, decoder.getFieldCount());
+        assertEquals(1, decoder.indexOf("b"));
+        assertEquals("b", decoder.getFieldName(1));
+        assertEquals(-1, decoder.indexOf("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsValuesOfAnotherDecoder() {
+        PayloadDecoder decoder = new PayloadDecoder.Builder().field("a", 0, 8).build();
+        PayloadDecoder other = new PayloadDecoder.Builder().field("a", 0, 8).build();
+        decoder.decode(bytes(0), 0, 1, other.newValues());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void field_rejectsFieldSpanningNineBytes() {
+        new PayloadDecoder.Builder().field("a", 4, 64);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void field_rejectsUnalignedLittleEndianField() {
+        new PayloadDecoder.Builder().field("a", 4, 16, false, ByteOrder.LITTLE_ENDIAN, 1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void field_rejectsDuplicateNames() {
+        new PayloadDecoder.Builder().field("a", 0, 8).field("a", 8, 8);
+    }
+}
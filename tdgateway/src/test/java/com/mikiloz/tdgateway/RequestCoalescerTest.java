@@ -0,0 +1,153 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link RequestCoalescer}, through the {@link SensorApiManager} it merges the
+ * requests of.
+ */
+public class RequestCoalescerTest {
+
+    private static final String URL = SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT
+            + "?amount=10";
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private FakeTransport transport;
+    private SensorApiManager manager;
+    private final List<String> responses = new ArrayList<>();
+    private final List<VolleyError> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        manager = new SensorApiManager(transport, DIRECT);
+        manager.setScheduler(new ManualScheduler());
+        manager.setCircuitBreaker(0, 0);
+        manager.setRetryPolicy(0, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private ApiRequest<?> perform(int method, String url, final String token) {
+        ApiRequest<?> request = new SensorStringRequest(method, url,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        responses.add(response);
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        errors.add(error);
+                    }
+                }) {
+            @Override
+            public Map<String, String> getHeaders() {
+                return Collections.singletonMap("X-Snsr-Device-Key", token);
+            }
+        };
+        manager.performRequest(request);
+        return request;
+    }
+
+    private static void respond(ApiRequest<?> request, String body) {
+        request.onResponse(200, Collections.<String, String>emptyMap(),
+                body.getBytes(JsonTokenizer.UTF_8));
+    }
+
+    @Test
+    public void performRequest_sharesOneCallBetweenIdenticalGets() {
+        ApiRequest<?> leader = perform(Request.Method.GET, URL, "token");
+        perform(Request.Method.GET, URL, "token");
+        perform(Request.Method.GET, URL, "token");
+        assertSame(leader, transport.poll());
+        assertNull(transport.poll());
+
+        respond(leader, "page");
+        assertEquals(3, responses.size());
+        for (String response : responses) assertEquals("page", response);
+        // Every request parses the response on its own.
+        assertNotSame(responses.get(0), responses.get(1));
+    }
+
+    @Test
+    public void performRequest_sendsAgainOnceCallLanded() {
+        ApiRequest<?> first = perform(Request.Method.GET, URL, "token");
+        assertSame(first, transport.poll());
+        respond(first, "first");
+        ApiRequest<?> again = perform(Request.Method.GET, URL, "token");
+        assertSame(again, transport.poll());
+    }
+
+    @Test
+    public void performRequest_keepsRequestsWithOtherHeadersOrUrlApart() {
+        perform(Request.Method.GET, URL, "token");
+        perform(Request.Method.GET, URL, "other token");
+        perform(Request.Method.GET, URL + "&after=1", "token");
+        assertEquals(3, transport.pendingCount());
+    }
+
+    @Test
+    public void performRequest_neverCoalescesCommands() {
+        String url = SensorApiManager.DEVICE_SET_BIDIR_VALUE_ENDPOINT + "?id=1&sn=AB12&value=true";
+        perform(Request.Method.POST, url, "token");
+        perform(Request.Method.POST, url, "token");
+        assertEquals(2, transport.pendingCount());
+    }
+
+    @Test
+    public void performRequest_reportsFailureToEveryRequest() {
+        ApiRequest<?> leader = perform(Request.Method.GET, URL, "token");
+        perform(Request.Method.GET, URL, "token");
+        transport.poll();
+        leader.onFailure(new IOException("Connection reset"));
+        assertEquals(2, errors.size());
+        assertTrue(responses.isEmpty());
+    }
+
+    @Test
+    public void setRequestCoalescing_falseSendsEveryRequest() {
+        manager.setRequestCoalescing(false);
+        perform(Request.Method.GET, URL, "token");
+        perform(Request.Method.GET, URL, "token");
+        assertEquals(2, transport.pendingCount());
+    }
+
+    @Test
+    public void keyOf_ignoresHeaderOrder() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("b", "2");
+        headers.put("a", "1");
+        Map<String, String> reversed = new HashMap<>();
+        reversed.put("a", "1");
+        reversed.put("b", "2");
+        assertEquals(RequestCoalescer.keyOf(URL, headers), RequestCoalescer.keyOf(URL, reversed));
+        assertEquals(URL + "\na:1\nb:2", RequestCoalescer.keyOf(URL, headers));
+    }
+
+}
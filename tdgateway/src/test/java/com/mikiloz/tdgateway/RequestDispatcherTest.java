@@ -0,0 +1,193 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.Request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link RequestDispatcher}, through the {@link SensorApiManager} it queues the
+ * requests of.
+ */
+public class RequestDispatcherTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private FakeTransport transport;
+    private ManualTicker ticker;
+    private ManualScheduler scheduler;
+    private SensorApiManager manager;
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        ticker = new ManualTicker();
+        scheduler = new ManualScheduler();
+        manager = new SensorApiManager(transport, DIRECT);
+        manager.setTicker(ticker);
+        manager.setScheduler(scheduler);
+        manager.setCacheTtl(SensorApiManager.Endpoint.DEVICE_INFORMATION, 0, 0);
+        manager.setCacheTtl(SensorApiManager.Endpoint.CHILD_DEVICES, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private ApiRequest<?> perform(String endpoint, int n) {
+        ApiRequest<?> request = new SensorStringRequest(Request.Method.GET, endpoint + "?n=" + n,
+                null, null);
+        manager.performRequest(request);
+        return request;
+    }
+
+    private static void complete(ApiRequest<?> request) {
+        request.onResponse(200, Collections.<String, String>emptyMap(), new byte[0]);
+    }
+
+    @Test
+    public void performRequest_keepsAtMostMaxConcurrentRequestsInFlight() {
+        manager.setMaxConcurrentRequests(2);
+        ApiRequest<?> first = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 1);
+        ApiRequest<?> second = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 2);
+        ApiRequest<?> third = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 3);
+        assertSame(first, transport.poll());
+        assertSame(second, transport.poll());
+        assertNull(transport.poll());
+        assertEquals(2, manager.getInFlightCount());
+        assertEquals(1, manager.getQueueDepth(SensorApiManager.Priority.NORMAL));
+
+        complete(second);
+        assertSame(third, transport.poll());
+        assertEquals(2, manager.getInFlightCount());
+        assertEquals(0, manager.getQueueDepth(SensorApiManager.Priority.NORMAL));
+    }
+
+    @Test
+    public void setMaxConcurrentRequests_sendsQueuedRequestsRightAway() {
+        manager.setMaxConcurrentRequests(1);
+        perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 1);
+        perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 2);
+        assertEquals(1, transport.pendingCount());
+
+        manager.setMaxConcurrentRequests(2);
+        assertEquals(2, transport.pendingCount());
+    }
+
+    @Test
+    public void setRateLimit_delaysRequestsOverLimitWithoutHoldingBackOtherEndpoints() {
+        manager.setRateLimit(SensorApiManager.Endpoint.LATEST_MESSAGES, 1, 2);
+        ApiRequest<?> first = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 1);
+        ApiRequest<?> second = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 2);
+        ApiRequest<?> limited = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 3);
+        ApiRequest<?> other = perform(SensorApiManager.DEVICE_CHILD_DEVICES_ENDPOINT, 4);
+        assertSame(first, transport.poll());
+        assertSame(second, transport.poll());
+        assertSame(other, transport.poll());
+        assertNull(transport.poll());
+        assertEquals(1, manager.getQueueDepth(SensorApiManager.Priority.NORMAL));
+        // A wake-up is scheduled for when the next permit is refilled.
+        assertEquals(Collections.singletonList(1000L), scheduler.delays());
+
+        ticker.advance(999);
+        scheduler.runDelayed();
+        assertNull(transport.poll());
+
+        ticker.advance(1);
+        scheduler.runDelayed();
+        assertSame(limited, transport.poll());
+        assertEquals(0, manager.getQueueDepth(SensorApiManager.Priority.NORMAL));
+    }
+
+    @Test
+    public void setRateLimit_zeroRemovesLimit() {
+        manager.setRateLimit(SensorApiManager.Endpoint.LATEST_MESSAGES, 1, 1);
+        perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 1);
+        perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 2);
+        assertEquals(1, transport.pendingCount());
+
+        manager.setRateLimit(SensorApiManager.Endpoint.LATEST_MESSAGES, 0, 0);
+        assertEquals(2, transport.pendingCount());
+    }
+
+    @Test
+    public void dispatch_sendsHigherLanesFirstAndEachLaneInOrder() {
+        manager.setMaxConcurrentRequests(1);
+        ApiRequest<?> running = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 0);
+        ApiRequest<?> bulk = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT, 1);
+        ApiRequest<?> normal = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 2);
+        ApiRequest<?> otherNormal = perform(SensorApiManager.DEVICE_CHILD_DEVICES_ENDPOINT, 3);
+        ApiRequest<?> control = perform(SensorApiManager.DEVICE_AUTHENTICATION_ENDPOINT, 4);
+        assertSame(running, transport.poll());
+        assertEquals(1, manager.getQueueDepth(SensorApiManager.Priority.CONTROL));
+        assertEquals(2, manager.getQueueDepth(SensorApiManager.Priority.NORMAL));
+        assertEquals(1, manager.getQueueDepth(SensorApiManager.Priority.BULK));
+
+        ApiRequest<?>[] expected = {control, normal, otherNormal, bulk};
+        ApiRequest<?> previous = running;
+        for (ApiRequest<?> request : expected) {
+            complete(previous);
+            previous = transport.poll();
+            assertSame(request, previous);
+        }
+    }
+
+    @Test
+    public void dispatch_keepsLastSlotFromBulkReads() {
+        manager.setMaxConcurrentRequests(3);
+        perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT, 1);
+        perform(SensorApiManager.DEVICE_RAW_MESSAGES_HISTORY_ENDPOINT, 2);
+        ApiRequest<?> waiting = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT, 3);
+        assertEquals(2, transport.pendingCount());
+        assertEquals(1, manager.getQueueDepth(SensorApiManager.Priority.BULK));
+
+        ApiRequest<?> control = perform(SensorApiManager.DEVICE_AUTHENTICATION_ENDPOINT, 4);
+        transport.poll();
+        ApiRequest<?> second = transport.poll();
+        assertSame(control, transport.poll());
+        assertEquals(3, manager.getInFlightCount());
+
+        // A single free slot is the last one.
+        complete(second);
+        assertNull(transport.poll());
+        complete(control);
+        assertSame(waiting, transport.poll());
+    }
+
+    @Test
+    public void dispatch_letsBulkReadTakeOnlySlot() {
+        manager.setMaxConcurrentRequests(1);
+        ApiRequest<?> bulk = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT, 1);
+        assertSame(bulk, transport.poll());
+    }
+
+    @Test
+    public void performRequest_usesPriorityOfRequestOverItsEndpoint() {
+        manager.setMaxConcurrentRequests(1);
+        ApiRequest<?> running = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 0);
+        ApiRequest<?> normal = perform(SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT, 1);
+        ApiRequest<?> urgent = new SensorStringRequest(Request.Method.GET,
+                SensorApiManager.DEVICE_MESSAGES_HISTORY_ENDPOINT + "?n=2", null, null);
+        urgent.setPriority(SensorApiManager.Priority.CONTROL);
+        manager.performRequest(urgent);
+        assertSame(running, transport.poll());
+
+        complete(running);
+        assertSame(urgent, transport.poll());
+        complete(urgent);
+        assertSame(normal, transport.poll());
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ResponseCache}, through the {@link SensorApiManager} it answers the
+ * requests of.
+ */
+public class ResponseCacheTest {
+
+    private static final String INFORMATION_URL =
+            SensorApiManager.DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT + "?id=1&sn=AB12";
+    private static final String CHILDREN_URL = SensorApiManager.DEVICE_CHILD_DEVICES_ENDPOINT;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private FakeTransport transport;
+    private ManualTicker ticker;
+    private SensorApiManager manager;
+    private final List<String> responses = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        ticker = new ManualTicker();
+        manager = new SensorApiManager(transport, DIRECT);
+        manager.setTicker(ticker);
+        manager.setScheduler(new ManualScheduler());
+        manager.setRetryPolicy(0, 0, 0);
+        manager.setCacheTtl(SensorApiManager.Endpoint.DEVICE_INFORMATION, 1000, 5000);
+        manager.setCacheTtl(SensorApiManager.Endpoint.CHILD_DEVICES, 1000, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private ApiRequest<?> perform(int method, String url, final String header, final String value) {
+        ApiRequest<?> request = new SensorStringRequest(method, url,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        responses.add(response);
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        responses.add("error " + error.networkResponse.statusCode);
+                    }
+                }) {
+            @Override
+            public Map<String, String> getHeaders() {
+                return Collections.singletonMap(header, value);
+            }
+        };
+        manager.performRequest(request);
+        return request;
+    }
+
+    private ApiRequest<?> getInformation() {
+        return perform(Request.Method.GET, INFORMATION_URL, "Authorization", "Basic developer");
+    }
+
+    private ApiRequest<?> getChildren(String token) {
+        return perform(Request.Method.GET, CHILDREN_URL, "X-Snsr-Device-Key", token);
+    }
+
+    private static void respond(ApiRequest<?> request, int statusCode, String body, String etag) {
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null) headers.put("ETag", etag);
+        request.onResponse(statusCode, headers, body.getBytes(JsonTokenizer.UTF_8));
+    }
+
+    /**
+     * Caches a response to a request, through the network.
+     */
+    private void fill(ApiRequest<?> request, String body) {
+        ApiRequest<?> sent = transport.poll();
+        assertNotNull(sent);
+        assertEquals(request.getUrl(), sent.getUrl());
+        respond(sent, 200, body, "\"v1\"");
+    }
+
+    @Test
+    public void handle_servesFreshResponseWithoutNetwork() {
+        fill(getInformation(), "information");
+        getInformation();
+        assertNull(transport.poll());
+        assertEquals(2, responses.size());
+        assertEquals("information", responses.get(1));
+        assertEquals(1, manager.getCacheHitCount());
+        assertEquals(1, manager.getCacheMissCount());
+    }
+
+    @Test
+    public void handle_servesStaleResponseAndRevalidatesIt() {
+        fill(getInformation(), "information");
+        ticker.advance(1001);
+        getInformation();
+        assertEquals(Collections.nCopies(2, "information"), responses);
+        assertEquals(1, manager.getCacheStaleHitCount());
+
+        // A conditional revalidation, which the server answers with a 304.
+        ApiRequest<?> revalidation = transport.poll();
+        assertEquals("\"v1\"", revalidation.getHeaders().get("If-None-Match"));
+        respond(revalidation, 304, "", null);
+        assertEquals(2, responses.size());
+
+        getInformation();
+        assertNull(transport.poll());
+        assertEquals("information", responses.get(2));
+        assertEquals(1, manager.getCacheHitCount());
+    }
+
+    @Test
+    public void handle_revalidatesOnlyOnceWhileStale() {
+        fill(getInformation(), "information");
+        ticker.advance(2000);
+        getInformation();
+        getInformation();
+        assertNotNull(transport.poll());
+        assertNull(transport.poll());
+        assertEquals(2, manager.getCacheStaleHitCount());
+    }
+
+    @Test
+    public void handle_waitsForNetworkPastStalePeriod() {
+        fill(getInformation(), "old");
+        ticker.advance(6001);
+        getInformation();
+        getInformation();
+        assertEquals(Collections.singletonList("old"), responses);
+
+        ApiRequest<?> refetch = transport.poll();
+        assertNull(transport.poll());
+        respond(refetch, 200, "new", "\"v2\"");
+        assertEquals(3, responses.size());
+        assertEquals("new", responses.get(1));
+        assertEquals("new", responses.get(2));
+        assertEquals(3, manager.getCacheMissCount());
+    }
+
+    @Test
+    public void handle_answersWaitersWithCachedResponseOn304() {
+        fill(getInformation(), "information");
+        ticker.advance(6001);
+        getInformation();
+        respond(transport.poll(), 304, "", null);
+        assertEquals(Collections.nCopies(2, "information"), responses);
+    }
+
+    @Test
+    public void handle_doesNotCacheErrors() {
+        getInformation();
+        respond(transport.poll(), 500, "", null);
+        assertEquals(Collections.singletonList("error 500"), responses);
+        getInformation();
+        assertNotNull(transport.poll());
+    }
+
+    @Test
+    public void handle_ignoresUncachedEndpoints() {
+        manager.setCacheTtl(SensorApiManager.Endpoint.DEVICE_INFORMATION, 0, 0);
+        fill(getInformation(), "information");
+        getInformation();
+        assertNotNull(transport.poll());
+    }
+
+    @Test
+    public void clear_keepsFillInFlightFromStoringItsResponse() {
+        getInformation();
+        ApiRequest<?> sent = transport.poll();
+        manager.clearCache();
+        respond(sent, 200, "information", null);
+        assertEquals(Collections.singletonList("information"), responses);
+
+        getInformation();
+        assertNotNull(transport.poll());
+    }
+
+    @Test
+    public void command_dropsCachedResponsesOfItsDeviceOnly() {
+        fill(getChildren("token A"), "children of A");
+        fill(getChildren("token B"), "children of B");
+        fill(getInformation(), "information of 1");
+        String otherUrl = SensorApiManager.DEVELOPER_GET_DEVICE_INFORMATION_ENDPOINT + "?id=2&sn=CD34";
+        fill(perform(Request.Method.GET, otherUrl, "Authorization", "Basic developer"),
+                "information of 2");
+
+        // A command of device 1, sent with the token of device A.
+        perform(Request.Method.POST,
+                SensorApiManager.DEVICE_SET_BIDIR_VALUE_ENDPOINT + "?id=1&sn=AB12&value=true",
+                "X-Snsr-Device-Key", "token A");
+        assertNotNull(transport.poll());
+
+        getChildren("token B");
+        perform(Request.Method.GET, otherUrl, "Authorization", "Basic developer");
+        assertNull(transport.poll());
+
+        getChildren("token A");
+        assertEquals(CHILDREN_URL, transport.poll().getUrl());
+        getInformation();
+        assertEquals(INFORMATION_URL, transport.poll().getUrl());
+    }
+
+    @Test
+    public void command_keepsFillInFlightOfItsDeviceFromStoringItsResponse() {
+        getChildren("token A");
+        getChildren("token B");
+        ApiRequest<?> fillA = transport.poll();
+        ApiRequest<?> fillB = transport.poll();
+        perform(Request.Method.POST, SensorApiManager.DEVICE_CLEAR_MESSAGES_ENDPOINT,
+                "X-Snsr-Device-Key", "token A");
+        transport.poll();
+        respond(fillA, 200, "children of A", null);
+        respond(fillB, 200, "children of B", null);
+
+        getChildren("token B");
+        assertNull(transport.poll());
+        getChildren("token A");
+        assertNotNull(transport.poll());
+    }
+
+}
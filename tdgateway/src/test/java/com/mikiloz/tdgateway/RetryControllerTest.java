@@ -0,0 +1,233 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link RetryController}, through the {@link SensorApiManager} it retries the
+ * requests of.
+ */
+public class RetryControllerTest {
+
+    private static final String URL = SensorApiManager.DEVICE_MESSAGES_HISTORY_LATEST_ENDPOINT;
+    private static final String COMMAND_URL = SensorApiManager.DEVICE_SET_BIDIR_VALUE_ENDPOINT
+            + "?id=1&sn=AB12&value=true";
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private FakeTransport transport;
+    private ManualTicker ticker;
+    private ManualScheduler scheduler;
+    private SensorApiManager manager;
+    private final List<String> responses = new ArrayList<>();
+    private final List<VolleyError> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        ticker = new ManualTicker();
+        scheduler = new ManualScheduler();
+        manager = new SensorApiManager(transport, DIRECT);
+        manager.setTicker(ticker);
+        manager.setScheduler(scheduler);
+        manager.setRequestCoalescing(false);
+        manager.setRetryPolicy(3, 100, 5000);
+        manager.setCircuitBreaker(0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private ApiRequest<?> perform(int method, String url) {
+        ApiRequest<?> request = new SensorStringRequest(method, url,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        responses.add(response);
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        errors.add(error);
+                    }
+                });
+        manager.performRequest(request);
+        return request;
+    }
+
+    private static void respond(ApiRequest<?> request, int statusCode, Map<String, String> headers) {
+        request.onResponse(statusCode, headers, "body".getBytes(JsonTokenizer.UTF_8));
+    }
+
+    @Test
+    public void onAttemptCompleted_retriesFailedGetWithinBackoff() {
+        ApiRequest<?> request = perform(Request.Method.GET, URL);
+        respond(transport.poll(), 500, NO_HEADERS);
+        assertTrue(errors.isEmpty());
+        assertNull(transport.poll());
+        assertEquals(1, scheduler.delays().size());
+        assertTrue(scheduler.delays().get(0) <= 100);
+
+        scheduler.runDelayed();
+        assertSame(request, transport.poll());
+        assertEquals(1, request.getRetryCount());
+        respond(request, 200, NO_HEADERS);
+        assertEquals(Collections.singletonList("body"), responses);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_doublesBackoffCeilingOnEveryRetry() {
+        manager.setRetryPolicy(5, 100, 250);
+        ApiRequest<?> request = perform(Request.Method.GET, URL);
+        long[] ceilings = {100, 200, 250, 250};
+        for (long ceiling : ceilings) {
+            request.onFailure(new IOException("Connection reset"));
+            assertTrue(scheduler.delays().get(0) <= ceiling);
+            scheduler.runDelayed();
+        }
+        assertEquals(4, request.getRetryCount());
+    }
+
+    @Test
+    public void onAttemptCompleted_givesUpAfterMaxRetries() {
+        ApiRequest<?> request = perform(Request.Method.GET, URL);
+        for (int i = 0; i < 3; i++) {
+            respond(transport.poll(), 502, NO_HEADERS);
+            scheduler.runDelayed();
+        }
+        respond(transport.poll(), 502, NO_HEADERS);
+        assertEquals(1, errors.size());
+        assertEquals(502, errors.get(0).networkResponse.statusCode);
+        assertEquals(3, request.getRetryCount());
+        assertTrue(scheduler.delays().isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_neverRetriesCommandAfterServerError() {
+        perform(Request.Method.POST, COMMAND_URL);
+        respond(transport.poll(), 500, NO_HEADERS);
+        assertEquals(1, errors.size());
+        assertTrue(scheduler.delays().isEmpty());
+
+        perform(Request.Method.POST, COMMAND_URL).onFailure(new IOException("Connection reset"));
+        assertEquals(2, errors.size());
+        assertTrue(scheduler.delays().isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_retriesCommandThatWasNotCarriedOut() {
+        ApiRequest<?> request = perform(Request.Method.POST, COMMAND_URL);
+        respond(transport.poll(), 429, NO_HEADERS);
+        scheduler.runDelayed();
+        respond(transport.poll(), 503, NO_HEADERS);
+        scheduler.runDelayed();
+        assertSame(request, transport.poll());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_waitsForRetryAfter() {
+        perform(Request.Method.GET, URL);
+        respond(transport.poll(), 429, Collections.singletonMap("retry-after", " 2 "));
+        assertEquals(Collections.singletonList(2000L), scheduler.delays());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_givesUpWhenRetryAfterExceedsMaxBackoff() {
+        perform(Request.Method.GET, URL);
+        respond(transport.poll(), 503, Collections.singletonMap("Retry-After", "60"));
+        assertEquals(1, errors.size());
+        assertTrue(scheduler.delays().isEmpty());
+    }
+
+    @Test
+    public void onAttemptCompleted_neverRetriesClientError() {
+        perform(Request.Method.GET, URL);
+        respond(transport.poll(), 404, NO_HEADERS);
+        assertEquals(1, errors.size());
+        assertTrue(scheduler.delays().isEmpty());
+    }
+
+    @Test
+    public void circuit_opensThenProbesThenCloses() {
+        manager.setRetryPolicy(0, 0, 0);
+        manager.setCircuitBreaker(2, 1000);
+        perform(Request.Method.GET, URL).onFailure(new IOException("Connection refused"));
+        assertFalse(manager.isCircuitOpen(SensorApiManager.Endpoint.LATEST_MESSAGES));
+        perform(Request.Method.GET, URL).onFailure(new IOException("Connection refused"));
+        assertTrue(manager.isCircuitOpen(SensorApiManager.Endpoint.LATEST_MESSAGES));
+        transport.poll();
+        transport.poll();
+
+        // Open: refused without reaching the network. Other endpoints are unaffected.
+        perform(Request.Method.GET, URL);
+        assertNull(transport.poll());
+        assertTrue(errors.get(2) instanceof RetryController.CircuitOpenError);
+        assertEquals(SensorApiError.Kind.CIRCUIT_OPEN, SensorApiError.fromVolleyError(errors.get(2)).getKind());
+        perform(Request.Method.GET, SensorApiManager.DEVICE_CHILD_DEVICES_ENDPOINT);
+        assertNotNull(transport.poll());
+
+        // Half-open: a single probe goes through once the open period is over.
+        ticker.advance(1000);
+        ApiRequest<?> probe = perform(Request.Method.GET, URL);
+        assertSame(probe, transport.poll());
+        perform(Request.Method.GET, URL);
+        assertNull(transport.poll());
+        assertEquals(4, errors.size());
+
+        // Closed again by the probe's success.
+        respond(probe, 200, NO_HEADERS);
+        assertFalse(manager.isCircuitOpen(SensorApiManager.Endpoint.LATEST_MESSAGES));
+        perform(Request.Method.GET, URL);
+        assertNotNull(transport.poll());
+    }
+
+    @Test
+    public void circuit_opensAgainWhenProbeFails() {
+        manager.setRetryPolicy(0, 0, 0);
+        manager.setCircuitBreaker(1, 1000);
+        perform(Request.Method.GET, URL).onFailure(new IOException("Connection refused"));
+        transport.poll();
+        ticker.advance(1000);
+        ApiRequest<?> probe = perform(Request.Method.GET, URL);
+        assertSame(probe, transport.poll());
+        respond(probe, 500, NO_HEADERS);
+        assertTrue(manager.isCircuitOpen(SensorApiManager.Endpoint.LATEST_MESSAGES));
+        perform(Request.Method.GET, URL);
+        assertNull(transport.poll());
+    }
+
+    @Test
+    public void circuit_doesNotRetryOnceOpen() {
+        manager.setCircuitBreaker(1, 1000);
+        perform(Request.Method.GET, URL).onFailure(new IOException("Connection refused"));
+        // The actual failure is reported rather than a refused retry.
+        assertEquals(1, errors.size());
+        assertFalse(errors.get(0) instanceof RetryController.CircuitOpenError);
+        assertTrue(scheduler.delays().isEmpty());
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SegmentedLog}.
+ */
+public class SegmentedLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static IotMessage message(long when) {
+        IotMessage message = new IotMessage();
+        message.when = when;
+        message.received = when - 1;
+        message.setPayload(new byte[] {(byte) when});
+        return message;
+    }
+
+    /**
+     * Returns a message every millisecond within {@code [from, to]}, in ascending order.
+     */
+    private static List<IotMessage> messages(long from, long to) {
+        List<IotMessage> messages = new ArrayList<>();
+        for (long when = from; when <= to; when++) messages.add(message(when));
+        return messages;
+    }
+
+    private static long[] times(List<IotMessage> messages) {
+        long[] times = new long[messages.size()];
+        for (int i = 0; i < times.length; i++) times[i] = messages.get(i).when;
+        return times;
+    }
+
+    /**
+     * Returns every millisecond from {@code from} down to {@code to}.
+     */
+    private static long[] descending(long from, long to) {
+        long[] times = new long[(int) (from - to + 1)];
+        for (int i = 0; i < times.length; i++) times[i] = from - i;
+        return times;
+    }
+
+    private static String[] segmentNames(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+        Arrays.sort(names);
+        return names;
+    }
+
+    private SegmentedLog<IotMessage> open(File directory) throws IOException {
+        return new SegmentedLog<>(directory, MessageCodecs.IOT_MESSAGE);
+    }
+
+    @Test
+    public void append_mergesOverlappingAndAdjacentCoverage() throws IOException {
+        File directory = folder.newFolder();
+        SegmentedLog<IotMessage> log = open(directory);
+        log.append(Collections.<IotMessage>emptyList(), 10, 20);
+        log.append(Collections.<IotMessage>emptyList(), 21, 30);
+        log.append(Collections.<IotMessage>emptyList(), 40, 50);
+        assertArrayEquals(new long[] {10, 30}, log.coveringRange(15));
+        assertNull(log.coveringRange(35));
+        assertArrayEquals(new long[] {40, 50}, log.coveringRange(50));
+
+        log.append(Collections.<IotMessage>emptyList(), 25, 45);
+        assertArrayEquals(new long[] {10, 50}, log.coveringRange(35));
+
+        assertArrayEquals(new long[] {10, 50}, open(directory).coveringRange(10));
+    }
+
+    @Test
+    public void append_skipsMessagesOfCoveredRanges() throws IOException {
+        SegmentedLog<IotMessage> log = open(folder.newFolder());
+        log.append(Collections.singletonList(message(15)), 10, 20);
+        log.append(messages(14, 22), 14, 22);
+        assertArrayEquals(new long[] {22, 21, 15}, times(log.query(0, 100)));
+    }
+
+    @Test
+    public void append_storesOlderPagesInOneDescendingSegment() throws IOException {
+        File directory = folder.newFolder();
+        SegmentedLog<IotMessage> log = open(directory);
+        // Walking the history back from the newest page.
+        log.append(messages(100, 109), 100, 109);
+        log.append(messages(90, 99), 90, 99);
+        log.append(messages(80, 89), 80, 89);
+        log.append(messages(70, 79), 70, 79);
+
+        String[] names = segmentNames(directory);
+        assertEquals(2, names.length);
+        assertTrue(names[0].endsWith(".seg") && !names[0].endsWith(".desc.seg"));
+        assertTrue(names[1].endsWith(".desc.seg"));
+        assertArrayEquals(descending(109, 70), times(log.query(Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertArrayEquals(descending(95, 75), times(log.query(75, 95)));
+
+        assertArrayEquals(descending(109, 70), times(open(directory).query(0, 200)));
+    }
+
+    @Test
+    public void append_mergesMessagesWithinSegmentRange() throws IOException {
+        SegmentedLog<IotMessage> log = open(folder.newFolder());
+        log.append(Arrays.asList(message(10), message(30)), 10, 10);
+        log.append(Collections.singletonList(message(20)), 20, 20);
+        assertArrayEquals(new long[] {30, 20, 10}, times(log.query(0, 100)));
+    }
+
+    @Test
+    public void query_returnsNewestMessagesUpToLimit() throws IOException {
+        SegmentedLog<IotMessage> log = open(folder.newFolder());
+        // Spans several index blocks.
+        log.append(messages(1000, 1199), 1000, 1199);
+        assertArrayEquals(descending(1199, 1190), times(log.query(0, 2000, 10)));
+        assertArrayEquals(descending(1150, 1071), times(log.query(1000, 1150, 80)));
+        assertArrayEquals(descending(1003, 1000), times(log.query(1000, 1003, 80)));
+        assertTrue(log.query(2000, 3000, 10).isEmpty());
+    }
+
+    @Test
+    public void query_returnsNewestMessagesUpToLimitAcrossDescendingSegments() throws IOException {
+        SegmentedLog<IotMessage> log = open(folder.newFolder());
+        log.append(messages(1000, 1009), 1000, 1009);
+        for (long to = 999; to >= 800; to -= 20) log.append(messages(to - 19, to), to - 19, to);
+        assertArrayEquals(descending(1004, 990), times(log.query(0, 1004, 15)));
+        assertArrayEquals(descending(950, 871), times(log.query(0, 950, 80)));
+    }
+
+    @Test
+    public void open_dropsTruncatedTrailingRecord() throws IOException {
+        File directory = folder.newFolder();
+        open(directory).append(messages(10, 19), 10, 19);
+        File segment = new File(directory, segmentNames(directory)[0]);
+        long length = segment.length();
+
+        // A crash in the middle of an append: a length prefix and part of the record.
+        FileOutputStream output = new FileOutputStream(segment, true);
+        try {
+            output.write(new byte[] {0, 0, 0, 40, 0, 0, 0, 0, 0, 0, 0, 20, 1});
+        } finally {
+            output.close();
+        }
+
+        SegmentedLog<IotMessage> log = open(directory);
+        assertEquals(length, segment.length());
+        assertArrayEquals(descending(19, 10), times(log.query(0, 100)));
+
+        log.append(messages(20, 21), 20, 21);
+        assertArrayEquals(descending(21, 10), times(open(directory).query(0, 100)));
+    }
+
+    @Test
+    public void open_deletesEmptySegment() throws IOException {
+        File directory = folder.newFolder();
+        open(directory).append(messages(10, 19), 10, 19);
+        assertTrue(new File(directory, "0000000099.seg").createNewFile());
+
+        SegmentedLog<IotMessage> log = open(directory);
+        assertEquals(1, segmentNames(directory).length);
+        assertArrayEquals(descending(19, 10), times(log.query(0, 100)));
+    }
+
+}
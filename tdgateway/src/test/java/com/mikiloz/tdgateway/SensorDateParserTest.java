@@ -0,0 +1,79 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SensorDateParser}, against epoch times computed independently. Dates are
+ * parsed at GMT+1 like the Sensor API reports them, unless stated otherwise.
+ */
+public class SensorDateParserTest {
+
+    private static final SensorDateParser PARSER = SensorDateParser.DEFAULT;
+
+    @Test
+    public void parseMillis_readsAfternoon() throws Exception {
+        // 2017-04-05T15:27:26+01:00
+        assertEquals(1491402446000L, PARSER.parseMillis("Apr 5, 2017 3:27:26 PM"));
+    }
+
+    @Test
+    public void parseMillis_readsTwelvePmAsNoon() throws Exception {
+        // 2017-04-05T12:27:26+01:00. The "KK" pattern used before
+        // read it as the following midnight.
+        assertEquals(1491391646000L, PARSER.parseMillis("Apr 5, 2017 12:27:26 PM"));
+    }
+
+    @Test
+    public void parseMillis_readsTwelveAmAsMidnight() throws Exception {
+        // 2017-04-05T00:27:26+01:00
+        assertEquals(1491348446000L, PARSER.parseMillis("Apr 5, 2017 12:27:26 AM"));
+    }
+
+    @Test
+    public void parseMillis_readsLeapDays() throws Exception {
+        // 2016-02-29T15:04:05+01:00, 2000-02-29T00:00:00+01:00
+        assertEquals(1456754645000L, PARSER.parseMillis("Feb 29, 2016 3:04:05 PM"));
+        assertEquals(951778800000L, PARSER.parseMillis("Feb 29, 2000 12:00:00 AM"));
+        // 2016-03-01T00:00:00+01:00, 2016-12-31T23:59:59+01:00
+        assertEquals(1456786800000L, PARSER.parseMillis("Mar 1, 2016 12:00:00 AM"));
+        assertEquals(1483225199000L, PARSER.parseMillis("Dec 31, 2016 11:59:59 PM"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseMillis_rejectsLeapDayOfCommonYear() throws Exception {
+        PARSER.parseMillis("Feb 29, 2017 12:00:00 PM");
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseMillis_rejectsLeapDayOfCentury() throws Exception {
+        PARSER.parseMillis("Feb 29, 1900 12:00:00 PM");
+    }
+
+    @Test
+    public void parseMillis_appliesOffset() throws Exception {
+        assertEquals(0L, PARSER.parseMillis("Jan 1, 1970 1:00:00 AM"));
+        assertEquals(-46800000L, PARSER.parseMillis("Dec 31, 1969 12:00:00 PM"));
+        // 2016-02-29T12:00:00Z
+        assertEquals(1456747200000L,
+                new SensorDateParser(0).parseMillis("Feb 29, 2016 12:00:00 PM"));
+    }
+
+    @Test
+    public void parseMillis_acceptsFullMonthNamesAndCase() throws Exception {
+        assertEquals(1491402446000L, PARSER.parseMillis("april 5, 2017 3:27:26 pm"));
+    }
+
+    @Test
+    public void parseOrNull_returnsNullForInvalidDates() {
+        assertNull(PARSER.parseOrNull(null));
+        assertNull(PARSER.parseOrNull(""));
+        assertNull(PARSER.parseOrNull("Apr 5, 2017 13:27:26 PM"));
+        assertNull(PARSER.parseOrNull("Apr 5, 2017 3:27:26"));
+        assertNull(PARSER.parseOrNull("Apr 5, 2017 3:27:26 PM UTC"));
+        assertEquals(1491402446000L, PARSER.parseOrNull("Apr 5, 2017 3:27:26 PM").getTime());
+    }
+}
@@ -0,0 +1,124 @@
+package com.mikiloz.tdgateway;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SensorStreamingRequest}, with items of the form {@code {"v": "..."}}.
+ */
+public class SensorStreamingRequestTest {
+
+    /** Parses the items, recording which path each one took. */
+    private static class RecordingParser implements SensorStreamingRequest.ItemParser<String> {
+
+        final List<String> paths = new ArrayList<>();
+
+        @Override
+        public String parse(JsonTokenizer tokenizer) throws JsonTokenizer.MalformedJsonException {
+            paths.add("tokenizer");
+            String value = null;
+            tokenizer.beginObject();
+            while (tokenizer.hasNext()) {
+                if (tokenizer.nextName().equals("v")) value = tokenizer.nextString();
+                else tokenizer.skipValue();
+            }
+            tokenizer.endObject();
+            return value;
+        }
+
+        @Override
+        public String parse(JSONObject object, boolean retainJson) throws JSONException {
+            paths.add("json");
+            return object.getString("v");
+        }
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(JsonTokenizer.UTF_8);
+    }
+
+    private static List<String> parse(String json, RecordingParser parser, boolean retainJson)
+            throws Exception {
+        SensorStreamingRequest<List<String>> request = new SensorStreamingRequest<>(
+                Request.Method.GET, "http://localhost/", SensorStreamingRequest.listOf(parser),
+                retainJson, null, null);
+        return request.parseResponse(
+                new NetworkResponse(bytes(json), Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void parseItems_readsBareArray() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        List<String> items = SensorStreamingRequest.parseItems(
+                bytes("[{\"v\": \"a\"}, {\"x\": 1, \"v\": \"b\"}]"),
+                SensorStreamingRequest.listOf(parser));
+        assertEquals(Arrays.asList("a", "b"), items);
+    }
+
+    @Test
+    public void parseItems_readsItemsWrappedArray() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        List<String> items = SensorStreamingRequest.parseItems(
+                bytes("{\"count\": 2, \"meta\": {\"items\": []},"
+                        + " \"items\": [{\"v\": \"a\"}, {\"v\": \"b\"}], \"next\": null}"),
+                SensorStreamingRequest.listOf(parser));
+        assertEquals(Arrays.asList("a", "b"), items);
+    }
+
+    @Test
+    public void parseItems_readsEmptyArray() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        assertTrue(SensorStreamingRequest.parseItems(bytes(" [ ] "),
+                SensorStreamingRequest.listOf(parser)).isEmpty());
+        assertTrue(parser.paths.isEmpty());
+    }
+
+    @Test(expected = JsonTokenizer.MalformedJsonException.class)
+    public void parseItems_rejectsObjectWithoutItems() throws Exception {
+        SensorStreamingRequest.parseItems(bytes("{\"count\": 0}"),
+                SensorStreamingRequest.listOf(new RecordingParser()));
+    }
+
+    @Test
+    public void parseResponse_streamsWellFormedBody() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        assertEquals(Arrays.asList("a", "\u00e9"),
+                parse("{\"items\": [{\"v\": \"a\"}, {\"v\": \"\\u00e9\"}]}", parser, false));
+        assertEquals(Arrays.asList("tokenizer", "tokenizer"), parser.paths);
+    }
+
+    @Test
+    public void parseResponse_fallsBackToJsonTreeOnMalformedBody() throws Exception {
+        // org.json accepts single quotes, the tokenizer fails on the first item.
+        RecordingParser parser = new RecordingParser();
+        assertEquals(Arrays.asList("a", "b"), parse("[{'v': 'a'}, {'v': 'b'}]", parser, false));
+        assertEquals(Arrays.asList("tokenizer", "json", "json"), parser.paths);
+    }
+
+    @Test
+    public void parseResponse_fallsBackAfterPartialStreaming() throws Exception {
+        // The first item is parsed before the second one fails to tokenize: the page is rebuilt
+        // from scratch.
+        RecordingParser parser = new RecordingParser();
+        assertEquals(Arrays.asList("a", "b"), parse("[{\"v\": \"a\"}, {'v': 'b'}]", parser, false));
+        assertEquals(Arrays.asList("tokenizer", "tokenizer", "json", "json"), parser.paths);
+    }
+
+    @Test
+    public void parseResponse_usesJsonTreeWhenRetainingJson() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        assertEquals(Collections.singletonList("a"), parse("[{\"v\": \"a\"}]", parser, true));
+        assertEquals(Collections.singletonList("json"), parser.paths);
+    }
+}
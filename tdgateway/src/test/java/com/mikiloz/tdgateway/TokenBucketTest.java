@@ -0,0 +1,52 @@
+package com.mikiloz.tdgateway;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TokenBucket}.
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void tryAcquire_spendsBurstThenWaitsForRefill() {
+        TokenBucket bucket = new TokenBucket(2, 3, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(SECOND / 2, bucket.nanosUntilAvailable(0));
+
+        assertFalse(bucket.tryAcquire(SECOND / 4));
+        assertEquals(SECOND / 4, bucket.nanosUntilAvailable(SECOND / 4));
+        assertTrue(bucket.tryAcquire(SECOND / 2));
+        assertFalse(bucket.tryAcquire(SECOND / 2));
+    }
+
+    @Test
+    public void refill_isCappedAtBurst() {
+        TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        // An hour of quiet only saves up the burst.
+        long later = TimeUnit.HOURS.toNanos(1);
+        assertEquals(0, bucket.nanosUntilAvailable(later));
+        assertTrue(bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later));
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    public void refill_ignoresClockGoingBack() {
+        TokenBucket bucket = new TokenBucket(1, 1, SECOND);
+        assertTrue(bucket.tryAcquire(SECOND));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(SECOND, bucket.nanosUntilAvailable(SECOND));
+    }
+
+}